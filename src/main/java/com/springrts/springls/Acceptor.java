@@ -0,0 +1,274 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls;
+
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Accepts new connections on separate threads, instead of on the main loop.
+ * Each thread blocks on its own listening channel. If the platform supports
+ * <code>SO_REUSEPORT</code> (Linux 3.9+ with Java 9+), each channel is bound
+ * to the same port, and the kernel distributes the incoming connections
+ * among them. Otherwise, all threads share a single listening channel.
+ * The accepted connections are queued, and have to be registered by the main
+ * loop, see {@link #pollAccepted()}.
+ * @see ServerConfiguration#ACCEPTOR_THREADS
+ * @author hoijui
+ */
+public class Acceptor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Acceptor.class);
+
+	/**
+	 * How long to wait before retrying after accept() failed,
+	 * for example because we ran out of file descriptors (EMFILE/ENFILE).
+	 * The delay doubles with each further failure.
+	 */
+	private static final long MIN_RETRY_DELAY = 10;
+	/** Upper bound for the delay between two failed accept() calls. */
+	private static final long MAX_RETRY_DELAY = 1000;
+	/** Minimum time between two warnings about failed accept() calls. */
+	private static final long WARN_INTERVAL = 10000;
+
+	private final int port;
+	private final int threadsCount;
+	private final List<ServerSocketChannel> serverChannels;
+	private final List<Thread> threads;
+	/** Accepted connections not yet registered by the main loop. */
+	private final Queue<SocketChannel> accepted;
+	private volatile boolean running;
+
+
+	/**
+	 * @param port the TCP port to listen on
+	 * @param threadsCount the number of accepting threads, at least 1
+	 */
+	public Acceptor(int port, int threadsCount) {
+
+		this.port = port;
+		this.threadsCount = Math.max(1, threadsCount);
+		this.serverChannels = new ArrayList<ServerSocketChannel>(
+				this.threadsCount);
+		this.threads = new ArrayList<Thread>(this.threadsCount);
+		this.accepted = new ConcurrentLinkedQueue<SocketChannel>();
+		this.running = false;
+	}
+
+
+	/**
+	 * Opens the listening channels and starts the accepting threads.
+	 * @throws IOException if the port could not be bound
+	 */
+	public void start() throws IOException {
+
+		Object reusePort = findReusePortOption();
+		boolean shareChannel = true;
+		if ((reusePort != null) && (threadsCount > 1)) {
+			try {
+				for (int c = 0; c < threadsCount; c++) {
+					ServerSocketChannel serverChannel = ServerSocketChannel.open();
+					serverChannels.add(serverChannel);
+					setOption(serverChannel, reusePort, Boolean.TRUE);
+					serverChannel.socket().bind(new InetSocketAddress(port));
+				}
+				shareChannel = false;
+			} catch (IOException ex) {
+				LOG.warn("Failed to use SO_REUSEPORT;"
+						+ " all acceptors share a single channel", ex);
+				closeChannels();
+			}
+		}
+		if (shareChannel) {
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannels.add(serverChannel);
+			serverChannel.socket().bind(new InetSocketAddress(port));
+		}
+
+		running = true;
+		for (int t = 0; t < threadsCount; t++) {
+			ServerSocketChannel serverChannel
+					= serverChannels.get(shareChannel ? 0 : t);
+			Thread thread = new Thread(new AcceptLoop(serverChannel),
+					"acceptor-" + (t + 1));
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+
+		LOG.info("Accepting connections with {} threads on {} channels",
+				threadsCount, serverChannels.size());
+	}
+
+	/**
+	 * Stops the accepting threads and closes the listening channels.
+	 * Connections accepted but not yet polled are closed as well.
+	 */
+	public void stop() {
+
+		running = false;
+		closeChannels();
+		SocketChannel clientChannel;
+		while ((clientChannel = accepted.poll()) != null) {
+			try {
+				clientChannel.close();
+			} catch (IOException ex) {
+				LOG.trace("Failed to close a pending connection", ex);
+			}
+		}
+		threads.clear();
+	}
+
+	/**
+	 * Returns the next accepted connection, which has not yet been handed
+	 * to the main loop.
+	 * @return the connection, or <code>null</code> if there is none
+	 */
+	public SocketChannel pollAccepted() {
+		return accepted.poll();
+	}
+
+	private void closeChannels() {
+
+		for (ServerSocketChannel serverChannel : serverChannels) {
+			try {
+				serverChannel.close();
+			} catch (IOException ex) {
+				LOG.trace("Failed to close a listening channel", ex);
+			}
+		}
+		serverChannels.clear();
+	}
+
+	private class AcceptLoop implements Runnable {
+
+		private final ServerSocketChannel serverChannel;
+
+		AcceptLoop(ServerSocketChannel serverChannel) {
+			this.serverChannel = serverChannel;
+		}
+
+		@Override
+		public void run() {
+
+			long retryDelay = 0;
+			long lastWarning = 0;
+			int failures = 0;
+			while (running) {
+				try {
+					// blocks until a connection is available
+					SocketChannel clientChannel = serverChannel.accept();
+					if (clientChannel != null) {
+						accepted.add(clientChannel);
+					}
+					if (failures > 0) {
+						LOG.info("Accepting connections again, after {}"
+								+ " failed attempts", failures);
+						failures = 0;
+						retryDelay = 0;
+					}
+				} catch (ClosedChannelException ex) {
+					// we are shutting down
+					break;
+				} catch (IOException ex) {
+					failures++;
+					long now = System.currentTimeMillis();
+					if ((now - lastWarning) >= WARN_INTERVAL) {
+						LOG.warn("Failed to accept a connection ("
+								+ failures + " times in a row)", ex);
+						lastWarning = now;
+					}
+					// do not spin while the cause persists
+					retryDelay = (retryDelay == 0) ? MIN_RETRY_DELAY
+							: Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+					try {
+						Thread.sleep(retryDelay);
+					} catch (InterruptedException iex) {
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns <code>StandardSocketOptions.SO_REUSEPORT</code>, if it is
+	 * available in this JRE.
+	 * This is looked up by reflection, as we still support JREs which do not
+	 * know about it.
+	 * @return the socket option, or <code>null</code> if not available
+	 */
+	private static Object findReusePortOption() {
+
+		try {
+			Class<?> optionsClass = Class.forName("java.net.StandardSocketOptions");
+			Field reusePortField = optionsClass.getField("SO_REUSEPORT");
+			return reusePortField.get(null);
+		} catch (ClassNotFoundException ex) {
+			LOG.debug("SO_REUSEPORT is not supported by this JRE", ex);
+		} catch (NoSuchFieldException ex) {
+			LOG.debug("SO_REUSEPORT is not supported by this JRE", ex);
+		} catch (IllegalAccessException ex) {
+			LOG.debug("SO_REUSEPORT is not accessible", ex);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Calls <code>NetworkChannel.setOption(SocketOption, Object)</code>
+	 * by reflection.
+	 * @throws IOException if the option is not supported on this platform,
+	 *   or could not be set
+	 */
+	private static void setOption(ServerSocketChannel serverChannel,
+			Object option, Object value) throws IOException
+	{
+		try {
+			Class<?> optionClass = Class.forName("java.net.SocketOption");
+			Method setOption = ServerSocketChannel.class.getMethod("setOption",
+					optionClass, Object.class);
+			setOption.invoke(serverChannel, option, value);
+		} catch (InvocationTargetException ex) {
+			// for example UnsupportedOperationException on Windows
+			throw new IOException("Failed to set socket option " + option,
+					ex.getCause());
+		} catch (ClassNotFoundException ex) {
+			throw new IOException("Socket options are not supported", ex);
+		} catch (NoSuchMethodException ex) {
+			throw new IOException("Socket options are not supported", ex);
+		} catch (IllegalAccessException ex) {
+			throw new IOException("Socket options are not accessible", ex);
+		}
+	}
+}
@@ -30,6 +30,8 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 
@@ -55,7 +57,9 @@ import org.slf4j.LoggerFactory;
 	@NamedQuery(name = "acc_size_active",      query = "SELECT count(a.id) FROM Account a WHERE ((a.inGameTime >= " + /*Account.Rank.Beginner.getRequiredTime()*/(5 * 60 * 60) + ") AND (a.lastLogin > :oneWeekAgo))"),
 	@NamedQuery(name = "acc_list",             query = "SELECT a FROM Account a"),
 	@NamedQuery(name = "acc_fetchByName",      query = "SELECT a FROM Account a WHERE a.name = :name"),
-	@NamedQuery(name = "acc_fetchByLowerName", query = "SELECT a FROM Account a WHERE (LOWER(a.name) = :lowerName)"),
+	@NamedQuery(name = "acc_fetchByLowerName", query = "SELECT a FROM Account a WHERE a.lowerName = :lowerName"),
+	@NamedQuery(name = "acc_fillLowerNames",   query = "UPDATE Account a SET a.lowerName = LOWER(a.name) WHERE a.lowerName IS NULL"),
+	@NamedQuery(name = "acc_caseDuplicates",   query = "SELECT LOWER(a.name) FROM Account a GROUP BY LOWER(a.name) HAVING count(a.id) > 1"),
 	@NamedQuery(name = "acc_fetchByLastIP",    query = "SELECT a FROM Account a WHERE a.lastIp = :ip")
 })
 public class Account implements Serializable, Cloneable {
@@ -157,6 +161,12 @@ public class Account implements Serializable, Cloneable {
 	 */
 	private String name;
 
+	/**
+	 * The login name in lower case.
+	 * @see #getLowerName()
+	 */
+	private String lowerName;
+
 	/**
 	 * Encrypted form of the password.
 	 * TODO: add description of method used to encrypt the password; lobby side
@@ -302,6 +312,7 @@ public class Account implements Serializable, Cloneable {
 	private Account(Account acc) {
 
 		this.name              = acc.getName();
+		this.lowerName         = acc.lowerName;
 		this.password          = acc.getPassword();
 		this.access            = acc.getAccess();
 		this.lastUserId        = NO_USER_ID;
@@ -608,6 +619,50 @@ public class Account implements Serializable, Cloneable {
 	 */
 	public void setName(String name) {
 		this.name = name;
+		this.lowerName = name.toLowerCase();
+	}
+
+	/**
+	 * The name in lower case.
+	 * This is only stored in the DB, to look up accounts by name
+	 * case-insensitively through an index. It is derived from the name
+	 * whenever the account is written, so it is updated on renames too.
+	 * It may be <code>null</code> in the DB for rows written before this
+	 * column existed, until they are migrated.
+	 * @see #fillLowerName()
+	 * @return the name in lower case, or <code>null</code> if it was not yet
+	 *   derived from the name
+	 */
+	@Column(
+		name       = "name_lower",
+		unique     = true,
+		nullable   = true,
+		insertable = true,
+		updatable  = true,
+		length     = 40
+		)
+	public String getLowerName() {
+		return lowerName;
+	}
+
+	/**
+	 * Only used by JPA; the lower case name is derived from the name.
+	 * @see #getLowerName()
+	 * @param lowerName the name in lower case, as stored in the DB
+	 */
+	protected void setLowerName(String lowerName) {
+		this.lowerName = lowerName;
+	}
+
+	/**
+	 * Derives the lower case name from the name, right before the account
+	 * is inserted into or updated in the DB.
+	 * @see #getLowerName()
+	 */
+	@PrePersist
+	@PreUpdate
+	protected void fillLowerName() {
+		lowerName = name.toLowerCase();
 	}
 
 	/**
@@ -18,12 +18,20 @@
 package com.springrts.springls;
 
 
+import com.springrts.springls.util.Misc;
 import com.springrts.springls.util.Processor;
 import com.springrts.springls.util.ProtocolUtil;
+import java.awt.Color;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -39,8 +47,61 @@ public class Battle implements ContextReceiver {
 
 	private static final Logger LOG = LoggerFactory.getLogger(Battle.class);
 
-	/** the id that the next battle will have */
-	private static int nextId;
+	/**
+	 * A section of the lines sent to clients joining the battle.
+	 * It is built and encoded once, and shared by all joining clients,
+	 * until it gets invalidated by a change of the data it is made of.
+	 */
+	private static class JoinSection {
+
+		/** Lines separated by EOL, or <code>null</code> if invalid. */
+		private String lines = null;
+		/** <code>lines</code> encoded, or <code>null</code> if not available. */
+		private ByteBuffer encoded = null;
+
+		public boolean isValid() {
+			return (lines != null);
+		}
+
+		public void invalidate() {
+
+			lines = null;
+			encoded = null;
+		}
+
+		public void set(String lines, ByteBuffer encoded) {
+
+			this.lines = lines;
+			this.encoded = encoded;
+		}
+
+		public void sendTo(Client client) {
+			client.sendLines(lines, encoded);
+		}
+	}
+
+	/**
+	 * The CLIENTBATTLESTATUS line of a single client,
+	 * together with the values it was created from.
+	 */
+	private static class BattleStatusLine {
+
+		private final int battleStatus;
+		private final Color teamColor;
+		private final String line;
+
+		BattleStatusLine(int battleStatus, Color teamColor, String line) {
+
+			this.battleStatus = battleStatus;
+			this.teamColor = teamColor;
+			this.line = line;
+		}
+
+		public boolean isUpToDate(Client client) {
+			return ((client.getBattleStatus() == battleStatus)
+					&& client.getTeamColor().equals(teamColor));
+		}
+	}
 
 	/**
 	 * This is used as a null kind of value,
@@ -112,6 +173,40 @@ public class Battle implements ContextReceiver {
 	 * This is only used if type == 1.
 	 */
 	private List<String> tempReplayScript;
+	/**
+	 * Number of spectators among the founder and the clients.
+	 * This is kept up to date incrementally,
+	 * see {@link #updateStatusCounters(Client, boolean)}.
+	 */
+	private int spectatorCount;
+
+	/** ADDBOT lines for all bots */
+	private final JoinSection botsSection;
+	/** the DISABLEUNITS line */
+	private final JoinSection disabledUnitsSection;
+	/** ADDSTARTRECT lines for all enabled start rectangles */
+	private final JoinSection startRectsSection;
+	/** the SETSCRIPTTAGS line */
+	private final JoinSection scriptTagsSection;
+	/** the replay script, from SCRIPTSTART to SCRIPTEND */
+	private final JoinSection scriptSection;
+	/**
+	 * Cached CLIENTBATTLESTATUS lines of the founder and the clients.
+	 * These are recreated only if the status of the client changed.
+	 */
+	private final Map<Client, BattleStatusLine> battleStatusLines;
+	/**
+	 * Clients which only want the detailed events of the battles they
+	 * subscribed to, and subscribed to this one.
+	 * @see Battles#subscribe(Client, Battle)
+	 */
+	private final Set<Client> subscribers;
+	/**
+	 * The founder and clients whose battle status changed during the current
+	 * main loop iteration.
+	 * Their final battle status is sent once, at the end of the iteration.
+	 */
+	private final Set<Client> pendingBattleStatuses;
 
 	private Context context = null;
 
@@ -124,11 +219,11 @@ public class Battle implements ContextReceiver {
 	}
 
 
-	public Battle(int type, int natType, Client founder, String password,
-			int port, int maxPlayers, int hashCode, int rank, int mapHash,
-			String mapName, String title, String modName)
+	public Battle(int id, int type, int natType, Client founder,
+			String password, int port, int maxPlayers, int hashCode, int rank,
+			int mapHash, String mapName, String title, String modName)
 	{
-		this.id = nextId++;
+		this.id = id;
 		this.type = type;
 		this.natType = natType;
 		this.title = title;
@@ -149,6 +244,16 @@ public class Battle implements ContextReceiver {
 		this.scriptTags = new HashMap<String, String>();
 		this.replayScript = new ArrayList<String>();
 		this.tempReplayScript = new ArrayList<String>();
+		this.spectatorCount = 0;
+		count(founder, 1);
+		this.botsSection = new JoinSection();
+		this.disabledUnitsSection = new JoinSection();
+		this.startRectsSection = new JoinSection();
+		this.scriptTagsSection = new JoinSection();
+		this.scriptSection = new JoinSection();
+		this.battleStatusLines = new HashMap<Client, BattleStatusLine>();
+		this.subscribers = new LinkedHashSet<Client>();
+		this.pendingBattleStatuses = new LinkedHashSet<Client>();
 	}
 
 	private void initStartRects() {
@@ -199,23 +304,55 @@ public class Battle implements ContextReceiver {
 				getModName());
 	}
 
-	private static class BattleStatusNotifyer implements Processor<Client> {
+	private static String createBattleStatusLine(Client client) {
+
+		return String.format("CLIENTBATTLESTATUS %s %d %d",
+				client.getAccount().getName(),
+				client.getBattleStatus(),
+				ProtocolUtil.colorJavaToSpring(client.getTeamColor()));
+	}
+
+	/**
+	 * Returns the CLIENTBATTLESTATUS line of the founder or a client of this
+	 * battle, reusing the one created last time, if the status did not change
+	 * in the meantime.
+	 */
+	private String getBattleStatusLine(Client client) {
+
+		BattleStatusLine statusLine = battleStatusLines.get(client);
+		if ((statusLine == null) || !statusLine.isUpToDate(client)) {
+			statusLine = new BattleStatusLine(client.getBattleStatus(),
+					client.getTeamColor(), createBattleStatusLine(client));
+			battleStatusLines.put(client, statusLine);
+		}
+
+		return statusLine.line;
+	}
+
+	private class BattleStatusCollector implements Processor<Client> {
 
 		private final Client client;
+		private final StringBuilder lines;
+
+		BattleStatusCollector(Client client) {
 
-		BattleStatusNotifyer(Client client) {
 			this.client = client;
+			this.lines = new StringBuilder();
 		}
 
 		@Override
 		public void process(Client curClient) {
 			if (curClient != client) {
-				client.sendLine(String.format("CLIENTBATTLESTATUS %s %d %d",
-						curClient.getAccount().getName(),
-						curClient.getBattleStatus(),
-						ProtocolUtil.colorJavaToSpring(curClient.getTeamColor())));
+				if (lines.length() > 0) {
+					lines.append(Misc.EOL);
+				}
+				lines.append(getBattleStatusLine(curClient));
 			}
 		}
+
+		public String getLines() {
+			return lines.toString();
+		}
 	}
 
 	/**
@@ -223,19 +360,40 @@ public class Battle implements ContextReceiver {
 	 * about the battle stati of all clients in this battle EXCEPT for himself!
 	 */
 	public void notifyOfBattleStatuses(final Client client) {
-		applyToClientsAndFounder(new BattleStatusNotifyer(client));
+
+		BattleStatusCollector collector = new BattleStatusCollector(client);
+		applyToClientsAndFounder(collector);
+		client.sendLines(collector.getLines(), null);
 	}
 
 	/**
 	 * Notifies all clients in the battle (including the client)
 	 * about the new battle status of the client.
+	 * This is done at the end of the current main loop iteration,
+	 * so multiple changes within one iteration result in a single
+	 * notification, containing the final battle status.
 	 */
 	public void notifyClientsOfBattleStatus(Client client) {
 
-		sendToAllClients(String.format("CLIENTBATTLESTATUS %s %d %d",
-				client.getAccount().getName(),
-				client.getBattleStatus(),
-				ProtocolUtil.colorJavaToSpring(client.getTeamColor())));
+		if (pendingBattleStatuses.isEmpty()) {
+			context.getBattles().battleStatusesPending(this);
+		}
+		pendingBattleStatuses.add(client);
+	}
+
+	/**
+	 * Notifies all clients in the battle about the battle status changes
+	 * collected during the current main loop iteration.
+	 * @see #notifyClientsOfBattleStatus(Client)
+	 */
+	public void sendPendingBattleStatuses() {
+
+		for (Client client : pendingBattleStatuses) {
+			applyToClientsAndFounder(new MessageSender(
+					getBattleStatusLine(client),
+					"CLIENTBATTLESTATUS " + client.getAccount().getName()));
+		}
+		pendingBattleStatuses.clear();
 	}
 
 	public void notifyClientJoined(Client client) {
@@ -244,13 +402,18 @@ public class Battle implements ContextReceiver {
 		client.setDefaultBattleStatus();
 		client.setBattleID(getId());
 		client.setRequestedBattleID(Battle.NO_BATTLE_ID);
+		// keep the client informed about the battle it is in
+		if (context.getBattles().subscribe(client, this)) {
+			// it did not know about the battle until now
+			context.getBattles().sendInfoOnBattleToClient(this, client);
+		}
 		addClient(client);
 	 	// notify client that he has successfully joined the battle
 		client.sendLine(String.format("JOINBATTLE %d %d", getId(),
 				getHashCode()));
 		context.getClients().notifyClientsOfNewClientInBattle(this, client);
 		notifyOfBattleStatuses(client);
-		sendBotListToClient(client);
+		getBotsSection().sendTo(client);
 		// tell host about this client's IP and UDP source port
 		// if battle is hosted using one of the NAT traversal techniques
 		if ((getNatType() == 1) || (getNatType() == 2)) {
@@ -265,27 +428,87 @@ public class Battle implements ContextReceiver {
 		}
 
 		client.sendLine("REQUESTBATTLESTATUS");
-		sendDisabledUnitsListToClient(client);
-		sendStartRectsListToClient(client);
-		sendScriptTagsToClient(client);
+		getDisabledUnitsSection().sendTo(client);
+		getStartRectsSection().sendTo(client);
+		getScriptTagsSection().sendTo(client);
 
 		if (getType() == 1) {
-			sendScriptToClient(client);
+			getScriptSection().sendTo(client);
 		}
 	}
 
+	/**
+	 * Sets the content of a section and encodes it.
+	 * @param lines the current content of the section
+	 */
+	private JoinSection validate(JoinSection section, CharSequence lines) {
+
+		String linesStr = lines.toString();
+		ByteBuffer encoded = null;
+		if (!linesStr.isEmpty()) {
+			try {
+				encoded = context.getServer().getAsciiEncoder().encode(
+						CharBuffer.wrap(linesStr + Misc.EOL));
+			} catch (CharacterCodingException ex) {
+				LOG.warn("Failed to encode battle join data", ex);
+			}
+		}
+		section.set(linesStr, encoded);
+
+		return section;
+	}
+
+	/**
+	 * Has to be called whenever the list of bots or any property of one of
+	 * the bots changed.
+	 */
+	public void botsChanged() {
+		botsSection.invalidate();
+	}
+
+	/**
+	 * Has to be called whenever the list of disabled units changed.
+	 * @see #getDisabledUnits()
+	 */
+	public void disabledUnitsChanged() {
+		disabledUnitsSection.invalidate();
+	}
+
+	/**
+	 * Has to be called whenever one of the start rectangles changed.
+	 * @see #getStartRects()
+	 */
+	public void startRectsChanged() {
+		startRectsSection.invalidate();
+	}
+
+	/**
+	 * Has to be called whenever the script tags changed.
+	 * @see #getScriptTags()
+	 */
+	public void scriptTagsChanged() {
+		scriptTagsSection.invalidate();
+	}
+
 
 	private static class MessageSender implements Processor<Client> {
 
 		private final String message;
+		private final String conflationKey;
+
+		MessageSender(String message, String conflationKey) {
 
-		MessageSender(String message) {
 			this.message = message;
+			this.conflationKey = conflationKey;
+		}
+
+		MessageSender(String message) {
+			this(message, null);
 		}
 
 		@Override
 		public void process(Client curClient) {
-			curClient.sendLine(message);
+			curClient.sendConflatableLine(message, conflationKey);
 		}
 	}
 	/**
@@ -347,8 +570,10 @@ public class Battle implements ContextReceiver {
 	public void applyToTeamControllers(
 			Processor<? super TeamController> teamControllerProcessor)
 	{
-		applyToClients(teamControllerProcessor);
-		teamControllerProcessor.process(founder);
+		for (int c = 0; c < clients.size(); c++) {
+			teamControllerProcessor.process(clients.get(c).getBattleState());
+		}
+		teamControllerProcessor.process(founder.getBattleState());
 		applyToBots(teamControllerProcessor);
 	}
 
@@ -361,11 +586,95 @@ public class Battle implements ContextReceiver {
 	}
 
 	public boolean addClient(Client client) {
-		return this.clients.add(client);
+
+		boolean wasActive = isActive();
+		boolean added = this.clients.add(client);
+		if (added) {
+			count(client, 1);
+			context.getBattles().battleActivityChanged(this, wasActive);
+		}
+		return added;
 	}
 
 	public boolean removeClient(Client client) {
-		return this.clients.remove(client);
+
+		boolean wasActive = isActive();
+		boolean removed = this.clients.remove(client);
+		if (removed) {
+			count(client, -1);
+			battleStatusLines.remove(client);
+			// must not be sent after LEFTBATTLE
+			pendingBattleStatuses.remove(client);
+			context.getBattles().battleActivityChanged(this, wasActive);
+		}
+		return removed;
+	}
+
+	private void count(Client client, int delta) {
+		count(client.isSpectator(), delta);
+	}
+
+	private void count(boolean spectator, int delta) {
+
+		if (spectator) {
+			spectatorCount += delta;
+		}
+	}
+
+	/**
+	 * Has to be called whenever the spectator state of the founder
+	 * or one of the clients of this battle changed, in order to keep the
+	 * counters up to date.
+	 * @param client the founder or a client of this battle
+	 * @param wasSpectator the spectator state before the change
+	 * @see #setBattleStatus(Client, int)
+	 * @see #setSpectator(Client, boolean)
+	 */
+	public void updateStatusCounters(Client client, boolean wasSpectator) {
+
+		count(wasSpectator, -1);
+		count(client, 1);
+	}
+
+	/**
+	 * Changes the battle status of the founder or a client of this battle,
+	 * keeping the counters up to date.
+	 * @see TeamController#setBattleStatus(int)
+	 */
+	public void setBattleStatus(Client client, int battleStatus) {
+
+		boolean wasSpectator = client.isSpectator();
+		client.setBattleStatus(battleStatus);
+		updateStatusCounters(client, wasSpectator);
+	}
+
+	/**
+	 * Changes the mode of the founder or a client of this battle,
+	 * keeping the counters up to date.
+	 * @see TeamController#setSpectator(boolean)
+	 */
+	public void setSpectator(Client client, boolean spectator) {
+
+		boolean wasSpectator = client.isSpectator();
+		client.setSpectator(spectator);
+		updateStatusCounters(client, wasSpectator);
+	}
+
+	/**
+	 * Returns the clients which subscribed to the detailed events of this
+	 * battle.
+	 * @see Battles#subscribe(Client, Battle)
+	 */
+	public Collection<Client> getSubscribers() {
+		return Collections.unmodifiableSet(subscribers);
+	}
+
+	boolean addSubscriber(Client client) {
+		return subscribers.add(client);
+	}
+
+	boolean removeSubscriber(Client client) {
+		return subscribers.remove(client);
 	}
 
 	public boolean restricted() {
@@ -376,58 +685,60 @@ public class Battle implements ContextReceiver {
 		return getFounder().isInGame();
 	}
 
-	private static class SpectatorCounter implements Processor<Client> {
-
-		private int count = 0;
-
-		@Override
-		public void process(Client curClient) {
-			if (curClient.isSpectator()) {
-				count++;
-			}
-		}
-
-		public int getCount() {
-			return count;
-		}
+	/**
+	 * Whether this battle is being played right now,
+	 * with at least one client besides the founder.
+	 */
+	public boolean isActive() {
+		return (inGame() && !clients.isEmpty());
 	}
 
 	/**
-	 * Returns number of spectators in this battle. Note that this operation is
-	 * not very fast - we have to go through the entire list of clients in this
-	 * battle to figure out spectator count.
+	 * Returns number of spectators in this battle.
 	 * @return number of spectators in this battle
 	 */
 	public int spectatorCount() {
-
-		SpectatorCounter spectatorCounter = new SpectatorCounter();
-		applyToClientsAndFounder(spectatorCounter);
-
-		return spectatorCounter.getCount();
+		return spectatorCount;
 	}
 
+	/**
+	 * Returns number of players (non-spectators) in this battle,
+	 * not counting bots.
+	 * @return number of players in this battle
+	 */
 	public int nonSpectatorCount() {
 		return getClientsSize() + 1 - spectatorCount();
 	}
 
+	/**
+	 * Returns the number of player slots still open in this battle,
+	 * taking bots into account.
+	 * @return number of players that may still join this battle
+	 */
+	public int freeSlotsCount() {
+		return Math.max(0, maxPlayers - nonSpectatorCount() - getBotsSize());
+	}
+
 	public boolean isClientInBattle(Client client) {
 		return (client.equals(getFounder()) || clients.contains(client));
 	}
 
-	private void sendDisabledUnitsListToClient(Client client) {
+	private JoinSection getDisabledUnitsSection() {
 
-		if (getDisabledUnits().isEmpty()) {
-			// nothing to send
-			return;
+		if (disabledUnitsSection.isValid()) {
+			return disabledUnitsSection;
 		}
 
-		StringBuilder line = new StringBuilder("DISABLEUNITS ");
-		line.append(getDisabledUnits().get(0));
-		for (int i = 1; i < getDisabledUnits().size(); i++) {
-			line.append(" ").append(getDisabledUnits().get(i));
+		StringBuilder line = new StringBuilder();
+		if (!getDisabledUnits().isEmpty()) {
+			line.append("DISABLEUNITS ");
+			line.append(getDisabledUnits().get(0));
+			for (int i = 1; i < getDisabledUnits().size(); i++) {
+				line.append(" ").append(getDisabledUnits().get(i));
+			}
 		}
 
-		client.sendLine(line.toString());
+		return validate(disabledUnitsSection, line);
 	}
 
 	/** Returns number of bots in this battle (size of the bot list) */
@@ -469,6 +780,7 @@ public class Battle implements ContextReceiver {
 	public void addBot(Bot bot) {
 
 		bots.add(bot);
+		botsChanged();
 
 		sendToAllClients(String.format("ADDBOT %d %s %s %d %d %s",
 				getId(),
@@ -488,6 +800,7 @@ public class Battle implements ContextReceiver {
 		boolean containedBot = bots.remove(bot);
 
 		if (containedBot) {
+			botsChanged();
 			sendToAllClients(String.format("REMOVEBOT %d %s", getId(),
 					bot.getName()));
 		}
@@ -511,11 +824,19 @@ public class Battle implements ContextReceiver {
 		}
 	}
 
-	private void sendBotListToClient(Client client) {
+	private JoinSection getBotsSection() {
+
+		if (botsSection.isValid()) {
+			return botsSection;
+		}
 
+		StringBuilder lines = new StringBuilder();
 		for (int i = 0; i < bots.size(); i++) {
 			Bot bot = bots.get(i);
-			client.sendLine(String.format("ADDBOT %d %s %s %d %d %s",
+			if (lines.length() > 0) {
+				lines.append(Misc.EOL);
+			}
+			lines.append(String.format("ADDBOT %d %s %s %d %d %s",
 					getId(),
 					bot.getName(),
 					bot.getOwnerName(),
@@ -523,14 +844,24 @@ public class Battle implements ContextReceiver {
 					ProtocolUtil.colorJavaToSpring(bot.getTeamColor()),
 					bot.getSpecifier()));
 		}
+
+		return validate(botsSection, lines);
 	}
 
-	private void sendStartRectsListToClient(Client client) {
+	private JoinSection getStartRectsSection() {
+
+		if (startRectsSection.isValid()) {
+			return startRectsSection;
+		}
 
+		StringBuilder lines = new StringBuilder();
 		for (int i = 0; i < getStartRects().size(); i++) {
 			StartRect curStartRect = getStartRects().get(i);
 			if (curStartRect.isEnabled()) {
-				client.sendLine(String.format("ADDSTARTRECT %d %d %d %d %d",
+				if (lines.length() > 0) {
+					lines.append(Misc.EOL);
+				}
+				lines.append(String.format("ADDSTARTRECT %d %d %d %d %d",
 						i,
 						curStartRect.getLeft(),
 						curStartRect.getTop(),
@@ -538,23 +869,31 @@ public class Battle implements ContextReceiver {
 						curStartRect.getBottom()));
 			}
 		}
+
+		return validate(startRectsSection, lines);
 	}
 
-	private void sendScriptToClient(Client client) {
+	private JoinSection getScriptSection() {
+
+		if (scriptSection.isValid()) {
+			return scriptSection;
+		}
 
-		client.beginFastWrite();
-		client.sendLine("SCRIPTSTART");
+		StringBuilder lines = new StringBuilder("SCRIPTSTART");
 		for (int i = 0; i < getReplayScript().size(); i++) {
-			client.sendLine("SCRIPT " + getReplayScript().get(i));
+			lines.append(Misc.EOL).append("SCRIPT ");
+			lines.append(getReplayScript().get(i));
 		}
-		client.sendLine("SCRIPTEND");
-		client.endFastWrite();
+		lines.append(Misc.EOL).append("SCRIPTEND");
+
+		return validate(scriptSection, lines);
 	}
 
 	public void sendScriptToAllExceptFounder() {
 
+		JoinSection script = getScriptSection();
 		for (int i = 0; i < clients.size(); i++) {
-			sendScriptToClient(clients.get(i));
+			script.sendTo(clients.get(i));
 		}
 	}
 
@@ -578,13 +917,16 @@ public class Battle implements ContextReceiver {
 		return joined.toString();
 	}
 
-	private void sendScriptTagsToClient(Client client) {
+	private JoinSection getScriptTagsSection() {
 
-		if (getScriptTags().isEmpty()) {
-			// nothing to send
-			return;
+		if (scriptTagsSection.isValid()) {
+			return scriptTagsSection;
 		}
-		client.sendLine("SETSCRIPTTAGS " + joinScriptTags());
+
+		String line = getScriptTags().isEmpty() ? ""
+				: ("SETSCRIPTTAGS " + joinScriptTags());
+
+		return validate(scriptTagsSection, line);
 	}
 
 	/**
@@ -592,7 +934,9 @@ public class Battle implements ContextReceiver {
 	 * This method is called when SCRIPTEND command is received.
 	 */
 	public void ratifyTempScript() {
+
 		replayScript = new ArrayList<String>(getTempReplayScript());
+		scriptSection.invalidate();
 	}
 
 	/**
@@ -649,7 +993,12 @@ public class Battle implements ContextReceiver {
 	 * @param mapName the mapName to set
 	 */
 	public void setMapName(String mapName) {
+
+		String oldMapName = this.mapName;
 		this.mapName = mapName;
+		if ((context != null) && !mapName.equals(oldMapName)) {
+			context.getBattles().mapNameChanged(this, oldMapName);
+		}
 	}
 
 	/**
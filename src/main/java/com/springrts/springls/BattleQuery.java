@@ -0,0 +1,315 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.springrts.springls;
+
+
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Criteria for selecting and ordering a subset of the open battles.
+ * Criteria which are not set (<code>null</code>) match every battle.
+ * @see Battles#queryBattles(BattleQuery)
+ * @author hoijui
+ */
+public class BattleQuery {
+
+	/**
+	 * The property by which the matching battles get sorted.
+	 */
+	public static enum SortKey {
+		ID,
+		PLAYERS,
+		FREE_SLOTS,
+		MOD,
+		MAP,
+		FOUNDER,
+		TITLE;
+	}
+
+	private String modName;
+	private String mapName;
+	private String founderName;
+	private Integer minFreeSlots;
+	private Boolean locked;
+	private Boolean passworded;
+	private Integer rank;
+	private SortKey sortKey;
+	private boolean descending;
+
+
+	public BattleQuery() {
+
+		this.modName = null;
+		this.mapName = null;
+		this.founderName = null;
+		this.minFreeSlots = null;
+		this.locked = null;
+		this.passworded = null;
+		this.rank = null;
+		this.sortKey = SortKey.ID;
+		this.descending = false;
+	}
+
+
+	/**
+	 * Whether the given battle fulfills all the criteria of this query.
+	 */
+	public boolean matches(Battle battle) {
+
+		if ((modName != null) && !modName.equals(battle.getModName())) {
+			return false;
+		}
+		if ((mapName != null) && !mapName.equals(battle.getMapName())) {
+			return false;
+		}
+		if ((founderName != null) && !founderName.equals(
+				battle.getFounder().getAccount().getName()))
+		{
+			return false;
+		}
+		if ((minFreeSlots != null)
+				&& (battle.freeSlotsCount() < minFreeSlots.intValue()))
+		{
+			return false;
+		}
+		if ((locked != null) && (battle.isLocked() != locked.booleanValue())) {
+			return false;
+		}
+		if ((passworded != null)
+				&& (battle.restricted() != passworded.booleanValue()))
+		{
+			return false;
+		}
+		if ((rank != null) && (battle.getRank() > rank.intValue())) {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Creates a comparator which orders battles as requested by this query.
+	 * Battles which are equal regarding the sort key are ordered by their ID.
+	 */
+	public Comparator<Battle> createComparator() {
+
+		Comparator<Battle> comparator = new BattleComparator(sortKey);
+		if (descending) {
+			comparator = Collections.reverseOrder(comparator);
+		}
+		return comparator;
+	}
+
+	private static class BattleComparator implements Comparator<Battle> {
+
+		private final SortKey sortKey;
+
+		BattleComparator(SortKey sortKey) {
+			this.sortKey = sortKey;
+		}
+
+		@Override
+		public int compare(Battle battle1, Battle battle2) {
+
+			int result;
+			switch (sortKey) {
+				case PLAYERS:
+					result = compareInts(battle1.nonSpectatorCount(),
+							battle2.nonSpectatorCount());
+					break;
+				case FREE_SLOTS:
+					result = compareInts(battle1.freeSlotsCount(),
+							battle2.freeSlotsCount());
+					break;
+				case MOD:
+					result = battle1.getModName().compareToIgnoreCase(
+							battle2.getModName());
+					break;
+				case MAP:
+					result = battle1.getMapName().compareToIgnoreCase(
+							battle2.getMapName());
+					break;
+				case FOUNDER:
+					result = battle1.getFounder().getAccount().getName()
+							.compareToIgnoreCase(
+							battle2.getFounder().getAccount().getName());
+					break;
+				case TITLE:
+					result = battle1.getTitle().compareToIgnoreCase(
+							battle2.getTitle());
+					break;
+				default:
+					result = 0;
+			}
+			if (result == 0) {
+				result = compareInts(battle1.getId(), battle2.getId());
+			}
+
+			return result;
+		}
+
+		private static int compareInts(int x, int y) {
+			return (x < y) ? -1 : ((x == y) ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Only battles running this mod match, if set.
+	 * @return the modName
+	 */
+	public String getModName() {
+		return modName;
+	}
+
+	/**
+	 * Only battles running this mod match, if set.
+	 * @param modName the modName to set
+	 */
+	public void setModName(String modName) {
+		this.modName = modName;
+	}
+
+	/**
+	 * Only battles on this map match, if set.
+	 * @return the mapName
+	 */
+	public String getMapName() {
+		return mapName;
+	}
+
+	/**
+	 * Only battles on this map match, if set.
+	 * @param mapName the mapName to set
+	 */
+	public void setMapName(String mapName) {
+		this.mapName = mapName;
+	}
+
+	/**
+	 * Only battles hosted by the user with this name match, if set.
+	 * @return the founderName
+	 */
+	public String getFounderName() {
+		return founderName;
+	}
+
+	/**
+	 * Only battles hosted by the user with this name match, if set.
+	 * @param founderName the founderName to set
+	 */
+	public void setFounderName(String founderName) {
+		this.founderName = founderName;
+	}
+
+	/**
+	 * Only battles with at least this many open player slots match, if set.
+	 * @return the minFreeSlots
+	 */
+	public Integer getMinFreeSlots() {
+		return minFreeSlots;
+	}
+
+	/**
+	 * Only battles with at least this many open player slots match, if set.
+	 * @param minFreeSlots the minFreeSlots to set
+	 */
+	public void setMinFreeSlots(Integer minFreeSlots) {
+		this.minFreeSlots = minFreeSlots;
+	}
+
+	/**
+	 * Only battles with this locked state match, if set.
+	 * @return the locked
+	 */
+	public Boolean getLocked() {
+		return locked;
+	}
+
+	/**
+	 * Only battles with this locked state match, if set.
+	 * @param locked the locked to set
+	 */
+	public void setLocked(Boolean locked) {
+		this.locked = locked;
+	}
+
+	/**
+	 * Only battles which are (not) password protected match, if set.
+	 * @return the passworded
+	 */
+	public Boolean getPassworded() {
+		return passworded;
+	}
+
+	/**
+	 * Only battles which are (not) password protected match, if set.
+	 * @param passworded the passworded to set
+	 */
+	public void setPassworded(Boolean passworded) {
+		this.passworded = passworded;
+	}
+
+	/**
+	 * Only battles which may be joined with this rank match, if set.
+	 * @return the rank
+	 */
+	public Integer getRank() {
+		return rank;
+	}
+
+	/**
+	 * Only battles which may be joined with this rank match, if set.
+	 * @param rank the rank to set
+	 */
+	public void setRank(Integer rank) {
+		this.rank = rank;
+	}
+
+	/**
+	 * The property by which the matching battles get sorted.
+	 * @return the sortKey
+	 */
+	public SortKey getSortKey() {
+		return sortKey;
+	}
+
+	/**
+	 * The property by which the matching battles get sorted.
+	 * @param sortKey the sortKey to set
+	 */
+	public void setSortKey(SortKey sortKey) {
+		this.sortKey = sortKey;
+	}
+
+	/**
+	 * Whether the matching battles get sorted in descending order.
+	 * @return the descending
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
+
+	/**
+	 * Whether the matching battles get sorted in descending order.
+	 * @param descending the descending to set
+	 */
+	public void setDescending(boolean descending) {
+		this.descending = descending;
+	}
+}
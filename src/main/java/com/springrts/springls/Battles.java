@@ -22,7 +22,17 @@ import com.springrts.springls.util.Misc;
 import com.springrts.springls.util.Processor;
 import com.springrts.springls.util.ProtocolUtil;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.configuration.Configuration;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,16 +41,87 @@ import org.slf4j.LoggerFactory;
  * @author Betalord
  * @author hoijui
  */
-public class Battles implements ContextReceiver {
+public class Battles implements ContextReceiver, Updateable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(Battle.class);
 
 	private List<Battle> battles;
+	/** The same battles as in the list, indexed by their ID. */
+	private Map<Integer, Battle> battlesById;
+	/** The same battles as in the list, indexed by their mod name. */
+	private Map<String, Set<Battle>> battlesByModName;
+	/** The same battles as in the list, indexed by their map name. */
+	private Map<String, Set<Battle>> battlesByMapName;
+	/** Generates the ID of the next battle to be created. */
+	private final AtomicInteger nextId;
+	/**
+	 * Number of battles being played right now.
+	 * @see Battle#isActive()
+	 */
+	private int activeBattlesCount;
+	/**
+	 * Logged in clients which receive the detailed events of all battles.
+	 */
+	private List<Client> allBattlesListeners;
+	/**
+	 * Logged in clients which receive only the detailed events of the battles
+	 * they subscribed to, plus the periodic BATTLESUMMARY.
+	 * @see Client#isBattleSubscriptionsOnly()
+	 */
+	private List<Client> summaryListeners;
+	/**
+	 * Logged in clients which receive the detailed events of the battles they
+	 * were sent, and of all battles opened after they logged in.
+	 * @see Client#isBattleListQueried()
+	 */
+	private List<Client> queryListeners;
+	/** The battles subscribed to, by subscribing client. */
+	private Map<Client, Set<Battle>> subscriptions;
+	/** When the last BATTLESUMMARY check was done. */
+	private long lastSummaryTime;
+	/** The last BATTLESUMMARY line sent to all summary listeners. */
+	private String lastSummary;
+	/**
+	 * Battles with battle status changes collected during the current
+	 * main loop iteration.
+	 * @see Battle#notifyClientsOfBattleStatus(Client)
+	 */
+	private Set<Battle> battlesWithPendingStatuses;
+	/**
+	 * Lines for the clients receiving the events of all battles, collected
+	 * while sending is batched, or <code>null</code> if it is not.
+	 * @see #beginBatch()
+	 */
+	private StringBuilder batchedLines;
+	/** Lines for the subscribers, collected while sending is batched. */
+	private Map<Client, StringBuilder> batchedSubscriberLines;
+	/**
+	 * The battles each client unsubscribed from while sending is batched.
+	 * The client forgets about their users only once the batched lines were
+	 * sent, as they may still refer to them.
+	 */
+	private Map<Client, List<Battle>> batchedUnsubscriptions;
 	private Context context = null;
 
 
 	public Battles() {
+
 		this.battles = new ArrayList<Battle>();
+		this.battlesById = new HashMap<Integer, Battle>();
+		this.battlesByModName = new HashMap<String, Set<Battle>>();
+		this.battlesByMapName = new HashMap<String, Set<Battle>>();
+		this.nextId = new AtomicInteger(0);
+		this.activeBattlesCount = 0;
+		this.allBattlesListeners = new ArrayList<Client>();
+		this.summaryListeners = new ArrayList<Client>();
+		this.queryListeners = new ArrayList<Client>();
+		this.subscriptions = new HashMap<Client, Set<Battle>>();
+		this.lastSummaryTime = System.currentTimeMillis();
+		this.lastSummary = null;
+		this.battlesWithPendingStatuses = new LinkedHashSet<Battle>();
+		this.batchedLines = null;
+		this.batchedSubscriberLines = null;
+		this.batchedUnsubscriptions = null;
 	}
 
 
@@ -53,6 +134,297 @@ public class Battles implements ContextReceiver {
 		}
 	}
 
+	/**
+	 * Sends the battle status changes collected during this main loop
+	 * iteration, and a new BATTLESUMMARY to the summary listeners,
+	 * if the configured interval has passed and anything changed since
+	 * the last one.
+	 */
+	@Override
+	public void update() {
+
+		sendPendingBattleStatuses();
+
+		sendSummary();
+	}
+
+	/**
+	 * Has to be called when the first battle status change of a battle was
+	 * collected during the current main loop iteration.
+	 * @see Battle#notifyClientsOfBattleStatus(Client)
+	 */
+	void battleStatusesPending(Battle battle) {
+		battlesWithPendingStatuses.add(battle);
+	}
+
+	private void sendPendingBattleStatuses() {
+
+		for (Battle battle : battlesWithPendingStatuses) {
+			battle.sendPendingBattleStatuses();
+		}
+		battlesWithPendingStatuses.clear();
+	}
+
+	private void sendSummary() {
+
+		if (summaryListeners.isEmpty()) {
+			return;
+		}
+
+		Configuration conf = context.getService(Configuration.class);
+		long interval = conf.getLong(ServerConfiguration.BATTLE_SUMMARY_INTERVAL)
+				* 1000;
+		long now = System.currentTimeMillis();
+		if ((now - lastSummaryTime) < interval) {
+			return;
+		}
+		lastSummaryTime = now;
+
+		String summary = createSummary();
+		if (!summary.equals(lastSummary)) {
+			lastSummary = summary;
+			context.getClients().sendLineToClients(summaryListeners, summary);
+		}
+	}
+
+	/**
+	 * Creates a BATTLESUMMARY line, which compactly describes all open battles.
+	 * For each battle, it contains the ID, the number of players,
+	 * the number of spectators, the maximum number of players and
+	 * the status bits (1: locked, 2: password protected, 4: in-game),
+	 * separated by spaces. The battles are separated by TABs.
+	 */
+	public String createSummary() {
+
+		StringBuilder summary = new StringBuilder("BATTLESUMMARY");
+		char separator = ' ';
+		for (Battle battle : battles) {
+			int status = 0;
+			if (battle.isLocked()) {
+				status |= 1;
+			}
+			if (battle.restricted()) {
+				status |= 2;
+			}
+			if (battle.inGame()) {
+				status |= 4;
+			}
+			summary.append(separator).append(battle.getId());
+			summary.append(' ').append(battle.nonSpectatorCount());
+			summary.append(' ').append(battle.spectatorCount());
+			summary.append(' ').append(battle.getMaxPlayers());
+			summary.append(' ').append(status);
+			separator = '\t';
+		}
+
+		return summary.toString();
+	}
+
+	/**
+	 * Has to be called when a client logged in, to make it receive
+	 * battle events from then on.
+	 * Clients which only want the events of the battles they subscribed to
+	 * receive the current BATTLESUMMARY instead.
+	 * Clients which query the battles get subscribed to the ones they are
+	 * sent, and to the ones opened from now on.
+	 */
+	public void addListener(Client client) {
+
+		if (client.isBattleSubscriptionsOnly()) {
+			summaryListeners.add(client);
+			client.sendLine(createSummary());
+		} else if (client.isBattleListQueried()) {
+			queryListeners.add(client);
+		} else {
+			allBattlesListeners.add(client);
+		}
+	}
+
+	/**
+	 * Has to be called when clients disconnected,
+	 * to no longer send them any battle events.
+	 * @param clients should allow fast look-ups, like a <code>Set</code>
+	 */
+	public void removeListeners(Collection<Client> clients) {
+
+		// a single pass over each list, even for many clients
+		allBattlesListeners.removeAll(clients);
+		summaryListeners.removeAll(clients);
+		queryListeners.removeAll(clients);
+		for (Client client : clients) {
+			Set<Battle> subscribed = subscriptions.remove(client);
+			if (subscribed != null) {
+				for (Battle battle : subscribed) {
+					battle.removeSubscriber(client);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Subscribes a client to the detailed events of a battle.
+	 * This is only possible for clients which do not receive the events of all
+	 * battles anyway.
+	 * Clients which query the battles are subscribed to each battle they are
+	 * sent, so they only receive the events of battles they know about.
+	 * Clients which only want the presence changes of the users they are
+	 * interested in, get to know the users in the battle.
+	 * @return true if the client was subscribed, false if it was so already,
+	 *   or can not subscribe
+	 * @see Client#isBattleSubscriptionsOnly()
+	 * @see Client#isBattleListQueried()
+	 */
+	public boolean subscribe(Client client, Battle battle) {
+
+		if (client.isAllBattlesListener() || !battle.addSubscriber(client))
+		{
+			return false;
+		}
+		Set<Battle> subscribed = subscriptions.get(client);
+		if (subscribed == null) {
+			subscribed = new HashSet<Battle>();
+			subscriptions.put(client, subscribed);
+		}
+		subscribed.add(battle);
+		context.getClients().introduceBattle(client, battle);
+
+		return true;
+	}
+
+	/**
+	 * Unsubscribes a client from the detailed events of a battle.
+	 * @return true if the client was subscribed before
+	 */
+	public boolean unsubscribe(Client client, Battle battle) {
+
+		if (!battle.removeSubscriber(client)) {
+			return false;
+		}
+		Set<Battle> subscribed = subscriptions.get(client);
+		subscribed.remove(battle);
+		if (subscribed.isEmpty()) {
+			subscriptions.remove(client);
+		}
+		if (batchedUnsubscriptions != null) {
+			List<Battle> unsubscribed = batchedUnsubscriptions.get(client);
+			if (unsubscribed == null) {
+				unsubscribed = new ArrayList<Battle>();
+				batchedUnsubscriptions.put(client, unsubscribed);
+			}
+			unsubscribed.add(battle);
+		} else {
+			context.getClients().forgetBattle(client, battle);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns all logged in clients which want the detailed events
+	 * of the given battle.
+	 * @return a new list of the interested clients
+	 */
+	public List<Client> getInterestedClients(Battle battle) {
+
+		Collection<Client> subscribers = battle.getSubscribers();
+		List<Client> interested = new ArrayList<Client>(
+				allBattlesListeners.size() + subscribers.size());
+		interested.addAll(allBattlesListeners);
+		interested.addAll(subscribers);
+
+		return interested;
+	}
+
+	/**
+	 * Sends a line to all logged in clients which want the detailed events
+	 * of the given battle.
+	 */
+	public void sendToInterestedClients(Battle battle, String line) {
+		sendToInterestedClients(battle, line, null);
+	}
+
+	/**
+	 * Sends a line to all logged in clients which want the detailed events
+	 * of the given battle.
+	 * @param conflationKey may be <code>null</code>
+	 * @see Client#sendConflatableLine(String, String)
+	 */
+	public void sendToInterestedClients(Battle battle, String line,
+			String conflationKey)
+	{
+		if (batchedLines != null) {
+			// conflation is of no use here, as the lines are sent together
+			appendLine(batchedLines, line);
+			for (Client subscriber : battle.getSubscribers()) {
+				StringBuilder lines = batchedSubscriberLines.get(subscriber);
+				if (lines == null) {
+					lines = new StringBuilder();
+					batchedSubscriberLines.put(subscriber, lines);
+				}
+				appendLine(lines, line);
+			}
+			return;
+		}
+
+		context.getClients().sendLineToClients(allBattlesListeners, line,
+				conflationKey);
+		for (Client subscriber : battle.getSubscribers()) {
+			subscriber.sendConflatableLine(line, conflationKey);
+		}
+	}
+
+	private static void appendLine(StringBuilder lines, String line) {
+
+		if (lines.length() != 0) {
+			lines.append(Misc.EOL);
+		}
+		lines.append(line);
+	}
+
+	/**
+	 * Starts collecting the lines sent to interested clients, instead of
+	 * sending them right away.
+	 * This allows to send the events of many battles, for example caused by
+	 * a mass disconnect, with one combined update per client.
+	 * @see #endBatch()
+	 */
+	public void beginBatch() {
+
+		batchedLines = new StringBuilder();
+		batchedSubscriberLines = new LinkedHashMap<Client, StringBuilder>();
+		batchedUnsubscriptions = new LinkedHashMap<Client, List<Battle>>();
+	}
+
+	/**
+	 * Sends the lines collected since {@link #beginBatch()}, and goes back to
+	 * sending lines right away.
+	 */
+	public void endBatch() {
+
+		String lines = batchedLines.toString();
+		Map<Client, StringBuilder> subscriberLines = batchedSubscriberLines;
+		Map<Client, List<Battle>> unsubscriptions = batchedUnsubscriptions;
+		batchedLines = null;
+		batchedSubscriberLines = null;
+		batchedUnsubscriptions = null;
+
+		context.getClients().sendLinesToClients(allBattlesListeners, lines);
+		for (Map.Entry<Client, StringBuilder> subscriber
+				: subscriberLines.entrySet())
+		{
+			subscriber.getKey().sendLines(subscriber.getValue().toString(),
+					null);
+		}
+		for (Map.Entry<Client, List<Battle>> unsubscribed
+				: unsubscriptions.entrySet())
+		{
+			for (Battle battle : unsubscribed.getValue()) {
+				context.getClients().forgetBattle(unsubscribed.getKey(),
+						battle);
+			}
+		}
+	}
+
 	public void verify(Battle battle) {
 
 		if (battle == null) {
@@ -71,18 +443,114 @@ public class Battles implements ContextReceiver {
 	 */
 	public Battle getBattleByID(int battleId) {
 
-		Battle battle = null;
+		if (battleId == Battle.NO_BATTLE_ID) {
+			return null;
+		}
+		return battlesById.get(battleId);
+	}
 
-		if (battleId != Battle.NO_BATTLE_ID) { // only used for speedup
-			for (int i = 0; i < battles.size(); i++) {
-				if (battles.get(i).getId() == battleId) {
-					battle = battles.get(i);
-					break;
-				}
+	/**
+	 * Returns the number of battles being played right now.
+	 * @see Battle#isActive()
+	 */
+	public int getActiveBattlesCount() {
+		return activeBattlesCount;
+	}
+
+	/**
+	 * Has to be called whenever something changed that might affect whether
+	 * the battle is active, in order to keep the active battles count
+	 * up to date.
+	 * @param battle an open battle
+	 * @param wasActive whether the battle was active before the change
+	 * @see Battle#isActive()
+	 */
+	public void battleActivityChanged(Battle battle, boolean wasActive) {
+
+		if (battle.isActive() != wasActive) {
+			activeBattlesCount += wasActive ? -1 : 1;
+		}
+	}
+
+	/**
+	 * Has to be called whenever the map of an open battle changed,
+	 * in order to keep the map name index up to date.
+	 * @param battle an open battle
+	 * @param oldMapName the map name before the change
+	 * @see Battle#setMapName(String)
+	 */
+	public void mapNameChanged(Battle battle, String oldMapName) {
+
+		if (removeFromIndex(battlesByMapName, oldMapName, battle)) {
+			addToIndex(battlesByMapName, battle.getMapName(), battle);
+		}
+	}
+
+	private static void addToIndex(Map<String, Set<Battle>> index, String key,
+			Battle battle)
+	{
+		Set<Battle> keyBattles = index.get(key);
+		if (keyBattles == null) {
+			keyBattles = new LinkedHashSet<Battle>();
+			index.put(key, keyBattles);
+		}
+		keyBattles.add(battle);
+	}
+
+	private static boolean removeFromIndex(Map<String, Set<Battle>> index,
+			String key, Battle battle)
+	{
+		Set<Battle> keyBattles = index.get(key);
+		if ((keyBattles == null) || !keyBattles.remove(battle)) {
+			return false;
+		}
+		if (keyBattles.isEmpty()) {
+			index.remove(key);
+		}
+		return true;
+	}
+
+	private static Collection<Battle> getIndexed(
+			Map<String, Set<Battle>> index, String key)
+	{
+		Set<Battle> keyBattles = index.get(key);
+		if (keyBattles == null) {
+			return Collections.emptySet();
+		}
+		return keyBattles;
+	}
+
+	/**
+	 * Returns all the open battles matching the given query,
+	 * sorted as requested by it.
+	 * If the query is restricted to a mod or a map, only the battles running
+	 * it are looked at, instead of all open battles.
+	 * @param query the criteria the battles have to match
+	 * @return a new list of the matching battles
+	 */
+	public List<Battle> queryBattles(BattleQuery query) {
+
+		Collection<Battle> candidates = battles;
+		if (query.getModName() != null) {
+			candidates = getIndexed(battlesByModName, query.getModName());
+		}
+		if (query.getMapName() != null) {
+			Collection<Battle> mapCandidates
+					= getIndexed(battlesByMapName, query.getMapName());
+			if (mapCandidates.size() < candidates.size()) {
+				candidates = mapCandidates;
 			}
 		}
 
-		return battle;
+		List<Battle> matching = new ArrayList<Battle>(candidates.size());
+		for (Battle battle : candidates) {
+			if (query.matches(battle)) {
+				matching.add(battle);
+			}
+		}
+		Collections.sort(matching, query.createComparator());
+
+		return matching;
 	}
 
 	/** Returns null if index is out of bounds */
@@ -106,9 +574,21 @@ public class Battles implements ContextReceiver {
 
 		battle.applyToClientsAndFounder(new BattleCloser());
 
-		context.getClients().sendToAllRegisteredUsers("BATTLECLOSED "
-				+ battle.getId());
-		battles.remove(battle);
+		sendToInterestedClients(battle, "BATTLECLOSED " + battle.getId());
+		for (Client subscriber : new ArrayList<Client>(
+				battle.getSubscribers()))
+		{
+			unsubscribe(subscriber, battle);
+		}
+		if (battles.remove(battle)) {
+			battlesById.remove(battle.getId());
+			battlesWithPendingStatuses.remove(battle);
+			removeFromIndex(battlesByModName, battle.getModName(), battle);
+			removeFromIndex(battlesByMapName, battle.getMapName(), battle);
+			if (battle.isActive()) {
+				activeBattlesCount--;
+			}
+		}
 	}
 
 	/**
@@ -128,9 +608,12 @@ public class Battles implements ContextReceiver {
 			}
 			client.setBattleID(Battle.NO_BATTLE_ID);
 			battle.removeClientBots(client);
-			context.getClients().sendToAllRegisteredUsers(String.format(
+			sendToInterestedClients(battle, String.format(
 					"LEFTBATTLE %d %s", battle.getId(),
 					client.getAccount().getName()));
+			for (Client subscriber : battle.getSubscribers()) {
+				context.getClients().forgetIfUninterested(subscriber, client);
+			}
 		}
 
 		return true;
@@ -159,25 +642,33 @@ public class Battles implements ContextReceiver {
 
 		client.beginFastWrite();
 		for (int i = 0; i < battles.size(); i++) {
-			final Battle battle = battles.get(i);
-			// make sure that clients behind NAT get local IPs and not external
-			// ones
-			boolean local = battle.getFounder().getIp().equals(client.getIp());
-			client.sendLine(battle.createBattleOpenedCommandEx(local));
-			// We have to send UPDATEBATTLEINFO command too,
-			// in order to tell the user how many spectators are in the battle,
-			// for example.
-			client.sendLine(String.format("UPDATEBATTLEINFO %d %d %d %d %s",
-					battle.getId(),
-					battle.spectatorCount(),
-					ProtocolUtil.boolToNumber(battle.isLocked()),
-					battle.getMapHash(),
-					battle.getMapName()));
-			battle.applyToClients(new BattleJoiner(battle.getId()));
+			sendInfoOnBattleToClient(battles.get(i), client);
 		}
 		client.endFastWrite();
 	}
 
+	/**
+	 * Will send the given battle and the users participating in it to
+	 * the given client.
+	 */
+	public void sendInfoOnBattleToClient(Battle battle, Client client) {
+
+		// make sure that clients behind NAT get local IPs and not external
+		// ones
+		boolean local = battle.getFounder().getIp().equals(client.getIp());
+		client.sendLine(battle.createBattleOpenedCommandEx(local));
+		// We have to send UPDATEBATTLEINFO command too,
+		// in order to tell the user how many spectators are in the battle,
+		// for example.
+		client.sendLine(String.format("UPDATEBATTLEINFO %d %d %d %d %s",
+				battle.getId(),
+				battle.spectatorCount(),
+				ProtocolUtil.boolToNumber(battle.isLocked()),
+				battle.getMapHash(),
+				battle.getMapName()));
+		battle.applyToClients(new BattleJoiner(battle.getId()));
+	}
+
 	/**
 	 * Creates new Battle object from a command that client sent to server.
 	 * This method parses the command 's', and tries to read
@@ -232,8 +723,9 @@ public class Battles implements ContextReceiver {
 			return null;
 		}
 
-		Battle battle = new Battle(type, natType, founder, pass, port,
-				maxPlayers, hash, rank, maphash, mapName, title, modName);
+		Battle battle = new Battle(nextId.getAndIncrement(), type, natType,
+				founder, pass, port, maxPlayers, hash, rank, maphash, mapName,
+				title, modName);
 
 		return battle;
 	}
@@ -244,6 +736,15 @@ public class Battles implements ContextReceiver {
 	public void addBattle(Battle battle) {
 
 		battles.add(battle);
+		battlesById.put(battle.getId(), battle);
+		addToIndex(battlesByModName, battle.getModName(), battle);
+		addToIndex(battlesByMapName, battle.getMapName(), battle);
 		battle.receiveContext(context);
+		battleActivityChanged(battle, false);
+		subscribe(battle.getFounder(), battle);
+		// they get to know about it through BATTLEOPENED
+		for (Client queryListener : queryListeners) {
+			subscribe(queryListener, battle);
+		}
 	}
 }
@@ -0,0 +1,351 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.springrts.springls;
+
+
+import com.springrts.springls.util.Misc;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.configuration.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a single line to a large set of recipients.
+ * Below a configurable number of recipients, this simply calls
+ * {@link Client#sendLine(String)} for each of them.
+ * Above it, the line is encoded only once, and the resulting buffer is
+ * appended to the send queues of the recipients in parallel, split into
+ * chunks. The calling thread waits for all chunks to be enqueued, but not for
+ * the data to be written to the sockets; that is done by
+ * {@link Clients#flushData()} in the main server loop.
+ * As every recipient is handled by exactly one chunk, and the caller only
+ * continues once all chunks are done, the order of lines sent to a single
+ * client is preserved.
+ * @author hoijui
+ */
+public class Broadcaster implements ContextReceiver {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Broadcaster.class);
+
+	/**
+	 * What is left to do on the calling thread after a chunk was enqueued.
+	 */
+	private static class ChunkResult {
+
+		/**
+		 * Clients which can not take the shared buffer,
+		 * and have to be sent the line the usual way.
+		 */
+		private final List<Client> fallback = new ArrayList<Client>(0);
+		/**
+		 * Clients whose send queue was empty before,
+		 * and therefore have to be registered for flushing.
+		 */
+		private final List<Client> toFlush;
+
+		ChunkResult(int size) {
+			this.toFlush = new ArrayList<Client>(size);
+		}
+	}
+
+	/**
+	 * Enqueues a pre-encoded line to a sub-range of the recipients.
+	 */
+	private static class EnqueueChunk implements Callable<ChunkResult> {
+
+		private final List<Client> recipients;
+		private final int from;
+		private final int to;
+		private final Account.Access minAccess;
+		private final ByteBuffer data;
+		private final String conflationKey;
+
+		EnqueueChunk(List<Client> recipients, int from, int to,
+				Account.Access minAccess, ByteBuffer data,
+				String conflationKey)
+		{
+			this.recipients = recipients;
+			this.from = from;
+			this.to = to;
+			this.minAccess = minAccess;
+			this.data = data;
+			this.conflationKey = conflationKey;
+		}
+
+		@Override
+		public ChunkResult call() {
+
+			ChunkResult result = new ChunkResult(to - from);
+			for (int i = from; i < to; i++) {
+				Client recipient = recipients.get(i);
+				if (!recipient.getAccount().getAccess().isAtLeast(minAccess)) {
+					continue;
+				}
+				if (!recipient.isSharedEnqueuePossible()) {
+					result.fallback.add(recipient);
+				} else if (recipient.enqueueShared(data.duplicate(),
+						conflationKey))
+				{
+					result.toFlush.add(recipient);
+				}
+			}
+
+			return result;
+		}
+	}
+
+	private Context context;
+	private ExecutorService executor;
+
+
+	public Broadcaster() {
+
+		this.context = null;
+		this.executor = null;
+	}
+
+
+	@Override
+	public void receiveContext(Context context) {
+		this.context = context;
+	}
+
+	private Configuration getConfiguration() {
+		return context.getService(Configuration.class);
+	}
+
+	private ExecutorService getExecutor() {
+
+		if (executor == null) {
+			int threads = getConfiguration().getInt(
+					ServerConfiguration.BROADCAST_PARALLEL_THREADS);
+			if (threads <= 0) {
+				threads = Runtime.getRuntime().availableProcessors();
+			}
+			final AtomicInteger threadNumber = new AtomicInteger(0);
+			executor = Executors.newFixedThreadPool(threads,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable,
+									"broadcaster-"
+									+ threadNumber.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+
+		return executor;
+	}
+
+	/**
+	 * Sends a line to all recipients which have at least the given access.
+	 * @param recipients must not be modified by anyone while this method runs
+	 * @param line the text to send, without message ID and EOL
+	 * @param minAccess use <code>Account.Access.NONE</code> to send to all
+	 */
+	public void sendLine(List<Client> recipients, String line,
+			Account.Access minAccess)
+	{
+		sendLine(recipients, line, minAccess, null);
+	}
+
+	/**
+	 * Sends a line to all recipients which have at least the given access.
+	 * @param recipients must not be modified by anyone while this method runs
+	 * @param line the text to send, without message ID and EOL
+	 * @param minAccess use <code>Account.Access.NONE</code> to send to all
+	 * @param conflationKey may be <code>null</code>
+	 * @see Client#sendConflatableLine(String, String)
+	 */
+	public void sendLine(List<Client> recipients, String line,
+			Account.Access minAccess, String conflationKey)
+	{
+		Configuration conf = getConfiguration();
+		int threshold = conf.getInt(
+				ServerConfiguration.BROADCAST_PARALLEL_THRESHOLD);
+		if ((threshold <= 0) || (recipients.size() < threshold)) {
+			sendLineSerial(recipients, line, minAccess, conflationKey);
+			return;
+		}
+
+		ByteBuffer data;
+		try {
+			data = context.getServer().getAsciiEncoder().encode(
+					CharBuffer.wrap(line + Misc.EOL));
+		} catch (CharacterCodingException ex) {
+			LOG.warn("Unable to encode broadcast message; sending it"
+					+ " serially", ex);
+			sendLineSerial(recipients, line, minAccess, conflationKey);
+			return;
+		}
+
+		Clients clients = context.getClients();
+		for (ChunkResult chunkResult : enqueueParallel(recipients, minAccess,
+				data, conflationKey))
+		{
+			for (Client client : chunkResult.fallback) {
+				client.sendConflatableLine(line, conflationKey);
+			}
+			for (Client client : chunkResult.toFlush) {
+				clients.enqueueDelayedData(client);
+			}
+		}
+	}
+
+	/**
+	 * Sends multiple lines at once to all recipients which have at least
+	 * the given access.
+	 * The lines are encoded only once, and the resulting buffer is shared
+	 * among the recipients wherever possible.
+	 * @param recipients must not be modified by anyone while this method runs
+	 * @param lines the lines to send, separated by <code>Misc.EOL</code>,
+	 *   without message IDs and trailing EOL
+	 * @param minAccess use <code>Account.Access.NONE</code> to send to all
+	 * @see Client#sendLines(String, ByteBuffer)
+	 */
+	public void sendLines(List<Client> recipients, String lines,
+			Account.Access minAccess)
+	{
+		if (lines.isEmpty()) {
+			return;
+		}
+
+		ByteBuffer data;
+		try {
+			data = context.getServer().getAsciiEncoder().encode(
+					CharBuffer.wrap(lines + Misc.EOL));
+		} catch (CharacterCodingException ex) {
+			LOG.warn("Unable to encode broadcast lines; sending them"
+					+ " one by one", ex);
+			data = null;
+		}
+
+		int threshold = getConfiguration().getInt(
+				ServerConfiguration.BROADCAST_PARALLEL_THRESHOLD);
+		if ((data == null) || (threshold <= 0)
+				|| (recipients.size() < threshold))
+		{
+			for (int i = 0; i < recipients.size(); i++) {
+				Client toBeNotified = recipients.get(i);
+				if (toBeNotified.getAccount().getAccess().isAtLeast(minAccess)) {
+					toBeNotified.sendLines(lines, data);
+				}
+			}
+			return;
+		}
+
+		Clients clients = context.getClients();
+		for (ChunkResult chunkResult : enqueueParallel(recipients, minAccess,
+				data, null))
+		{
+			for (Client client : chunkResult.fallback) {
+				client.sendLines(lines, null);
+			}
+			for (Client client : chunkResult.toFlush) {
+				clients.enqueueDelayedData(client);
+			}
+		}
+	}
+
+	/**
+	 * Enqueues pre-encoded data to the recipients, split into chunks which are
+	 * processed in parallel.
+	 * @return the results of all chunks which did not fail
+	 */
+	private List<ChunkResult> enqueueParallel(List<Client> recipients,
+			Account.Access minAccess, ByteBuffer data, String conflationKey)
+	{
+		int chunkSize = Math.max(1, getConfiguration().getInt(
+				ServerConfiguration.BROADCAST_PARALLEL_CHUNK_SIZE));
+		List<EnqueueChunk> chunks = new ArrayList<EnqueueChunk>(
+				(recipients.size() / chunkSize) + 1);
+		for (int from = 0; from < recipients.size(); from += chunkSize) {
+			int to = Math.min(from + chunkSize, recipients.size());
+			chunks.add(new EnqueueChunk(recipients, from, to, minAccess,
+					data, conflationKey));
+		}
+
+		List<Future<ChunkResult>> results
+				= new ArrayList<Future<ChunkResult>>(chunks.size());
+		for (EnqueueChunk chunk : chunks) {
+			results.add(getExecutor().submit(chunk));
+		}
+
+		List<ChunkResult> chunkResults
+				= new ArrayList<ChunkResult>(results.size());
+		for (Future<ChunkResult> result : results) {
+			ChunkResult chunkResult = waitFor(result);
+			if (chunkResult != null) {
+				chunkResults.add(chunkResult);
+			}
+		}
+
+		return chunkResults;
+	}
+
+	/**
+	 * Waits for a chunk to be enqueued, even if we get interrupted,
+	 * as the recipients list must not change while chunks are running.
+	 * @return <code>null</code> if the chunk failed
+	 */
+	private static ChunkResult waitFor(Future<ChunkResult> result) {
+
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return result.get();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				} catch (ExecutionException ex) {
+					LOG.error("Failed to enqueue a broadcast chunk", ex);
+					return null;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void sendLineSerial(List<Client> recipients, String line,
+			Account.Access minAccess, String conflationKey)
+	{
+		for (int i = 0; i < recipients.size(); i++) {
+			Client toBeNotified = recipients.get(i);
+			if (toBeNotified.getAccount().getAccess().isAtLeast(minAccess)) {
+				toBeNotified.sendConflatableLine(line, conflationKey);
+			}
+		}
+	}
+}
@@ -27,6 +27,7 @@ import java.io.PrintStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import org.apache.commons.configuration.Configuration;
@@ -80,6 +81,12 @@ public class Channel implements ContextReceiver, LiveStateListener {
 	private String key;
 	/** The clients participating in this channel */
 	private List<Client> clients;
+	/**
+	 * The clients participating in this channel, which only want the
+	 * presence changes of the users they are interested in.
+	 * @see Client#isPresenceInterestsOnly()
+	 */
+	private List<Client> presenceInterestsOnlyClients;
 	/**
 	 * Contains a list of user names which are muted
 	 * (not allowed to talk in the channel).
@@ -100,6 +107,7 @@ public class Channel implements ContextReceiver, LiveStateListener {
 		topicAuthor = "";
 		key = KEY_NONE;
 		clients = new ArrayList<Client>();
+		presenceInterestsOnlyClients = new ArrayList<Client>(0);
 		logFile = createDefaultActivityLogFilePath(name);
 		logging = false;
 		fileLog = null;
@@ -125,6 +133,7 @@ public class Channel implements ContextReceiver, LiveStateListener {
 	public void receiveContext(Context context) {
 
 		this.context = context;
+		muteList.receiveContext(context);
 		actualiseToConfiguration();
 	}
 
@@ -211,12 +220,28 @@ public class Channel implements ContextReceiver, LiveStateListener {
 		}
 
 		clients.add(client);
+		if (client.isPresenceInterestsOnly()) {
+			presenceInterestsOnlyClients.add(client);
+		}
 	}
 
 	public boolean removeClient(Client client) {
+
+		if (client.isPresenceInterestsOnly()) {
+			presenceInterestsOnlyClients.remove(client);
+		}
 		return clients.remove(client);
 	}
 
+	/**
+	 * Returns the clients participating in this channel, which only want
+	 * the presence changes of the users they are interested in.
+	 * @see Client#isPresenceInterestsOnly()
+	 */
+	public List<Client> getPresenceInterestsOnlyClients() {
+		return Collections.unmodifiableList(presenceInterestsOnlyClients);
+	}
+
 	public boolean isClientInThisChannel(Client client) {
 		return (clients.indexOf(client) != -1);
 	}
@@ -236,6 +261,15 @@ public class Channel implements ContextReceiver, LiveStateListener {
 		}
 	}
 
+	/**
+	 * Sends multiple lines at once to all clients in this channel.
+	 * Unlike {@link #sendLineToClients(String)}, this does not log them.
+	 * @param lines separated by <code>Misc.EOL</code>
+	 */
+	public void sendLinesToClients(String lines) {
+		context.getClients().sendLinesToClients(clients, lines);
+	}
+
 	/** Sends a text to all clients in this channel */
 	public void sendLineToClients(String msg) {
 
@@ -246,9 +280,7 @@ public class Channel implements ContextReceiver, LiveStateListener {
 			fileLog.println(timeFormat.format(new Date()));
 			fileLog.println(msg);
 		}
-		for (int i = 0; i < clients.size(); i++) {
-			clients.get(i).sendLine(msg);
-		}
+		context.getClients().sendLineToClients(clients, msg);
 	}
 
 	public boolean isLocked() {
@@ -19,7 +19,10 @@ package com.springrts.springls;
 
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
 
 /**
  * @author Betalord
@@ -27,48 +30,72 @@ import java.util.List;
  */
 public class Channels implements ContextReceiver, LiveStateListener, Updateable
 {
+	/**
+	 * Orders mutes by the time they expire, earliest first.
+	 */
+	private static final Comparator<MuteList.MuteEntry> EXPIRE_TIME_COMPARATOR
+			= new Comparator<MuteList.MuteEntry>() {
+				@Override
+				public int compare(MuteList.MuteEntry mute1,
+						MuteList.MuteEntry mute2)
+				{
+					long diff = mute1.getExpireTime() - mute2.getExpireTime();
+					return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+				}
+			};
+
 	private List<Channel> channels;
 	private Context context;
 
 	/**
-	 * In this interval, all channel mute lists will be checked
-	 * for expirations and purged accordingly. In milliseconds.
-	 */
-	private long purgeMutesInterval = 1000 * 3;
-	/**
-	 * Time when we last purged mute lists of all channels.
-	 * @see java.lang.System#currentTimeMillis()
+	 * Temporary mutes of all channels, ordered by expire time.
+	 * Entries which got unmuted manually in the meantime are left in here,
+	 * and are ignored by their mute list once they are due.
 	 */
-	private long lastMutesPurgeTime = System.currentTimeMillis();
+	private Queue<MuteList.MuteEntry> muteExpiries;
 
 
 	public Channels() {
 
 		channels = new ArrayList<Channel>();
 		context = null;
+		muteExpiries = new PriorityQueue<MuteList.MuteEntry>(16,
+				EXPIRE_TIME_COMPARATOR);
 	}
 
 
 	@Override
 	public void update() {
-		purgeMuteLists();
+		processMuteExpiries();
 	}
 
 	/**
-	 * Purges the mute-lists of all channels
+	 * Removes all mutes that are due from their mute lists.
 	 */
-	private void purgeMuteLists() {
+	private void processMuteExpiries() {
+
+		if (muteExpiries.isEmpty()) {
+			return;
+		}
 
-		if ((System.currentTimeMillis() - lastMutesPurgeTime)
-				> purgeMutesInterval)
+		long now = System.currentTimeMillis();
+		MuteList.MuteEntry mute;
+		while (((mute = muteExpiries.peek()) != null)
+				&& (mute.getExpireTime() <= now))
 		{
-			lastMutesPurgeTime = System.currentTimeMillis();
-			for (Channel channel : channels) {
-				channel.getMuteList().clearExpiredOnes();
-			}
+			muteExpiries.poll();
+			mute.getMuteList().expire(mute);
 		}
 	}
 
+	/**
+	 * Schedules a temporary mute to be removed from its mute list
+	 * once it expires.
+	 */
+	void scheduleMuteExpiry(MuteList.MuteEntry mute) {
+		muteExpiries.add(mute);
+	}
+
 	@Override
 	public void receiveContext(Context context) {
 
@@ -177,6 +204,11 @@ public class Channels implements ContextReceiver, LiveStateListener, Updateable
 
 		client.beginFastWrite();
 
+		if (client.isPresenceInterestsOnly()) {
+			for (int i = 0; i < chan.getClientsSize(); i++) {
+				context.getClients().introduce(client, chan.getClient(i));
+			}
+		}
 		for (int i = 0; i < chan.getClientsSize(); i++) {
 			sb.append(' ').append(chan.getClient(i).getAccount().getName());
 			c++;
@@ -236,6 +268,7 @@ public class Channels implements ContextReceiver, LiveStateListener, Updateable
 		for (int i = 0; i < chan.getClientsSize(); i++) {
 			Client toBeNotified = chan.getClient(i);
 			if (toBeNotified != client) {
+				context.getClients().introduce(toBeNotified, client);
 				toBeNotified.sendLine(cmd);
 			}
 		}
@@ -21,6 +21,7 @@ package com.springrts.springls;
 import com.springrts.springls.ip2country.IP2CountryService;
 import com.springrts.springls.util.Misc;
 import com.springrts.springls.util.ProtocolUtil;
+import java.awt.Color;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
@@ -31,12 +32,15 @@ import java.nio.channels.SocketChannel;
 import java.nio.charset.CharacterCodingException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import org.apache.commons.configuration.Configuration;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,7 +53,7 @@ import org.slf4j.LoggerFactory;
  * @author Betalord
  * @author hoijui
  */
-public class Client extends TeamController implements ContextReceiver {
+public class Client implements ContextReceiver {
 
 	private static final Logger LOG = LoggerFactory.getLogger(Client.class);
 
@@ -64,6 +68,21 @@ public class Client extends TeamController implements ContextReceiver {
 	 */
 	public static final String NO_SCRIPT_PASSWORD = "";
 
+	/**
+	 * Bits assigned to the compatibility flags registered with the server
+	 * (see {@link Server#getSupportedCompFlags()}), in order of first use.
+	 * A flag keeps its bit for the life-time of the process.
+	 * @see #setCompatFlags(List)
+	 */
+	private static final Map<String, Integer> COMPAT_FLAG_BITS
+			= new HashMap<String, Integer>();
+
+	/**
+	 * The battle state reported for clients which are not in a battle.
+	 * This must never be modified.
+	 */
+	private static final TeamController NO_BATTLE_STATE = new TeamController();
+
 	/**
 	 * If false, then this client is not "valid" anymore.
 	 * We already killed him and closed his socket.
@@ -105,11 +124,23 @@ public class Client extends TeamController implements ContextReceiver {
 	private int requestedBattleID;
 	/**
 	 * List of channels user is participating in.
+	 * This is <code>null</code> while not in any channel.
+	 */
+	private List<Channel> channels;
+	/**
+	 * The battle related state of this client, like team, ally team and team
+	 * color. This is <code>null</code> while not in a battle.
+	 * @see #getBattleState()
 	 */
-	private List<Channel> channels = new ArrayList<Channel>();
+	private TeamController battleState;
 
 	private SocketChannel sockChan;
 	private SelectionKey selKey;
+	/**
+	 * Received data not yet processed.
+	 * This is <code>null</code> while there is nothing left to process,
+	 * so idle connections do not hold on to a buffer.
+	 */
 	private StringBuilder recvBuf;
 	/**
 	 * This is the message/command ID used when sending command
@@ -118,12 +149,38 @@ public class Client extends TeamController implements ContextReceiver {
 	 * NO_MSG_ID means no ID is used.
 	 */
 	private int myMsgId = NO_MSG_ID;
+	/**
+	 * Whether a command of this client is being processed asynchronously,
+	 * so its further commands have to wait.
+	 * @see com.springrts.springls.commands.AsyncCommandExecutor
+	 */
+	private boolean commandsSuspended = false;
 	/**
 	 * Queue of "delayed data".
 	 * We failed sending this the first time, so we will have to try sending it
 	 * again some time later.
+	 * This is the bulk lane, holding everything but control lines.
+	 * Both lanes are <code>null</code> while there is nothing to send.
+	 */
+	private Queue<ByteBuffer> sendQueue;
+	/**
+	 * Queue of "delayed data" holding control lines,
+	 * like replies to this client's own requests, which are sent before
+	 * anything in the bulk lane.
+	 * @see #isControlLine(String)
+	 */
+	private Queue<ByteBuffer> controlSendQueue;
+	/**
+	 * The last data enqueued for each conflation key, while the send queue
+	 * is not empty. This is <code>null</code> until first needed.
+	 * @see #sendConflatableLine(String, String)
+	 */
+	private Map<String, ByteBuffer> conflatableData;
+	/**
+	 * Number of buffers in the send queue which were superseded by newer
+	 * data with the same conflation key, and will not be sent.
 	 */
-	private Queue<ByteBuffer> sendQueue = new LinkedList<ByteBuffer>();
+	private int obsoleteDataCount;
 	/**
 	 * Temporary StringBuilder used by some internal methods.
 	 * @see beginFastWrite()
@@ -160,15 +217,6 @@ public class Client extends TeamController implements ContextReceiver {
 	 * @see java.lang.System#currentTimeMillis()
 	 */
 	private long timeOfLastReceive;
-	/**
-	 * Does the client accept accountIDs in ADDUSER command?
-	 */
-	private boolean acceptAccountIDs;
-	/**
-	 * Does the client accept JOINBATTLEREQUEST command?
-	 */
-	private boolean handleBattleJoinAuthorization;
-
 	private Context context = null;
 
 	/**
@@ -179,12 +227,6 @@ public class Client extends TeamController implements ContextReceiver {
 	 */
 	private String scriptPassword;
 
-	/**
-	 * Does the client accept the scriptPassord argument to the
-	 * JOINEDBATTLE command?
-	 */
-	private boolean scriptPasswordSupported;
-
 	/**
 	 * A list of compatibility-flags, each representing a certain minor change
 	 * in protocol since the last protocol version number release.
@@ -196,8 +238,15 @@ public class Client extends TeamController implements ContextReceiver {
 	 *
 	 * See the "Recent Changes" section or the LOGIN command
 	 * in the lobby protocol documentation for a list of the current flags.
+	 * Each bit represents one of the {@link #COMPAT_FLAG_BITS}.
 	 */
-	private List<String> compatFlags;
+	private int compatFlags;
+	/**
+	 * The compatibility flags sent by the client which have no bit assigned,
+	 * because the server did not register them at login time.
+	 * <code>null</code> if there are none.
+	 */
+	private Set<String> otherCompatFlags;
 
 
 	public Client(SocketChannel sockChan) {
@@ -208,31 +257,24 @@ public class Client extends TeamController implements ContextReceiver {
 		this.account = new Account();
 		this.sockChan = sockChan;
 		this.ip = sockChan.socket().getInetAddress();
-		// this fixes the issue with local user connecting to the server at
-		// "127.0.0.1", as he can not host battles with that ip
-		if (ip.isLoopbackAddress()) {
-			InetAddress newIP = Misc.getLocalIpAddress();
-			if (newIP != null) {
-				ip = newIP;
-			} else {
-				LOG.warn("Could not resolve local IP address."
-						+ " The user may have problems with hosting battles.");
-			}
-		}
 		localIp = ip; // will be changed later once the client logs in
 		udpSourcePort = 0; // yet unknown
 		selKey = null;
-		recvBuf = new StringBuilder();
+		recvBuf = null;
+		channels = null;
+		battleState = null;
+		sendQueue = null;
+		controlSendQueue = null;
 		inGame = false;
 		away = false;
-		locale = ProtocolUtil.countryToLocale(ProtocolUtil.COUNTRY_UNKNOWN);
+		locale = null; // looked up on first use, see getLocale()
 		inGameTime = 0;
 		battleID = Battle.NO_BATTLE_ID;
 		requestedBattleID = Battle.NO_BATTLE_ID;
 		cpu = 0;
 		scriptPassword = NO_SCRIPT_PASSWORD;
-		scriptPasswordSupported = false;
-		compatFlags = new ArrayList<String>(0);
+		compatFlags = 0;
+		otherCompatFlags = null;
 
 		timeOfLastReceive = System.currentTimeMillis();
 	}
@@ -243,16 +285,18 @@ public class Client extends TeamController implements ContextReceiver {
 
 		this.context = context;
 
-		// TODO when bundle-context is available in ctor, move this code there
-		IP2CountryService ip2CountryService = context.getService(IP2CountryService.class);
-		if (ip2CountryService != null) {
-			setLocale(ip2CountryService.getLocale(ip));
+		// this fixes the issue with local user connecting to the server at
+		// "127.0.0.1", as he can not host battles with that ip
+		if (ip.isLoopbackAddress()) {
+			InetAddress newIP = context.getServer().getLocalIpAddress();
+			if (newIP != null) {
+				ip = newIP;
+				localIp = ip;
+			} else {
+				LOG.warn("Could not resolve local IP address."
+						+ " The user may have problems with hosting battles.");
+			}
 		}
-
-		Set<String> supportedCompFlags = context.getServer().getSupportedCompFlags();
-		supportedCompFlags.add("a");
-		supportedCompFlags.add("b");
-		supportedCompFlags.add("sp");
 	}
 
 	@Override
@@ -295,20 +339,84 @@ public class Client extends TeamController implements ContextReceiver {
 		this.myMsgId = msgId;
 	}
 
+	/**
+	 * Returns the ID which is currently added to all messages sent to this
+	 * client.
+	 * @see #setSendMsgId(int)
+	 */
+	public int getSendMsgId() {
+		return myMsgId;
+	}
+
+	/**
+	 * Whether the commands received from this client are not processed
+	 * for now, because an earlier one is still being processed
+	 * asynchronously.
+	 */
+	public boolean isCommandProcessingSuspended() {
+		return commandsSuspended;
+	}
+
+	/**
+	 * Sets whether the commands received from this client are not processed
+	 * for now.
+	 * @see #isCommandProcessingSuspended()
+	 */
+	public void setCommandProcessingSuspended(boolean commandsSuspended) {
+		this.commandsSuspended = commandsSuspended;
+	}
+
 	/**
 	 * Will prefix the message with a msgId value, if it was previously
 	 * set via setSendMsgId() method.
 	 */
 	public boolean sendLine(String text) {
-		return sendLine(text, myMsgId);
+		return sendLine(text, myMsgId, null, isControlLine(text));
+	}
+
+	/**
+	 * Whether a line should be sent through the control lane,
+	 * possibly overtaking bulk data enqueued earlier.
+	 * This is the case for replies to a clients own requests, which do not
+	 * depend on the order of other lines, and for server messages.
+	 */
+	private static boolean isControlLine(String text) {
+
+		int cmdEnd = text.indexOf(' ');
+		String cmd = (cmdEnd == -1) ? text : text.substring(0, cmdEnd);
+
+		return cmd.endsWith("FAILED") || cmd.endsWith("DENIED")
+				|| cmd.endsWith("DENY") || cmd.endsWith("ACCEPTED")
+				|| cmd.equals("TESTLOGINACCEPT") || cmd.equals("PONG")
+				|| cmd.equals("SERVERMSG") || cmd.equals("SERVERMSGBOX");
+	}
+
+	/**
+	 * Sends a line which describes the latest state of some object,
+	 * like the status of a user.
+	 * If this client is lagging behind, and an earlier line with the same
+	 * conflation key was not yet sent, that line is dropped,
+	 * so the backlog contains at most one line per object.
+	 * @param conflationKey identifies the object described by the line,
+	 *   for example "CLIENTSTATUS username";
+	 *   <code>null</code> means the line is never dropped
+	 * @see #sendLine(String)
+	 */
+	public boolean sendConflatableLine(String text, String conflationKey) {
+		return sendLine(text, myMsgId, conflationKey,
+				(conflationKey == null) && isControlLine(text));
 	}
 
 	/**
 	 * @param msgId overrides any previously set message ID,
 	 *   use NO_MSG_ID for none.
+	 * @param control whether to use the control lane instead of the bulk lane
 	 * @see #setSendMsgId(int msgId)
+	 * @see #sendConflatableLine(String, String)
 	 */
-	private boolean sendLine(String text, int msgId) {
+	private boolean sendLine(String text, int msgId, String conflationKey,
+			boolean control)
+	{
 
 		if (!alive || halfDead) {
 			return false;
@@ -362,10 +470,8 @@ public class Client extends TeamController implements ContextReceiver {
 				return false;
 			}
 
-			if (!sendQueue.isEmpty()) {
-				sendQueue.add(buf);
-			} else {
-				sendQueue.add(buf);
+			boolean wasEmpty = enqueue(buf, conflationKey, control);
+			if (wasEmpty) {
 				boolean empty = tryToFlushData();
 				if (!empty) {
 					context.getClients().enqueueDelayedData(this);
@@ -381,17 +487,139 @@ public class Client extends TeamController implements ContextReceiver {
 		return true;
 	}
 
-	public void sendWelcomeMessage() {
+	/**
+	 * Whether a pre-encoded line, shared with other clients, may be appended
+	 * to this clients send queue directly.
+	 * This is not the case if the line would have to be modified for this
+	 * client (message ID prefix), or if it would have to bypass the send
+	 * queue (fast-write mode).
+	 * @see #enqueueShared(ByteBuffer, String)
+	 */
+	boolean isSharedEnqueuePossible() {
+		return (alive && !halfDead && (sockChan != null) && (fastWrite == null)
+				&& (myMsgId == NO_MSG_ID) && !LOG.isTraceEnabled());
+	}
+
+	/**
+	 * Appends pre-encoded data to the send queue, without trying to write it
+	 * to the socket.
+	 * This may be called from a thread other then the main server thread,
+	 * as long as the main thread waits for it to finish.
+	 * @param data the encoded line, including EOL; its position is changed
+	 *   when it is sent, so it has to be a duplicate of any shared buffer
+	 * @param conflationKey see {@link #sendConflatableLine(String, String)}
+	 * @return <code>true</code> if the send queue was empty before,
+	 *   which means the caller has to register this client with
+	 *   {@link Clients#enqueueDelayedData(Client)}
+	 * @see #isSharedEnqueuePossible()
+	 */
+	boolean enqueueShared(ByteBuffer data, String conflationKey) {
+		return enqueue(data, conflationKey, false);
+	}
+
+	/**
+	 * Appends data to one of the send queues, dropping earlier, not yet sent
+	 * data with the same conflation key.
+	 * @param conflationKey may be <code>null</code>; has to be so for
+	 *   the control lane
+	 * @param control whether to use the control lane instead of the bulk lane
+	 * @return <code>true</code> if both send queues were empty before
+	 */
+	private boolean enqueue(ByteBuffer data, String conflationKey,
+			boolean control)
+	{
+		boolean wasEmpty = isSendQueueEmpty();
+		if (control) {
+			if (controlSendQueue == null) {
+				controlSendQueue = new LinkedList<ByteBuffer>();
+			}
+			controlSendQueue.add(data);
+			return wasEmpty;
+		}
+		if (sendQueue == null) {
+			sendQueue = new LinkedList<ByteBuffer>();
+		}
+		if (conflationKey != null) {
+			if (conflatableData == null) {
+				conflatableData = new HashMap<String, ByteBuffer>();
+			}
+			ByteBuffer superseded = conflatableData.put(conflationKey, data);
+			if ((superseded != null) && (superseded.position() == 0)
+					&& superseded.hasRemaining())
+			{
+				// nothing of it was sent yet, so we may skip it entirely;
+				// this keeps its place in the queue, which is cheaper than
+				// removing it, and the new data is appended to the tail,
+				// so it stays in order with any lines sent in between
+				superseded.position(superseded.limit());
+				obsoleteDataCount++;
+				if (obsoleteDataCount > (sendQueue.size() / 2)) {
+					removeObsoleteData();
+				}
+			}
+		}
+		sendQueue.add(data);
+		return wasEmpty;
+	}
+
+	private boolean isSendQueueEmpty() {
+		return ((sendQueue == null) || sendQueue.isEmpty())
+				&& ((controlSendQueue == null) || controlSendQueue.isEmpty());
+	}
+
+	/**
+	 * Removes all superseded buffers from the send queue,
+	 * to free their memory.
+	 */
+	private void removeObsoleteData() {
+
+		Iterator<ByteBuffer> queued = sendQueue.iterator();
+		while (queued.hasNext()) {
+			if (!queued.next().hasRemaining()) {
+				queued.remove();
+			}
+		}
+		obsoleteDataCount = 0;
+	}
+
+	/**
+	 * Sends one or multiple lines at once.
+	 * If possible, the pre-encoded data is appended to the send queue
+	 * directly, which allows to share it among multiple clients.
+	 * Otherwise, the lines are sent one by one through
+	 * {@link #sendLine(String)}.
+	 * @param lines the lines to send, separated by <code>Misc.EOL</code>
+	 * @param encoded <code>lines</code> encoded and followed by an EOL,
+	 *   or <code>null</code> if not available; it is not modified
+	 */
+	public boolean sendLines(String lines, ByteBuffer encoded) {
+
+		if (lines.isEmpty()) {
+			return true;
+		}
 
-		Configuration conf = context.getService(Configuration.class);
+		if (!isSharedEnqueuePossible()) {
+			boolean sent = true;
+			for (String line : lines.split(Misc.EOL)) {
+				sent = sendLine(line) && sent;
+			}
+			return sent;
+		} else if (encoded == null) {
+			return sendLine(lines);
+		}
+
+		boolean wasEmpty = enqueueShared(encoded.duplicate(), null);
+		if (wasEmpty && !tryToFlushData()) {
+			context.getClients().enqueueDelayedData(this);
+		}
+		return true;
+	}
+
+	public void sendWelcomeMessage() {
 
-		// the welcome messages command-name is hardcoded to TASSERVER
-		// XXX maybe change TASSERVER to WELCOME or the like -> protocol change
-		sendLine(String.format("TASSERVER %s %s %d %d",
-				conf.getString(ServerConfiguration.LOBBY_PROTOCOL_VERSION),
-				conf.getString(ServerConfiguration.ENGINE_VERSION),
-				conf.getInt(ServerConfiguration.NAT_PORT),
-				conf.getBoolean(ServerConfiguration.LAN_MODE) ? 1 : 0));
+		Clients clients = context.getClients();
+		sendLines(clients.getWelcomeMessage(),
+				clients.getEncodedWelcomeMessage());
 	}
 
 	/** Should only be called by Clients.killClient() method! */
@@ -428,12 +656,15 @@ public class Client extends TeamController implements ContextReceiver {
 		if (chan == null) {
 			chan = new Channel(chanName);
 			context.getChannels().addChannel(chan);
-		} else if (this.channels.indexOf(chan) != -1) {
+		} else if ((channels != null) && channels.contains(chan)) {
 			// already in the channel
 			return null;
 		}
 
 		chan.addClient(this);
+		if (channels == null) {
+			channels = new ArrayList<Channel>(1);
+		}
 		this.channels.add(chan);
 		return chan;
 	}
@@ -469,7 +700,13 @@ public class Client extends TeamController implements ContextReceiver {
 					chan.getClient(i).sendLine(messageStr);
 				}
 			}
-			this.channels.remove(chan);
+			if (channels != null) {
+				channels.remove(chan);
+				if (channels.isEmpty()) {
+					channels = null;
+				}
+			}
+			context.getClients().forgetChannelMembers(chan, this);
 		}
 
 		return left;
@@ -482,10 +719,32 @@ public class Client extends TeamController implements ContextReceiver {
 	 */
 	public void leaveAllChannels(String reason) {
 
-		while (!channels.isEmpty()) {
+		while (channels != null) {
 			leaveChannel(channels.get(0), reason);
 		}
-		this.channels.clear();
+	}
+
+	/**
+	 * Forgets about all the channels this user is participating in, without
+	 * leaving them.
+	 * This is used when the caller already removed the client from all its
+	 * channels.
+	 * @see Clients#killClient(Client, String)
+	 */
+	void forgetChannels() {
+		channels = null;
+	}
+
+	/**
+	 * Returns the channels this user is participating in.
+	 * @return an unmodifiable view of the channels list
+	 */
+	public List<Channel> getChannels() {
+
+		if (channels == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(channels);
 	}
 
 	/**
@@ -495,6 +754,9 @@ public class Client extends TeamController implements ContextReceiver {
 	 */
 	public Channel getChannel(String chanName) {
 
+		if (channels == null) {
+			return null;
+		}
 		for (int i = 0; i < channels.size(); i++) {
 			if (channels.get(i).getName().equals(chanName)) {
 				return channels.get(i);
@@ -504,21 +766,28 @@ public class Client extends TeamController implements ContextReceiver {
 	}
 
 	/**
-	 * Tries to send the data from the sendQueue.
+	 * Tries to send the data from the send queues.
+	 * The control lane is sent first, but lanes are only switched
+	 * at the end of a buffer, so lines never get mixed.
 	 * @return true if all data has been flushed; false otherwise.
 	 */
 	public boolean tryToFlushData() {
 
 		if (!alive || halfDead) {
 			// disregard any other scheduled writes:
-			while (sendQueue.size() != 0) {
-				sendQueue.remove();
-			}
+			sendQueueEmptied();
 			return true; // no more data left to be flushed, so return true
 		}
 
-		ByteBuffer buf;
-		while ((buf = sendQueue.peek()) != null) {
+		Queue<ByteBuffer> lane;
+		while ((lane = nextLane()) != null) {
+			ByteBuffer buf = lane.peek();
+			if (!buf.hasRemaining()) {
+				// superseded by newer data with the same conflation key
+				lane.remove();
+				obsoleteDataCount--;
+				continue;
+			}
 			try {
 				sockChan.write(buf);
 
@@ -530,7 +799,7 @@ public class Client extends TeamController implements ContextReceiver {
 					break;
 				}
 				// remove element from queue (it was sent entirely)
-				sendQueue.remove();
+				lane.remove();
 			} catch (ClosedChannelException ccex) {
 				// no point sending the rest to the closed channel
 				if (alive) {
@@ -547,7 +816,44 @@ public class Client extends TeamController implements ContextReceiver {
 			}
 		}
 
-		return sendQueue.size() == 0;
+		if (isSendQueueEmpty()) {
+			sendQueueEmptied();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the send queue to send the next buffer from,
+	 * or <code>null</code> if both are empty.
+	 */
+	private Queue<ByteBuffer> nextLane() {
+
+		ByteBuffer bulkHead = (sendQueue == null) ? null : sendQueue.peek();
+		if ((bulkHead != null) && (bulkHead.position() > 0)
+				&& bulkHead.hasRemaining())
+		{
+			// finish the partly sent buffer first
+			return sendQueue;
+		}
+		if ((controlSendQueue != null) && !controlSendQueue.isEmpty()) {
+			return controlSendQueue;
+		}
+		if (bulkHead != null) {
+			return sendQueue;
+		}
+		return null;
+	}
+
+	/**
+	 * Releases the send queues, so idle connections do not hold on to them.
+	 */
+	private void sendQueueEmptied() {
+
+		sendQueue = null;
+		controlSendQueue = null;
+		conflatableData = null;
+		obsoleteDataCount = 0;
 	}
 
 	public void beginFastWrite() {
@@ -574,7 +880,7 @@ public class Client extends TeamController implements ContextReceiver {
 		if (data.isEmpty()) {
 			return;
 		}
-		sendLine(data);
+		sendLine(data, myMsgId, null, false);
 	}
 
 
@@ -771,9 +1077,136 @@ public class Client extends TeamController implements ContextReceiver {
 		this.battleID = battleID;
 		if (battleID == Battle.NO_BATTLE_ID) {
 			setScriptPassword(NO_SCRIPT_PASSWORD);
+			battleState = null;
 		}
 	}
 
+	/**
+	 * Returns the battle related state of this client, like team, ally team
+	 * and team color.
+	 * It only exists while the client is in a battle, and is created by this
+	 * method if needed.
+	 * @see #setBattleID(int)
+	 * @return the battle state, never <code>null</code>
+	 */
+	public TeamController getBattleState() {
+
+		if (battleState == null) {
+			battleState = new TeamController();
+		}
+		return battleState;
+	}
+
+	/**
+	 * Returns the battle state for reading only, which is the default one,
+	 * if the client is not in a battle.
+	 */
+	private TeamController readBattleState() {
+		return (battleState == null) ? NO_BATTLE_STATE : battleState;
+	}
+
+	/**
+	 * See the 'MYBATTLESTATUS' command for valid values
+	 * @see TeamController#getBattleStatus()
+	 */
+	public int getBattleStatus() {
+		return readBattleState().getBattleStatus();
+	}
+
+	/**
+	 * See the 'MYBATTLESTATUS' command for valid values
+	 * @see TeamController#setBattleStatus(int)
+	 */
+	public void setBattleStatus(int battleStatus) {
+		getBattleState().setBattleStatus(battleStatus);
+	}
+
+	/**
+	 * Resets the battle state, including the team color.
+	 * @see TeamController#setDefaultBattleStatus()
+	 */
+	public void setDefaultBattleStatus() {
+		battleState = null;
+	}
+
+	/**
+	 * See the 'MYBATTLESTATUS' command for valid values.
+	 * @see TeamController#getTeamColor()
+	 */
+	public Color getTeamColor() {
+		return readBattleState().getTeamColor();
+	}
+
+	/**
+	 * See the 'MYBATTLESTATUS' command for valid values.
+	 * @see TeamController#setTeamColor(Color)
+	 */
+	public void setTeamColor(Color teamColor) {
+		getBattleState().setTeamColor(teamColor);
+	}
+
+	public boolean isReady() {
+		return readBattleState().isReady();
+	}
+
+	public void setReady(boolean ready) {
+		getBattleState().setReady(ready);
+	}
+
+	public int getTeam() {
+		return readBattleState().getTeam();
+	}
+
+	public void setTeam(int team) {
+		getBattleState().setTeam(team);
+	}
+
+	public int getAllyTeam() {
+		return readBattleState().getAllyTeam();
+	}
+
+	public void setAllyTeam(int allyTeam) {
+		getBattleState().setAllyTeam(allyTeam);
+	}
+
+	/**
+	 * Also called mode.
+	 */
+	public boolean isSpectator() {
+		return readBattleState().isSpectator();
+	}
+
+	/**
+	 * Also called mode.
+	 */
+	public void setSpectator(boolean spectator) {
+		getBattleState().setSpectator(spectator);
+	}
+
+	public int getHandicap() {
+		return readBattleState().getHandicap();
+	}
+
+	public void setHandicap(int handicap) {
+		getBattleState().setHandicap(handicap);
+	}
+
+	public int getSync() {
+		return readBattleState().getSync();
+	}
+
+	public void setSync(int sync) {
+		getBattleState().setSync(sync);
+	}
+
+	public int getSide() {
+		return readBattleState().getSide();
+	}
+
+	public void setSide(int side) {
+		getBattleState().setSide(side);
+	}
+
 	/**
 	 * ID of the battle which this client is requesting to join.
 	 * Must be -1 if not requesting to join any battle.
@@ -807,6 +1240,10 @@ public class Client extends TeamController implements ContextReceiver {
 	}
 
 	public void appendToRecvBuf(String received) {
+
+		if (recvBuf == null) {
+			recvBuf = new StringBuilder(received.length());
+		}
 		recvBuf.append(received);
 	}
 
@@ -844,6 +1281,14 @@ public class Client extends TeamController implements ContextReceiver {
 		return deleted;
 	}
 
+	/**
+	 * Whether the receive buffer contains a complete line.
+	 * @see #readLine()
+	 */
+	public boolean hasLine() {
+		return (recvBuf != null) && (recvBuf.indexOf("\n") != -1);
+	}
+
 	/**
 	 * Tries to read a line from the clients input buffer.
 	 * If the this returns non-<code>null</code>, then the line returned is
@@ -855,6 +1300,9 @@ public class Client extends TeamController implements ContextReceiver {
 
 		String line = null;
 
+		if (recvBuf == null) {
+			return null;
+		}
 		deleteLeadingWhiteSpace(recvBuf);
 		if (recvBuf.length() > 0) {
 			int nPos = recvBuf.indexOf("\n");
@@ -863,8 +1311,12 @@ public class Client extends TeamController implements ContextReceiver {
 
 				line = recvBuf.substring(0, nPos - deleted);
 				recvBuf.delete(0, nPos - deleted);
+				deleteLeadingWhiteSpace(recvBuf);
 			}
 		}
+		if (recvBuf.length() == 0) {
+			recvBuf = null;
+		}
 
 		return line;
 	}
@@ -894,6 +1346,21 @@ public class Client extends TeamController implements ContextReceiver {
 	 * @return the locale specifying the country
 	 */
 	public Locale getLocale() {
+
+		if (locale == null) {
+			// Looking up the country is relatively expensive, and not needed
+			// for connections which never register or login.
+			Locale lookedUp = null;
+			IP2CountryService ip2CountryService = (context == null) ? null
+					: context.getService(IP2CountryService.class);
+			if (ip2CountryService != null) {
+				lookedUp = ip2CountryService.getLocale(ip);
+			}
+			locale = (lookedUp == null)
+					? ProtocolUtil.countryToLocale(ProtocolUtil.COUNTRY_UNKNOWN)
+					: lookedUp;
+		}
+
 		return locale;
 	}
 
@@ -912,10 +1379,11 @@ public class Client extends TeamController implements ContextReceiver {
 	 */
 	public String getCountry() {
 
-		if ((locale == null) || locale.getCountry().isEmpty()) {
+		Locale userLocale = getLocale();
+		if ((userLocale == null) || userLocale.getCountry().isEmpty()) {
 			return ProtocolUtil.COUNTRY_UNKNOWN;
 		} else {
-			return locale.getCountry();
+			return userLocale.getCountry();
 		}
 	}
 
@@ -1007,48 +1475,66 @@ public class Client extends TeamController implements ContextReceiver {
 	 * @return the acceptAccountIDs
 	 */
 	public boolean isAcceptAccountIDs() {
-		return acceptAccountIDs;
+		return hasCompatFlag("a");
 	}
 
 	/**
-	 * Does the client accept accountIDs in ADDUSER command?
-	 * @param acceptAccountIDs the acceptAccountIDs to set
+	 * Does the client accept JOINBATTLEREQUEST command?
+	 * @return the handleBattleJoinAuthorization
 	 */
-	private void setAcceptAccountIDs(boolean acceptAccountIDs) {
-		this.acceptAccountIDs = acceptAccountIDs;
+	public boolean isHandleBattleJoinAuthorization() {
+		return hasCompatFlag("b");
 	}
 
 	/**
-	 * Does the client accept JOINBATTLEREQUEST command?
-	 * @return the handleBattleJoinAuthorization
+	 * Does the client accept the scriptPassord argument to the
+	 * JOINEDBATTLE command?
 	 */
-	public boolean isHandleBattleJoinAuthorization() {
-		return handleBattleJoinAuthorization;
+	public boolean isScriptPassordSupported() {
+		return hasCompatFlag("sp");
 	}
 
 	/**
-	 * Does the client accept JOINBATTLEREQUEST command?
+	 * Does the client only want detailed events of the battles it subscribed
+	 * to, plus the periodic BATTLESUMMARY?
+	 * @see Battles#subscribe(Client, Battle)
 	 */
-	private void setHandleBattleJoinAuthorization(
-			boolean handleBattleJoinAuthorization)
-	{
-		this.handleBattleJoinAuthorization = handleBattleJoinAuthorization;
+	public boolean isBattleSubscriptionsOnly() {
+		return hasCompatFlag("bs");
 	}
 
 	/**
-	 * Does the client accept the scriptPassord argument to the
-	 * JOINEDBATTLE command?
+	 * Does the client fetch the battles it is interested in through
+	 * QUERYBATTLES, instead of receiving all of them at login?
+	 * Such clients only receive the detailed events of the battles they were
+	 * sent, and of those opened after they logged in.
+	 * @see Battles#subscribe(Client, Battle)
 	 */
-	public boolean isScriptPassordSupported() {
-		return scriptPasswordSupported;
+	public boolean isBattleListQueried() {
+		return hasCompatFlag("q");
 	}
 
 	/**
-	 * Does the client accept the scriptPassord argument to the
-	 * JOINEDBATTLE command?
+	 * Does the client receive the detailed events of all battles?
+	 * @see #isBattleSubscriptionsOnly()
+	 * @see #isBattleListQueried()
 	 */
-	private void setScriptPassordSupported(boolean supported) {
-		scriptPasswordSupported = supported;
+	public boolean isAllBattlesListener() {
+		return !isBattleSubscriptionsOnly() && !isBattleListQueried();
+	}
+
+	/**
+	 * Does the client only want the presence changes (ADDUSER, REMOVEUSER,
+	 * CLIENTSTATUS) of the users it is interested in?
+	 * These are the users it watches, the ones sharing a channel with it,
+	 * and the ones in battles it subscribed to.
+	 * This requires the flag 'bs' as well, as the events of all battles
+	 * refer to all users.
+	 * @see Clients#watch(Client, String)
+	 * @see Clients#introduce(Client, Client)
+	 */
+	public boolean isPresenceInterestsOnly() {
+		return hasCompatFlag("pi") && isBattleSubscriptionsOnly();
 	}
 
 	/**
@@ -1083,22 +1569,87 @@ public class Client extends TeamController implements ContextReceiver {
 	 * @return the compatFlags
 	 */
 	public List<String> getCompatFlags() {
-		return compatFlags;
+
+		List<String> flags = new ArrayList<String>();
+		synchronized (COMPAT_FLAG_BITS) {
+			for (Map.Entry<String, Integer> flagBit
+					: COMPAT_FLAG_BITS.entrySet())
+			{
+				if ((compatFlags & (1 << flagBit.getValue())) != 0) {
+					flags.add(flagBit.getKey());
+				}
+			}
+		}
+		if (otherCompatFlags != null) {
+			flags.addAll(otherCompatFlags);
+		}
+		return Collections.unmodifiableList(flags);
+	}
+
+	/**
+	 * Whether the client supports a certain compatibility-flag.
+	 * @see #getCompatFlags
+	 * @param compatFlag for example "a" or "sp"
+	 */
+	public boolean hasCompatFlag(String compatFlag) {
+
+		Integer bit;
+		synchronized (COMPAT_FLAG_BITS) {
+			bit = COMPAT_FLAG_BITS.get(compatFlag);
+		}
+		return ((bit != null) && ((compatFlags & (1 << bit)) != 0))
+				|| ((otherCompatFlags != null)
+				&& otherCompatFlags.contains(compatFlag));
 	}
 
 	/**
 	 * A list of compatibility-flags, each representing a certain minor change
 	 * in protocol since the last protocol version number release.
+	 * Flags registered with the server are stored as bits,
+	 * all others are kept as they are.
 	 * @see #getCompatFlags
 	 * @param compatFlags the compatFlags to set
 	 */
 	public void setCompatFlags(List<String> compatFlags) {
 
-		this.compatFlags = Collections.unmodifiableList(compatFlags);
+		Set<String> supported = (context == null)
+				? Collections.<String>emptySet()
+				: context.getServer().getSupportedCompFlags();
+		int flagBits = 0;
+		Set<String> others = null;
+		for (String compatFlag : compatFlags) {
+			int bit = supported.contains(compatFlag)
+					? compatFlagBit(compatFlag) : -1;
+			if (bit != -1) {
+				flagBits |= (1 << bit);
+			} else {
+				if (others == null) {
+					others = new HashSet<String>();
+				}
+				others.add(compatFlag);
+			}
+		}
+		this.compatFlags = flagBits;
+		this.otherCompatFlags = others;
+	}
+
+	/**
+	 * Returns the bit of a registered compatibility flag,
+	 * assigning the next free one if it has none yet.
+	 * @return the bit, or -1 if all of them are taken
+	 */
+	private static int compatFlagBit(String compatFlag) {
 
-		// protocol version 0.37-SNAPSHOT (after 0.36) compat-flags:
-		setAcceptAccountIDs(compatFlags.contains("a"));
-		setHandleBattleJoinAuthorization(compatFlags.contains("b"));
-		setScriptPassordSupported(compatFlags.contains("sp"));
+		synchronized (COMPAT_FLAG_BITS) {
+			Integer bit = COMPAT_FLAG_BITS.get(compatFlag);
+			if (bit == null) {
+				if (COMPAT_FLAG_BITS.size() >= Integer.SIZE) {
+					return -1;
+				}
+				bit = COMPAT_FLAG_BITS.size();
+				COMPAT_FLAG_BITS.put(compatFlag, bit);
+			}
+			return bit;
+		}
 	}
 }
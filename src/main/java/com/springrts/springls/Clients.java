@@ -19,14 +19,26 @@ package com.springrts.springls;
 
 
 import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import com.springrts.springls.util.Misc;
+import com.springrts.springls.util.Processor;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import org.apache.commons.configuration.Configuration;
 
 import org.slf4j.Logger;
@@ -61,9 +73,41 @@ public class Clients implements ContextReceiver, Updateable {
 	}
 
 
+	private class UserIntroducer implements Processor<Client> {
+
+		private final Client viewer;
+
+		UserIntroducer(Client viewer) {
+			this.viewer = viewer;
+		}
+
+		@Override
+		public void process(Client curClient) {
+			introduce(viewer, curClient);
+		}
+	}
+
+	private class UserForgetter implements Processor<Client> {
+
+		private final Client viewer;
+
+		UserForgetter(Client viewer) {
+			this.viewer = viewer;
+		}
+
+		@Override
+		public void process(Client curClient) {
+			forgetIfUninterested(viewer, curClient);
+		}
+	}
+
+
 	/** in milli-seconds */
 	private static final int TIMEOUT_CHECK = 5000;
 
+	/** How many users a single client may watch at most. */
+	public static final int MAX_WATCHED_USERS = 1000;
+
 	private List<Client> clients;
 
 	/**
@@ -93,6 +137,49 @@ public class Clients implements ContextReceiver, Updateable {
 	 */
 	private long lastTimeoutCheck;
 
+	/**
+	 * Used to send lines to many clients at once.
+	 */
+	private Broadcaster broadcaster;
+
+	/**
+	 * Logged in clients which receive the presence changes of all users.
+	 */
+	private List<Client> allPresenceListeners;
+	/** The clients watching a user, by the name of the watched user. */
+	private Map<String, Set<Client>> watchersByName;
+	/** The names of the users watched, by watching client. */
+	private Map<Client, Set<String>> watchedNamesByClient;
+	/**
+	 * The users each client which only wants the presence changes of the
+	 * users it is interested in was sent ADDUSER for.
+	 * @see Client#isPresenceInterestsOnly()
+	 */
+	private Map<Client, Set<Client>> knownUsersByClient;
+	/**
+	 * The clients which only want the presence changes of the users they are
+	 * interested in, and were sent ADDUSER for a user, by user.
+	 */
+	private Map<Client, Set<Client>> knowersByUser;
+
+	/**
+	 * Clients whose status changed during the current main loop iteration.
+	 * Their final status is sent once, at the end of the iteration.
+	 */
+	private Set<Client> pendingStatusChanges;
+
+	/**
+	 * The welcome message sent to each new connection,
+	 * or <code>null</code> if it has to be (re-)created.
+	 * @see #getWelcomeMessage()
+	 */
+	private String welcomeMessage;
+	/**
+	 * <code>welcomeMessage</code> encoded and followed by an EOL,
+	 * or <code>null</code> if not available.
+	 */
+	private ByteBuffer encodedWelcomeMessage;
+
 	private Context context = null;
 
 
@@ -102,12 +189,22 @@ public class Clients implements ContextReceiver, Updateable {
 		delayedKills = new ArrayList<KillJob>();
 		sendQueue = new LinkedList<Client>();
 		lastTimeoutCheck = System.currentTimeMillis();
+		broadcaster = new Broadcaster();
+		allPresenceListeners = new ArrayList<Client>();
+		watchersByName = new HashMap<String, Set<Client>>();
+		watchedNamesByClient = new HashMap<Client, Set<String>>();
+		knownUsersByClient = new HashMap<Client, Set<Client>>();
+		knowersByUser = new HashMap<Client, Set<Client>>();
+		pendingStatusChanges = new LinkedHashSet<Client>();
+		welcomeMessage = null;
+		encodedWelcomeMessage = null;
 	}
 
 	@Override
 	public void receiveContext(Context context) {
 
 		this.context = context;
+		broadcaster.receiveContext(context);
 		for (Client client : clients) {
 			client.receiveContext(context);
 		}
@@ -116,9 +213,66 @@ public class Clients implements ContextReceiver, Updateable {
 		return context;
 	}
 
+	/**
+	 * Returns the welcome message sent to each client right after it
+	 * connected.
+	 * It only depends on the configuration, so it is created once and reused
+	 * for all connections, until {@link #welcomeMessageChanged()} is called.
+	 * @return the TASSERVER command
+	 */
+	public String getWelcomeMessage() {
+
+		if (welcomeMessage == null) {
+			Configuration conf = getContext().getService(Configuration.class);
+
+			// the welcome messages command-name is hardcoded to TASSERVER
+			// XXX maybe change TASSERVER to WELCOME or the like -> protocol change
+			welcomeMessage = String.format("TASSERVER %s %s %d %d",
+					conf.getString(ServerConfiguration.LOBBY_PROTOCOL_VERSION),
+					conf.getString(ServerConfiguration.ENGINE_VERSION),
+					conf.getInt(ServerConfiguration.NAT_PORT),
+					conf.getBoolean(ServerConfiguration.LAN_MODE) ? 1 : 0);
+			try {
+				encodedWelcomeMessage = getContext().getServer()
+						.getAsciiEncoder().encode(
+						CharBuffer.wrap(welcomeMessage + Misc.EOL));
+			} catch (CharacterCodingException ex) {
+				LOG.warn("Failed to encode the welcome message", ex);
+				encodedWelcomeMessage = null;
+			}
+		}
+
+		return welcomeMessage;
+	}
+
+	/**
+	 * Returns the welcome message encoded and followed by an EOL.
+	 * The returned buffer must not be modified; use a duplicate of it.
+	 * @see #getWelcomeMessage()
+	 * @return the encoded TASSERVER command, or <code>null</code> if it could
+	 *   not be encoded
+	 */
+	public ByteBuffer getEncodedWelcomeMessage() {
+
+		getWelcomeMessage();
+		return encodedWelcomeMessage;
+	}
+
+	/**
+	 * Has to be called whenever one of the configuration values contained in
+	 * the welcome message changed.
+	 */
+	public void welcomeMessageChanged() {
+
+		welcomeMessage = null;
+		encodedWelcomeMessage = null;
+	}
+
 	@Override
 	public void update() {
 
+		sendPendingStatusChanges();
+
 		flushData();
 
 		checkForTimeouts();
@@ -241,15 +395,43 @@ public class Clients implements ContextReceiver, Updateable {
 	}
 
 	public void sendToAllRegisteredUsers(String s) {
+		broadcaster.sendLine(clients, s, Account.Access.NORMAL);
+	}
 
-		for (int i = 0; i < clients.size(); i++) {
-			Client toBeNotified = clients.get(i);
-			if (toBeNotified.getAccount().getAccess().isAtLeast(
-					Account.Access.NORMAL))
-			{
-				toBeNotified.sendLine(s);
-			}
-		}
+	/**
+	 * Sends multiple lines at once to all the given clients.
+	 * The lines are encoded only once for all recipients.
+	 * @param recipients must not be modified while this method runs
+	 * @param lines separated by <code>Misc.EOL</code>
+	 * @see Broadcaster#sendLines(List, String, Account.Access)
+	 */
+	public void sendLinesToClients(List<Client> recipients, String lines) {
+		broadcaster.sendLines(recipients, lines, Account.Access.NONE);
+	}
+
+	/**
+	 * Sends a line to all the given clients.
+	 * For large numbers of recipients, this may be done in parallel.
+	 * @param recipients must not be modified while this method runs
+	 * @see Broadcaster
+	 */
+	public void sendLineToClients(List<Client> recipients, String line) {
+		sendLineToClients(recipients, line, null);
+	}
+
+	/**
+	 * Sends a line to all the given clients.
+	 * For large numbers of recipients, this may be done in parallel.
+	 * @param recipients must not be modified while this method runs
+	 * @param conflationKey may be <code>null</code>
+	 * @see Broadcaster
+	 * @see Client#sendConflatableLine(String, String)
+	 */
+	public void sendLineToClients(List<Client> recipients, String line,
+			String conflationKey)
+	{
+		broadcaster.sendLine(recipients, line, Account.Access.NONE,
+				conflationKey);
 	}
 
 	/** Sends text to all registered users except for the client */
@@ -303,13 +485,388 @@ public class Clients implements ContextReceiver, Updateable {
 
 	/**
 	 * Notifies all logged-in clients (including this client)
-	 * of the client's new status
+	 * of the client's new status.
+	 * This is done at the end of the current main loop iteration,
+	 * so multiple changes within one iteration result in a single
+	 * notification, containing the final status.
 	 */
 	public void notifyClientsOfNewClientStatus(Client client) {
+		pendingStatusChanges.add(client);
+	}
+
+	/**
+	 * Notifies the interested clients of the status changes collected during
+	 * the current main loop iteration.
+	 * @see #notifyClientsOfNewClientStatus(Client)
+	 */
+	private void sendPendingStatusChanges() {
+
+		for (Client client : pendingStatusChanges) {
+			sendPresenceChange(getInterestedPresenceClients(client),
+					createStatusCommand(client),
+					"CLIENTSTATUS " + client.getAccount().getName());
+		}
+		pendingStatusChanges.clear();
+	}
+
+	private static String createStatusCommand(Client user) {
+		return String.format("CLIENTSTATUS %s %d",
+				user.getAccount().getName(),
+				user.getStatus());
+	}
+
+	/**
+	 * Sends the current status of a user to a client,
+	 * but only if it is different from 0.
+	 */
+	public void sendStatusToClient(Client client, Client user) {
+
+		if (user.getStatus() != 0) {
+			client.sendLine(createStatusCommand(user));
+		}
+	}
+
+	/**
+	 * Has to be called when a client logged in. Clients which do not only want
+	 * the presence changes of the users they are interested in, receive the
+	 * ones of all users from then on.
+	 * @see Client#isPresenceInterestsOnly()
+	 */
+	public void addPresenceListener(Client client) {
+
+		if (!client.isPresenceInterestsOnly()) {
+			allPresenceListeners.add(client);
+		}
+	}
+
+	/**
+	 * Has to be called when a client disconnected,
+	 * to no longer send it the presence changes of the users it watched.
+	 */
+	private void removeWatcherOf(Client client) {
+
+		Set<String> watchedNames = watchedNamesByClient.remove(client);
+		if (watchedNames != null) {
+			for (String watchedName : watchedNames) {
+				removeWatcher(watchedName, client);
+			}
+		}
+	}
+
+	/**
+	 * Makes a client receive the presence changes of a user, no matter whether
+	 * they share a channel or a battle.
+	 * This is only possible for clients which do not receive the presence
+	 * changes of all users anyway.
+	 * @param watcher the client interested in the user
+	 * @param username the name of the user to watch
+	 * @return true if the user is watched now, false if he was so already,
+	 *   or the watcher can not watch any more users
+	 * @see Client#isPresenceInterestsOnly()
+	 */
+	public boolean watch(Client watcher, String username) {
+
+		if (!watcher.isPresenceInterestsOnly()) {
+			return false;
+		}
+		Set<String> watchedNames = watchedNamesByClient.get(watcher);
+		if (watchedNames == null) {
+			watchedNames = new HashSet<String>();
+			watchedNamesByClient.put(watcher, watchedNames);
+		} else if (watchedNames.size() >= MAX_WATCHED_USERS) {
+			return false;
+		}
+		if (!watchedNames.add(username)) {
+			return false;
+		}
+		Set<Client> watchers = watchersByName.get(username);
+		if (watchers == null) {
+			watchers = new HashSet<Client>();
+			watchersByName.put(username, watchers);
+		}
+		watchers.add(watcher);
 
-		sendToAllRegisteredUsers(String.format("CLIENTSTATUS %s %d",
-				client.getAccount().getName(),
-				client.getStatus()));
+		return true;
+	}
+
+	/**
+	 * Stops a client from receiving the presence changes of a user,
+	 * unless they share a channel or a battle.
+	 * If the user is online, the client is sent REMOVEUSER for it in that
+	 * case.
+	 * @return true if the user was watched before
+	 */
+	public boolean unwatch(Client watcher, String username) {
+
+		Set<String> watchedNames = watchedNamesByClient.get(watcher);
+		if ((watchedNames == null) || !watchedNames.remove(username)) {
+			return false;
+		}
+		if (watchedNames.isEmpty()) {
+			watchedNamesByClient.remove(watcher);
+		}
+		removeWatcher(username, watcher);
+		Client user = getClient(username);
+		if (user != null) {
+			forgetIfUninterested(watcher, user);
+		}
+
+		return true;
+	}
+
+	private void removeWatcher(String username, Client watcher) {
+
+		Set<Client> watchers = watchersByName.get(username);
+		watchers.remove(watcher);
+		if (watchers.isEmpty()) {
+			watchersByName.remove(username);
+		}
+	}
+
+	/**
+	 * Sends ADDUSER and the current status of a user to a client which only
+	 * wants the presence changes of the users it is interested in, unless it
+	 * knows the user already.
+	 * This has to be called before the client is sent anything else
+	 * referring to the user, for example when they start sharing a channel
+	 * or a battle. It does nothing for all other clients, as they know all
+	 * users.
+	 * @param viewer the client to introduce the user to
+	 * @param user the user to introduce
+	 * @see Client#isPresenceInterestsOnly()
+	 */
+	public void introduce(Client viewer, Client user) {
+
+		if (viewer.isPresenceInterestsOnly()
+				&& user.getAccount().getAccess().isAtLeast(
+				Account.Access.NORMAL)
+				&& addKnownUser(viewer, user))
+		{
+			sendAddUserToClient(viewer, user);
+			sendStatusToClient(viewer, user);
+		}
+	}
+
+	/**
+	 * Introduces the founder and the clients of a battle to a client.
+	 * @see #introduce(Client, Client)
+	 */
+	public void introduceBattle(Client viewer, Battle battle) {
+
+		if (viewer.isPresenceInterestsOnly()) {
+			battle.applyToClientsAndFounder(new UserIntroducer(viewer));
+		}
+	}
+
+	/**
+	 * Sends REMOVEUSER for a user to a client which only wants the presence
+	 * changes of the users it is interested in, if it knows the user,
+	 * but is no longer interested in it.
+	 * This has to be called after the client was sent the last command
+	 * referring to the user, for example when they stopped sharing a channel
+	 * or a battle.
+	 * @param viewer the client which may forget the user
+	 * @param user the user to forget
+	 * @see #introduce(Client, Client)
+	 */
+	public void forgetIfUninterested(Client viewer, Client user) {
+
+		Set<Client> knownUsers = knownUsersByClient.get(viewer);
+		if ((knownUsers == null) || !knownUsers.contains(user)
+				// killed users are removed from everyone at once
+				|| !viewer.isAlive() || !user.isAlive()
+				|| isInterested(viewer, user))
+		{
+			return;
+		}
+		removeKnownUser(viewer, user);
+		viewer.sendLine("REMOVEUSER " + user.getAccount().getName());
+	}
+
+	/**
+	 * Makes a client forget about the founder and the clients of a battle
+	 * it is no longer interested in.
+	 * @see #forgetIfUninterested(Client, Client)
+	 */
+	public void forgetBattle(Client viewer, Battle battle) {
+
+		if (knownUsersByClient.containsKey(viewer)) {
+			battle.applyToClientsAndFounder(new UserForgetter(viewer));
+		}
+	}
+
+	/**
+	 * Makes the clients of a channel forget about a client which left it,
+	 * and the other way around, as far as they are no longer interested in
+	 * each other.
+	 * This has to be called after the LEFT command was sent.
+	 * @see #forgetIfUninterested(Client, Client)
+	 */
+	public void forgetChannelMembers(Channel chan, Client client) {
+
+		if (knownUsersByClient.containsKey(client)) {
+			for (int i = 0; i < chan.getClientsSize(); i++) {
+				forgetIfUninterested(client, chan.getClient(i));
+			}
+		}
+		for (Client member : chan.getPresenceInterestsOnlyClients()) {
+			forgetIfUninterested(member, client);
+		}
+	}
+
+	/**
+	 * Whether a client is interested in the presence changes of a user,
+	 * because it watches the user, they share a channel, or the client
+	 * subscribed to the battle of the user.
+	 */
+	private boolean isInterested(Client viewer, Client user) {
+
+		Set<String> watchedNames = watchedNamesByClient.get(viewer);
+		if ((watchedNames != null)
+				&& watchedNames.contains(user.getAccount().getName()))
+		{
+			return true;
+		}
+		for (Channel channel : viewer.getChannels()) {
+			if (user.getChannel(channel.getName()) != null) {
+				return true;
+			}
+		}
+		if (user.getBattleID() != Battle.NO_BATTLE_ID) {
+			Battle battle = context.getBattles().getBattleByID(
+					user.getBattleID());
+			if ((battle != null) && battle.getSubscribers().contains(viewer)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return true if the user was not known to the client before
+	 */
+	private boolean addKnownUser(Client viewer, Client user) {
+
+		if (viewer == user) {
+			// every client knows itself from login on
+			return false;
+		}
+		Set<Client> knownUsers = knownUsersByClient.get(viewer);
+		if (knownUsers == null) {
+			knownUsers = new HashSet<Client>();
+			knownUsersByClient.put(viewer, knownUsers);
+		}
+		if (!knownUsers.add(user)) {
+			return false;
+		}
+		Set<Client> knowers = knowersByUser.get(user);
+		if (knowers == null) {
+			knowers = new HashSet<Client>();
+			knowersByUser.put(user, knowers);
+		}
+		knowers.add(viewer);
+
+		return true;
+	}
+
+	private void removeKnownUser(Client viewer, Client user) {
+
+		Set<Client> knownUsers = knownUsersByClient.get(viewer);
+		knownUsers.remove(user);
+		if (knownUsers.isEmpty()) {
+			knownUsersByClient.remove(viewer);
+		}
+		Set<Client> knowers = knowersByUser.get(user);
+		knowers.remove(viewer);
+		if (knowers.isEmpty()) {
+			knowersByUser.remove(user);
+		}
+	}
+
+	/**
+	 * Has to be called when a client disconnected, after it was sent
+	 * REMOVEUSER to everyone knowing it.
+	 */
+	private void removeKnownUsersOf(Client client) {
+
+		Set<Client> knownUsers = knownUsersByClient.remove(client);
+		if (knownUsers != null) {
+			for (Client user : knownUsers) {
+				Set<Client> knowers = knowersByUser.get(user);
+				knowers.remove(client);
+				if (knowers.isEmpty()) {
+					knowersByUser.remove(user);
+				}
+			}
+		}
+		Set<Client> knowers = knowersByUser.remove(client);
+		if (knowers != null) {
+			for (Client knower : knowers) {
+				Set<Client> users = knownUsersByClient.get(knower);
+				users.remove(client);
+				if (users.isEmpty()) {
+					knownUsersByClient.remove(knower);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the clients which only want the presence changes of the users
+	 * they are interested in, and are interested in the given user.
+	 * These are the user itself, and the clients it was introduced to.
+	 * @see #introduce(Client, Client)
+	 */
+	private Collection<Client> getInterestedPresenceClients(Client user) {
+
+		Set<Client> interested = new LinkedHashSet<Client>();
+
+		if (user.isPresenceInterestsOnly()) {
+			interested.add(user);
+		}
+		Set<Client> knowers = knowersByUser.get(user);
+		if (knowers != null) {
+			interested.addAll(knowers);
+		}
+
+		return interested;
+	}
+
+	/**
+	 * Sends a presence change to all the clients which want the ones of all
+	 * users, and to the given interested ones.
+	 * @param conflationKey may be <code>null</code>
+	 * @see Client#sendConflatableLine(String, String)
+	 */
+	private void sendPresenceChange(Collection<Client> interested,
+			String line, String conflationKey)
+	{
+		broadcaster.sendLine(allPresenceListeners, line,
+				Account.Access.NORMAL, conflationKey);
+		for (Client toBeNotified : interested) {
+			toBeNotified.sendConflatableLine(line, conflationKey);
+		}
+	}
+
+	private static String createAddUserCommand(Client user,
+			boolean withAccountId)
+	{
+		String cmd = String.format("ADDUSER %s %s %d",
+				user.getAccount().getName(),
+				user.getCountry(),
+				user.getCpu());
+		if (withAccountId) {
+			cmd += " " + user.getAccount().getId();
+		}
+		return cmd;
+	}
+
+	/**
+	 * Sends the ADDUSER command for a user to a client.
+	 */
+	public void sendAddUserToClient(Client client, Client user) {
+		client.sendLine(createAddUserCommand(user, client.isAcceptAccountIDs()));
 	}
 
 	/**
@@ -325,18 +882,7 @@ public class Clients implements ContextReceiver, Updateable {
 			if (toBeNotified.getAccount().getAccess().isAtLeast(
 					Account.Access.NORMAL))
 			{
-				if (client.isAcceptAccountIDs()) {
-					client.sendLine(String.format("ADDUSER %s %s %d %d",
-							toBeNotified.getAccount().getName(),
-							toBeNotified.getCountry(),
-							toBeNotified.getCpu(),
-							toBeNotified.getAccount().getId()));
-				} else {
-					client.sendLine(String.format("ADDUSER %s %s %d",
-							toBeNotified.getAccount().getName(),
-							toBeNotified.getCountry(),
-							toBeNotified.getCpu()));
-				}
+				sendAddUserToClient(client, toBeNotified);
 			}
 		}
 		client.endFastWrite();
@@ -349,17 +895,22 @@ public class Clients implements ContextReceiver, Updateable {
 	 */
 	public void notifyClientsOfNewClientOnServer(Client client) {
 
-		String cmdNoId = String.format("ADDUSER %s %s %d",
-				client.getAccount().getName(),
-				client.getCountry(),
-				client.getCpu());
-		String cmdWithId = cmdNoId + " " + client.getAccount().getId();
-
-		for (int i = 0; i < clients.size(); i++) {
-			Client toBeNotified = clients.get(i);
-			if ((toBeNotified.getAccount().getAccess().isAtLeast(
-					Account.Access.NORMAL)) && (toBeNotified != client))
-			{
+		String cmdNoId = createAddUserCommand(client, false);
+		String cmdWithId = createAddUserCommand(client, true);
+
+		List<Client> toBeNotifiedList = new ArrayList<Client>(
+				allPresenceListeners);
+		// a user who just logged in can only be watched explicitly
+		Set<Client> watchers = watchersByName.get(client.getAccount().getName());
+		if (watchers != null) {
+			for (Client watcher : watchers) {
+				if (addKnownUser(watcher, client)) {
+					toBeNotifiedList.add(watcher);
+				}
+			}
+		}
+		for (Client toBeNotified : toBeNotifiedList) {
+			if (toBeNotified != client) {
 				if (toBeNotified.isAcceptAccountIDs()) {
 					toBeNotified.sendLine(cmdWithId);
 				} else {
@@ -390,18 +941,16 @@ public class Clients implements ContextReceiver, Updateable {
 		}
 		String cmdWithScriptPassword = cmd.toString();
 
-		for (int i = 0; i < clients.size(); i++) {
-			Client toBeNotified = clients.get(i);
-			if (toBeNotified.getAccount().getAccess().isAtLeast(
-					Account.Access.NORMAL))
+		for (Client toBeNotified
+				: context.getBattles().getInterestedClients(battle))
+		{
+			introduce(toBeNotified, client);
+			if (toBeNotified.equals(battle.getFounder())
+					|| toBeNotified.equals(client))
 			{
-				if (toBeNotified.equals(battle.getFounder())
-						|| toBeNotified.equals(client))
-				{
-					toBeNotified.sendLine(cmdWithScriptPassword);
-				}
-				toBeNotified.sendLine(cmdNoScriptPassword);
+				toBeNotified.sendLine(cmdWithScriptPassword);
 			}
+			toBeNotified.sendLine(cmdNoScriptPassword);
 		}
 	}
 
@@ -422,47 +971,177 @@ public class Clients implements ContextReceiver, Updateable {
 	 *   be set to <code>null</code> to give no reason.
 	 */
 	public boolean killClient(Client client, String reason) {
+		return (killClients(Collections.singletonList(
+				new KillJob(client, reason))) > 0);
+	}
 
-		int index = clients.indexOf(client);
-		if (index == -1 || !client.isAlive()) {
-			return false;
+	/**
+	 * Disconnects and removes multiple clients at once.
+	 * @param reason the same for all clients, see
+	 *   {@link #killClient(Client, String)}
+	 * @see #killClient(Client, String)
+	 */
+	public void killClients(Collection<Client> toKill, String reason) {
+
+		List<KillJob> killJobs = new ArrayList<KillJob>(toKill.size());
+		for (Client client : toKill) {
+			killJobs.add(new KillJob(client, reason));
 		}
-		client.disconnect();
-		clients.remove(index);
-		client.setAlive(false);
-		String reasonNonNull = ((reason == null) || reason.trim().isEmpty())
-				? "Quit" : reason;
+		killClients(killJobs);
+	}
 
-		// let's remove client from all channels he is participating in:
-		client.leaveAllChannels(reasonNonNull);
+	/**
+	 * Disconnects and removes multiple clients from the clients list,
+	 * cleans up after them and notifies the other users of their departure.
+	 * All the notifications are collected, so each other user gets one
+	 * combined update per channel, and one for the battles and presence
+	 * changes, no matter how many clients are killed.
+	 * This keeps mass disconnects linear in the number of users.
+	 * @return the number of clients killed
+	 */
+	private int killClients(List<KillJob> killJobs) {
 
-		if (client.getBattleID() != Battle.NO_BATTLE_ID) {
-			Battle battle = context.getBattles().getBattleByID(
-					client.getBattleID());
-			if (battle == null) {
-				LOG.error("Invalid battle ID. Server will now exit!");
-				context.getServerThread().closeServerAndExit();
+		// the clients to kill, with the reason for each
+		Map<Client, String> toKill = new LinkedHashMap<Client, String>();
+		for (KillJob killJob : killJobs) {
+			Client client = killJob.getClient();
+			if (!client.isAlive() || toKill.containsKey(client)) {
+				continue;
+			}
+			String reason = killJob.getReason();
+			toKill.put(client, ((reason == null) || reason.trim().isEmpty())
+					? "Quit" : reason);
+		}
+		if (toKill.isEmpty()) {
+			return 0;
+		}
+		Set<Client> killed = toKill.keySet();
+
+		// has to be done while the clients are still in their channels and
+		// battles
+		StringBuilder removeUserLines = new StringBuilder();
+		Map<Client, StringBuilder> interestedRemoveUserLines
+				= new LinkedHashMap<Client, StringBuilder>();
+		for (Client client : killed) {
+			client.disconnect();
+			client.setAlive(false);
+			// nobody cares about the status of a user who left
+			pendingStatusChanges.remove(client);
+			if (client.getAccount().getAccess() != Account.Access.NONE) {
+				String removeUser = "REMOVEUSER "
+						+ client.getAccount().getName();
+				appendLine(removeUserLines, removeUser);
+				for (Client interested : getInterestedPresenceClients(client)) {
+					appendLine(interestedRemoveUserLines, interested,
+							removeUser);
+				}
+				LOG.debug("Registered user killed: {}",
+						client.getAccount().getName());
+			} else {
+				LOG.debug("Unregistered user killed");
+			}
+		}
+		// the clients killed along with a user do not need to be told
+		interestedRemoveUserLines.keySet().removeAll(killed);
+		// a single pass over each list, even for many clients
+		clients.removeAll(killed);
+		allPresenceListeners.removeAll(killed);
+		for (Client client : killed) {
+			removeWatcherOf(client);
+			removeKnownUsersOf(client);
+		}
+		context.getBattles().removeListeners(killed);
+
+		// let's remove the clients from all channels they are participating
+		// in, with one combined update per channel
+		Map<Channel, StringBuilder> leftLines
+				= new LinkedHashMap<Channel, StringBuilder>();
+		for (Map.Entry<Client, String> kill : toKill.entrySet()) {
+			Client client = kill.getKey();
+			for (Channel chan : client.getChannels()) {
+				if (chan.removeClient(client)) {
+					StringBuilder lines = leftLines.get(chan);
+					if (lines == null) {
+						lines = new StringBuilder();
+						leftLines.put(chan, lines);
+					}
+					appendLine(lines, String.format("LEFT %s %s %s",
+							chan.getName(), client.getAccount().getName(),
+							kill.getValue()));
+				}
+			}
+			client.forgetChannels();
+		}
+		for (Map.Entry<Channel, StringBuilder> left : leftLines.entrySet()) {
+			Channel chan = left.getKey();
+			if (chan.getClientsSize() == 0) {
+				// since channel is empty, there is no point in keeping it
+				// in a channels list
+				context.getChannels().removeChannel(chan);
+			} else {
+				chan.sendLinesToClients(left.getValue().toString());
 			}
-			// internally checks if the client is the founder and closes the
-			// battle in that case
-			context.getBattles().leaveBattle(client, battle);
 		}
 
-		if (client.getAccount().getAccess() != Account.Access.NONE) {
-			sendToAllRegisteredUsers("REMOVEUSER "
-					+ client.getAccount().getName());
-			LOG.debug("Registered user killed: {}",
-					client.getAccount().getName());
-		} else {
-			LOG.debug("Unregistered user killed");
+		Battles battles = context.getBattles();
+		battles.beginBatch();
+		try {
+			for (Client client : killed) {
+				if (client.getBattleID() == Battle.NO_BATTLE_ID) {
+					continue;
+				}
+				Battle battle = battles.getBattleByID(client.getBattleID());
+				if (battle == null) {
+					LOG.error("Invalid battle ID. Server will now exit!");
+					context.getServerThread().closeServerAndExit();
+				}
+				// internally checks if the client is the founder and closes
+				// the battle in that case
+				battles.leaveBattle(client, battle);
+			}
+		} finally {
+			battles.endBatch();
+		}
+
+		// sent last, as clients expect the user to exist in the LEFT and
+		// LEFTBATTLE commands
+		broadcaster.sendLines(allPresenceListeners,
+				removeUserLines.toString(), Account.Access.NORMAL);
+		for (Map.Entry<Client, StringBuilder> interested
+				: interestedRemoveUserLines.entrySet())
+		{
+			interested.getKey().sendLines(interested.getValue().toString(),
+					null);
 		}
 
 		Configuration conf = context.getService(Configuration.class);
 		if (conf.getBoolean(ServerConfiguration.LAN_MODE)) {
-			context.getAccountsService().removeAccount(client.getAccount());
+			for (Client client : killed) {
+				context.getAccountsService().removeAccount(
+						client.getAccount());
+			}
 		}
 
-		return true;
+		return killed.size();
+	}
+
+	private static void appendLine(StringBuilder lines, String line) {
+
+		if (lines.length() != 0) {
+			lines.append(Misc.EOL);
+		}
+		lines.append(line);
+	}
+
+	private static void appendLine(Map<Client, StringBuilder> linesByClient,
+			Client client, String line)
+	{
+		StringBuilder lines = linesByClient.get(client);
+		if (lines == null) {
+			lines = new StringBuilder();
+			linesByClient.put(client, lines);
+		}
+		appendLine(lines, line);
 	}
 
 	/**
@@ -481,31 +1160,34 @@ public class Clients implements ContextReceiver, Updateable {
 
 	/**
 	 * This will kill all clients in the current kill list and empty it.
+	 * They are killed together, so the other users get combined notifications.
 	 * Must only be called from the main server loop (at the end of it)!
 	 * Any redundant entries are ignored (cleared).
 	 */
 	public void processKillList() {
 
-		while (!delayedKills.isEmpty()) {
-			KillJob killJob = delayedKills.remove(0);
-			killClient(killJob.getClient(), killJob.getReason());
+		if (delayedKills.isEmpty()) {
+			return;
 		}
+		List<KillJob> killJobs = delayedKills;
+		delayedKills = new ArrayList<KillJob>();
+		killClients(killJobs);
 	}
 
 	/**
-	 * This will try to go through the list of clients that still have pending
+	 * This will go once through the list of clients that still have pending
 	 * data to be sent and will try to send it.
-	 * When it encounters the first client that can not flush data, it will add
-	 * him to the queues tail and break the loop.
+	 * Clients that can not flush all their data are added to the queues tail,
+	 * so they will be retried on the next call.
 	 */
 	public void flushData() {
 
+		int toFlush = sendQueue.size();
 		Client client;
-		while ((client = sendQueue.poll()) != null) {
+		while ((toFlush-- > 0) && ((client = sendQueue.poll()) != null)) {
 			if (!client.tryToFlushData()) {
 				// add the client to the tail of the queue
 				sendQueue.add(client);
-				break;
 			}
 		}
 	}
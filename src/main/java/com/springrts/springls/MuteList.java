@@ -19,40 +19,61 @@ package com.springrts.springls;
 
 
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
+ * Contains the users which are muted on a single channel.
+ * Mutes are indexed by user-name and by IP, so checking whether a user is
+ * muted never requires scanning the list.
+ * Expiration of temporary mutes is handled by the global mute expiry queue in
+ * {@link Channels}, which calls {@link #expire(MuteEntry)} when an entry is
+ * due.
  * @author Betalord
  * @author hoijui
  */
-public class MuteList {
+public class MuteList implements ContextReceiver {
 
-	private static class MuteEntry {
+	public static class MuteEntry {
 
+		private final MuteList muteList;
 		private String username;
-		private long expireTime;
-		private InetAddress ip;
-
-		MuteEntry(String username, long expireTime, InetAddress ip) {
+		private final long expireTime;
+		private final InetAddress ip;
 
+		MuteEntry(MuteList muteList, String username, long expireTime,
+				InetAddress ip)
+		{
+			this.muteList = muteList;
 			this.username = username;
 			this.expireTime = expireTime;
 			this.ip = ip;
 		}
 
+		/**
+		 * The mute list this entry belongs to.
+		 */
+		MuteList getMuteList() {
+			return muteList;
+		}
+
 		public String getUsername() {
 			return username;
 		}
 
-		public void setUsername(String username) {
+		private void setUsername(String username) {
 			this.username = username;
 		}
 
 		/**
 		 * Time (in milliseconds) when it will expire.
-		 * Expired records are automatically removed in certain methods.
+		 * Expired records are automatically removed by the global mute expiry
+		 * queue.
 		 * Use 0 to mute user for indefinite time.
 		 * @see java.lang.System#currentTimeMillis()
 		 */
@@ -76,84 +97,107 @@ public class MuteList {
 			return (!isPersistent()
 					&& getExpireTime() <= System.currentTimeMillis());
 		}
+
+		/**
+		 * Returns the number of seconds until this mute expires.
+		 * @return 0 for persistent mutes, the remaining seconds otherwise
+		 */
+		public long getRemainingSeconds() {
+
+			if (isPersistent()) {
+				return 0;
+			} else {
+				return (getExpireTime() - System.currentTimeMillis()) / 1000L;
+			}
+		}
 	}
 
-	private List<MuteEntry> mutes;
+	/**
+	 * All entries, indexed by user-name.
+	 * Keeps insertion order, so the MUTELIST command lists them in the order
+	 * they were added.
+	 */
+	private Map<String, MuteEntry> mutesByName;
+	/**
+	 * Entries which mute by IP, indexed by that IP.
+	 * Multiple users may be muted with the same IP.
+	 */
+	private Map<InetAddress, Set<MuteEntry>> mutesByIp;
 	private Channel channel;
+	private Context context;
 
 	public MuteList(Channel channel) {
 
-		this.mutes = new ArrayList<MuteEntry>();
+		this.mutesByName = new LinkedHashMap<String, MuteEntry>();
+		this.mutesByIp = new HashMap<InetAddress, Set<MuteEntry>>();
 		this.channel = channel;
+		this.context = null;
 	}
 
-	/** Purges expired entries */
-	public void clearExpiredOnes() {
-
-		ListIterator<MuteEntry> m = mutes.listIterator();
-		while (m.hasNext()) {
-			MuteEntry mute = m.next();
-			if (mute.isExpired()) {
-				m.remove();
-				channel.broadcast(String.format(
-						"<%s> has been unmuted (mute expired)",
-						mute.getUsername()));
-			}
-		}
-	}
-
-	public boolean isMuted(String username) {
-
-		clearExpiredOnes();
-		return isMutedFast(username);
+	@Override
+	public void receiveContext(Context context) {
+		this.context = context;
 	}
 
-	private boolean isMutedFast(String username) {
-
-		boolean muted = false;
+	/**
+	 * Removes the given entry, if it is still part of this list,
+	 * and announces the end of the mute in the channel.
+	 * This is called by the global mute expiry queue when the entry is due.
+	 * @return <code>true</code> if the entry was still active
+	 */
+	boolean expire(MuteEntry mute) {
 
-		for (MuteEntry mute : mutes) {
-			if (mute.getUsername().equals(username)) {
-				muted = true;
-				break;
-			}
+		if (mutesByName.get(mute.getUsername()) != mute) {
+			// was unmuted or replaced in the meantime
+			return false;
 		}
 
-		return muted;
-	}
-
-	public boolean isMuted(String username, InetAddress ip) {
+		remove(mute);
+		channel.broadcast(String.format(
+				"<%s> has been unmuted (mute expired)",
+				mute.getUsername()));
 
-		boolean muted = false;
+		return true;
+	}
 
-		clearExpiredOnes();
+	private void remove(MuteEntry mute) {
 
-		for (MuteEntry mute : mutes) {
-			if (mute.getUsername().equals(username)
-					|| ((mute.getIp() != null) && (mute.getIp().equals(ip))))
-			{
-				muted = true;
-				break;
+		mutesByName.remove(mute.getUsername());
+		if (mute.getIp() != null) {
+			Set<MuteEntry> ipMutes = mutesByIp.get(mute.getIp());
+			if (ipMutes != null) {
+				ipMutes.remove(mute);
+				if (ipMutes.isEmpty()) {
+					mutesByIp.remove(mute.getIp());
+				}
 			}
 		}
+	}
 
-		return muted;
+	private static boolean isActive(MuteEntry mute) {
+		return ((mute != null) && !mute.isExpired());
 	}
 
-	public boolean isIpMuted(InetAddress ip) {
+	public boolean isMuted(String username) {
+		return isActive(mutesByName.get(username));
+	}
 
-		boolean muted = false;
+	public boolean isMuted(String username, InetAddress ip) {
+		return (isMuted(username) || isIpMuted(ip));
+	}
 
-		clearExpiredOnes();
+	public boolean isIpMuted(InetAddress ip) {
 
-		for (MuteEntry mute : mutes) {
-			if ((mute.getIp() != null) && (mute.getIp().equals(ip))) {
-				muted = true;
-				break;
+		Set<MuteEntry> ipMutes = mutesByIp.get(ip);
+		if (ipMutes != null) {
+			for (MuteEntry mute : ipMutes) {
+				if (isActive(mute)) {
+					return true;
+				}
 			}
 		}
 
-		return muted;
+		return false;
 	}
 
 	/**
@@ -165,8 +209,12 @@ public class MuteList {
 	 */
 	public boolean mute(String username, long seconds, InetAddress ip) {
 
-		if (isMutedFast(username)) {
+		MuteEntry existing = mutesByName.get(username);
+		if (isActive(existing)) {
 			return false;
+		} else if (existing != null) {
+			// expired, but not yet purged by the expiry queue
+			remove(existing);
 		}
 
 		long until = 0L;
@@ -174,7 +222,19 @@ public class MuteList {
 			until = System.currentTimeMillis() + (seconds * 1000L);
 		}
 
-		mutes.add(new MuteEntry(username, until, ip));
+		MuteEntry mute = new MuteEntry(this, username, until, ip);
+		mutesByName.put(username, mute);
+		if (ip != null) {
+			Set<MuteEntry> ipMutes = mutesByIp.get(ip);
+			if (ipMutes == null) {
+				ipMutes = new HashSet<MuteEntry>(2);
+				mutesByIp.put(ip, ipMutes);
+			}
+			ipMutes.add(mute);
+		}
+		if (!mute.isPersistent() && (context != null)) {
+			context.getChannels().scheduleMuteExpiry(mute);
+		}
 
 		return true;
 	}
@@ -184,63 +244,47 @@ public class MuteList {
 	 */
 	public boolean unmute(String username) {
 
-		boolean unmuted = false;
-
-		for (MuteEntry mute : mutes) {
-			if (mute.getUsername().equals(username)) {
-				mutes.remove(mute);
-				unmuted = true;
-				break;
-			}
+		MuteEntry mute = mutesByName.get(username);
+		if (mute == null) {
+			return false;
 		}
 
-		return unmuted;
+		remove(mute);
+		return true;
 	}
 
+	/**
+	 * Returns the number of entries on this list.
+	 * This may include entries that expired within the current server loop
+	 * iteration.
+	 */
 	public int size() {
-
-		clearExpiredOnes();
-		return mutes.size();
-	}
-
-	public String getUsername(int index) {
-
-		if (index >= mutes.size()) {
-			return "";
-		} else {
-			return mutes.get(index).getUsername();
-		}
-	}
-
-	public long getRemainingSeconds(int index) {
-
-		// note: you shouldn't call clearExpiredOnes() here!
-		// (see "MUTELIST" command to see why)
-		if (index >= mutes.size()) {
-			return -1;
-		} else if (mutes.get(index).isPersistent()) {
-			return 0;
-		} else {
-			return (mutes.get(index).getExpireTime()
-					- System.currentTimeMillis()) / 1000L;
-		}
+		return mutesByName.size();
 	}
 
 	/**
-	 * @return 'null' if no IP is set for the user
+	 * Returns all entries on this list, in the order they were added.
+	 * This may include entries that expired within the current server loop
+	 * iteration; check {@link MuteEntry#isExpired()} if that matters.
 	 */
-	public InetAddress getIp(int index) {
-		return mutes.get(index).getIp();
+	public Collection<MuteEntry> getEntries() {
+		return Collections.unmodifiableCollection(mutesByName.values());
 	}
 
 	public boolean rename(String oldUsername, String newUsername) {
 
-		for (MuteEntry mute : mutes) {
-			if (mute.getUsername().equals(oldUsername)) {
-				mute.setUsername(newUsername);
-				return true;
-			}
+		MuteEntry mute = mutesByName.get(oldUsername);
+		if (mute == null) {
+			return false;
 		}
-		return false;
+
+		MuteEntry replaced = mutesByName.get(newUsername);
+		if (replaced != null) {
+			remove(replaced);
+		}
+		mutesByName.remove(oldUsername);
+		mute.setUsername(newUsername);
+		mutesByName.put(newUsername, mute);
+		return true;
 	}
 }
@@ -18,6 +18,7 @@
 package com.springrts.springls;
 
 
+import com.springrts.springls.util.Misc;
 import java.net.InetAddress;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
@@ -61,6 +62,23 @@ public class Server {
 	 */
 	private Set<String> supportedCompFlags;
 
+	/**
+	 * How long a resolved local IP address is reused, in milli-seconds.
+	 */
+	private static final long LOCAL_IP_ADDRESS_TTL = 60000;
+	/**
+	 * The last resolved non-loopback address of this machine,
+	 * or <code>null</code> if it could not be resolved (yet).
+	 * @see #getLocalIpAddress()
+	 */
+	private volatile InetAddress localIpAddress;
+	/**
+	 * Re-resolves {@link #localIpAddress} every
+	 * {@link #LOCAL_IP_ADDRESS_TTL} milli-seconds.
+	 * @see #startLocalIpAddressResolver()
+	 */
+	private Thread localIpAddressResolver;
+
 	public Server() {
 
 		startTime = System.currentTimeMillis();
@@ -68,6 +86,14 @@ public class Server {
 		timeoutLength = 50000;
 		redirectAddress = null;
 		supportedCompFlags = new HashSet<String>();
+		// the flags handled by Client itself
+		supportedCompFlags.add("a");
+		supportedCompFlags.add("b");
+		supportedCompFlags.add("sp");
+		supportedCompFlags.add("bs");
+		supportedCompFlags.add("pi");
+		localIpAddress = null;
+		localIpAddressResolver = null;
 	}
 
 	public static String getApplicationName() {
@@ -209,4 +235,51 @@ public class Server {
 	public Set<String> getSupportedCompFlags() {
 		return supportedCompFlags;
 	}
+
+	/**
+	 * Returns the local IP address of this machine, such as "192.168.1.100",
+	 * which is used instead of the loopback address for clients connecting
+	 * locally.
+	 * Enumerating the network interfaces is expensive, so this only returns
+	 * the address last resolved by a background thread, which re-resolves it
+	 * every {@link #LOCAL_IP_ADDRESS_TTL} milli-seconds.
+	 * @see com.springrts.springls.util.Misc#getLocalIpAddress()
+	 * @see #startLocalIpAddressResolver()
+	 * @return the local IP address, or <code>null</code> if it could not be
+	 *   resolved (yet)
+	 */
+	public InetAddress getLocalIpAddress() {
+
+		startLocalIpAddressResolver();
+
+		return localIpAddress;
+	}
+
+	/**
+	 * Starts the background thread resolving the local IP address,
+	 * unless it is running already.
+	 * @see #getLocalIpAddress()
+	 */
+	public synchronized void startLocalIpAddressResolver() {
+
+		if (localIpAddressResolver != null) {
+			return;
+		}
+
+		localIpAddressResolver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						localIpAddress = Misc.getLocalIpAddress();
+						Thread.sleep(LOCAL_IP_ADDRESS_TTL);
+					}
+				} catch (InterruptedException ex) {
+					// we are done
+				}
+			}
+		}, "local-ip-resolver");
+		localIpAddressResolver.setDaemon(true);
+		localIpAddressResolver.start();
+	}
 }
@@ -81,6 +81,120 @@ public final class ServerConfiguration {
 	 * This is only relevant if {@link #LAN_MODE} is <code>false</code>.
 	 */
 	public static final String USE_DATABASE = "database";
+	/**
+	 * Lines sent to at least this many clients at once (channel messages,
+	 * broadcasts to all users) are enqueued in parallel.
+	 * Use 0 to always send serially.
+	 */
+	public static final String BROADCAST_PARALLEL_THRESHOLD
+			= "broadcast.parallel.threshold";
+	/**
+	 * How many recipients are handled by a single task, when a line is
+	 * enqueued in parallel.
+	 * @see #BROADCAST_PARALLEL_THRESHOLD
+	 */
+	public static final String BROADCAST_PARALLEL_CHUNK_SIZE
+			= "broadcast.parallel.chunkSize";
+	/**
+	 * How many threads to use to enqueue lines in parallel.
+	 * Use 0 to use one per available processor.
+	 * @see #BROADCAST_PARALLEL_THRESHOLD
+	 */
+	public static final String BROADCAST_PARALLEL_THREADS
+			= "broadcast.parallel.threads";
+	/**
+	 * Minimum interval in seconds between two BATTLESUMMARY commands, sent to
+	 * clients which only receive the events of the battles they subscribed
+	 * to.
+	 */
+	public static final String BATTLE_SUMMARY_INTERVAL
+			= "battle.summary.interval";
+	/**
+	 * How many commands of a single client are executed at most in one
+	 * iteration of the main loop. The remaining ones are executed in the
+	 * next iterations, after the commands of all other clients.
+	 * Use 0 for no limit.
+	 */
+	public static final String CLIENT_COMMANDS_PER_ITERATION
+			= "client.commandsPerIteration";
+	/**
+	 * How many bytes of commands of a single client are executed at most in
+	 * one iteration of the main loop.
+	 * Use 0 for no limit.
+	 * @see #CLIENT_COMMANDS_PER_ITERATION
+	 */
+	public static final String CLIENT_BYTES_PER_ITERATION
+			= "client.bytesPerIteration";
+	/**
+	 * How many threads accept new connections, each on its own listening
+	 * channel if <code>SO_REUSEPORT</code> is supported.
+	 * Use 0 to accept them on the main loop.
+	 * @see Acceptor
+	 */
+	public static final String ACCEPTOR_THREADS = "acceptor.threads";
+	/**
+	 * Whether the accounts are additionally stored in a binary snapshot,
+	 * which is loaded instead of the text file on startup, if present.
+	 * Only used if no database is used.
+	 * @see com.springrts.springls.accounts.FSAccountsSnapshot
+	 */
+	public static final String ACCOUNTS_BINARY_SNAPSHOT
+			= "accounts.binarySnapshot";
+	/**
+	 * How many accounts are kept in memory at most, if possible.
+	 * The others are only loaded from the binary snapshot when needed.
+	 * Use 0 to keep all accounts in memory.
+	 * Only used if the binary snapshot is enabled.
+	 * @see #ACCOUNTS_BINARY_SNAPSHOT
+	 */
+	public static final String ACCOUNTS_HOT_LIMIT = "accounts.hotLimit";
+	/**
+	 * How many accounts are cached in front of the database.
+	 * Use 0 to not cache accounts, and write changes right away.
+	 * Only used if a database is used.
+	 * @see com.springrts.springls.accounts.CachingAccountsService
+	 */
+	public static final String DATABASE_CACHE_SIZE = "database.cacheSize";
+	/**
+	 * How many database connections are kept in a pool at most.
+	 * Use 0 to leave the connection handling to the persistence provider.
+	 * Pooling requires commons-dbcp and commons-pool on the class-path;
+	 * without them, the connections are not pooled either.
+	 * @see com.springrts.springls.database.Database
+	 */
+	public static final String DATABASE_POOL_SIZE = "database.pool.size";
+	/**
+	 * How many prepared statements are cached per pooled database connection.
+	 * Use 0 to not cache prepared statements.
+	 */
+	public static final String DATABASE_POOL_STATEMENTS
+			= "database.pool.statements";
+	/**
+	 * How many changes are sent to the database in one JDBC batch.
+	 * Use 0 to keep the setting of the persistence provider.
+	 */
+	public static final String DATABASE_BATCH_SIZE = "database.batchSize";
+	/**
+	 * How many threads do the blocking work of commands which support
+	 * asynchronous processing, like database access.
+	 * Use 0 to do all work on the main thread.
+	 * @see com.springrts.springls.commands.AsyncCommandExecutor
+	 */
+	public static final String COMMANDS_ASYNC_THREADS
+			= "commands.async.threads";
+	/**
+	 * How many logins are started per second at most.
+	 * Further ones wait in the login queue.
+	 * Use 0 for no limit.
+	 * @see #LOGIN_QUEUE_SIZE
+	 */
+	public static final String LOGIN_RATE = "login.rate";
+	/**
+	 * How many logins may wait in the login queue.
+	 * Further ones are denied.
+	 * @see #LOGIN_RATE
+	 */
+	public static final String LOGIN_QUEUE_SIZE = "login.queueSize";
 
 	private static final Configuration DEFAULTS = createDefaults();
 
@@ -105,6 +219,22 @@ public final class ServerConfiguration {
 		configuration.setProperty(ENGINE_VERSION, "*"); // all versions
 		configuration.setProperty(LOBBY_PROTOCOL_VERSION, "0.35");
 		configuration.setProperty(USE_DATABASE, false);
+		configuration.setProperty(BROADCAST_PARALLEL_THRESHOLD, 2000);
+		configuration.setProperty(BROADCAST_PARALLEL_CHUNK_SIZE, 512);
+		configuration.setProperty(BROADCAST_PARALLEL_THREADS, 0);
+		configuration.setProperty(BATTLE_SUMMARY_INTERVAL, 5);
+		configuration.setProperty(CLIENT_COMMANDS_PER_ITERATION, 20);
+		configuration.setProperty(CLIENT_BYTES_PER_ITERATION, 8192);
+		configuration.setProperty(ACCEPTOR_THREADS, 0);
+		configuration.setProperty(ACCOUNTS_BINARY_SNAPSHOT, false);
+		configuration.setProperty(ACCOUNTS_HOT_LIMIT, 0);
+		configuration.setProperty(DATABASE_CACHE_SIZE, 10000);
+		configuration.setProperty(DATABASE_POOL_SIZE, 15);
+		configuration.setProperty(DATABASE_POOL_STATEMENTS, 100);
+		configuration.setProperty(DATABASE_BATCH_SIZE, 50);
+		configuration.setProperty(COMMANDS_ASYNC_THREADS, 4);
+		configuration.setProperty(LOGIN_RATE, 50);
+		configuration.setProperty(LOGIN_QUEUE_SIZE, 5000);
 
 		return configuration;
 	}
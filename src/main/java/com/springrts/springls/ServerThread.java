@@ -41,6 +41,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -99,7 +100,17 @@ public class ServerThread implements ContextReceiver, LiveStateListener, Updatea
 	private static final long MAIN_LOOP_SLEEP = 10L;
 
 	private Context context;
+	/**
+	 * The listening channel, if connections are accepted on the main loop,
+	 * <code>null</code> otherwise.
+	 */
 	private ServerSocketChannel sSockChan;
+	/**
+	 * Accepts connections on separate threads, or <code>null</code> if this
+	 * is done on the main loop.
+	 * @see ServerConfiguration#ACCEPTOR_THREADS
+	 */
+	private Acceptor acceptor;
 	private Selector readSelector;
 	private boolean running;
 	/**
@@ -113,13 +124,23 @@ public class ServerThread implements ContextReceiver, LiveStateListener, Updatea
 	private ByteBuffer readBuffer;
 	private List<Updateable> updateables;
 	private UpdateableTracker updateableTracker;
+	/**
+	 * Clients which still had complete lines in their receive buffer after
+	 * using up their budget in the last iteration, in the order they will be
+	 * served in the next one.
+	 * @see ServerConfiguration#CLIENT_COMMANDS_PER_ITERATION
+	 */
+	private Set<Client> clientsWithPendingLines;
 
 
 	public ServerThread() {
 
 		this.context = null;
+		this.sSockChan = null;
+		this.acceptor = null;
 		this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
 		this.updateables = new ArrayList<Updateable>();
+		this.clientsWithPendingLines = new LinkedHashSet<Client>();
 		initDeprecatedCommands();
 	}
 
@@ -177,6 +198,8 @@ public class ServerThread implements ContextReceiver, LiveStateListener, Updatea
 		addUpdateable(getContext().getServerThread());
 		addUpdateable(getContext().getClients());
 		addUpdateable(getContext().getChannels());
+		addUpdateable(getContext().getBattles());
+		addUpdateable(getContext().getCommandProcessors().getAsyncExecutor());
 	}
 
 	private Context getContext() {
@@ -188,35 +211,48 @@ public class ServerThread implements ContextReceiver, LiveStateListener, Updatea
 
 		try {
 			SocketChannel clientChannel;
+			if (acceptor != null) {
+				// the connections were already accepted by the acceptor
+				// threads, we only have to register them
+				while ((clientChannel = acceptor.pollAccepted()) != null) {
+					registerNewConnection(clientChannel);
+				}
+				return;
+			}
 			// since sSockChan is non-blocking, this will return immediately
 			// regardless of whether there is a connection available
 			while ((clientChannel = sSockChan.accept()) != null) {
-				if (getContext().getServer().isRedirectActive()) {
-					LOG.debug("Client redirected to {}: {}",
-							getContext().getServer().getRedirectAddress().getHostAddress(),
-							clientChannel.socket().getInetAddress().getHostAddress());
-					redirectAndKill(clientChannel.socket());
-					continue;
-				}
-
-				Client client = getContext().getClients().addNewClient(
-						clientChannel, readSelector, SEND_BUFFER_SIZE);
-				if (client == null) {
-					continue;
-				}
-
-				// from this point on, we know that client
-				// has been successfully connected
-				client.sendWelcomeMessage();
-
-				LOG.debug("New client connected: {}",
-						client.getIp().getHostAddress());
+				registerNewConnection(clientChannel);
 			}
 		} catch (Exception ex) {
 			LOG.error("Exception in acceptNewConnections(): " + ex.getMessage(), ex);
 		}
 	}
 
+	private void registerNewConnection(SocketChannel clientChannel) {
+
+		if (getContext().getServer().isRedirectActive()) {
+			LOG.debug("Client redirected to {}: {}",
+					getContext().getServer().getRedirectAddress().getHostAddress(),
+					clientChannel.socket().getInetAddress().getHostAddress());
+			redirectAndKill(clientChannel.socket());
+			return;
+		}
+
+		Client client = getContext().getClients().addNewClient(
+				clientChannel, readSelector, SEND_BUFFER_SIZE);
+		if (client == null) {
+			return;
+		}
+
+		// from this point on, we know that client
+		// has been successfully connected
+		client.sendWelcomeMessage();
+
+		LOG.debug("New client connected: {}",
+				client.getIp().getHostAddress());
+	}
+
 	public boolean redirectAndKill(Socket socket) {
 		if (!context.getServer().isRedirectActive()) {
 			return false;
@@ -235,6 +271,11 @@ public class ServerThread implements ContextReceiver, LiveStateListener, Updatea
 	/** Check for incoming messages */
 	private void readIncomingMessages() {
 
+		// the clients left over from the last iteration are served first,
+		// followed by the ones we received new data from
+		Set<Client> toServe = clientsWithPendingLines;
+		clientsWithPendingLines = new LinkedHashSet<Client>();
+
 		Client client = null;
 		try {
 			// non-blocking select, returns immediately regardless of
@@ -274,8 +315,10 @@ public class ServerThread implements ContextReceiver, LiveStateListener, Updatea
 				if (nBytes == -1) {
 					LOG.debug("Socket disconnected - killing client");
 					channel.close();
-					// this will also close the socket channel
-					getContext().getClients().killClient(client);
+					// this will also close the socket channel;
+					// it is delayed, so many disconnects get handled together
+					getContext().getClients().killClientDelayed(client,
+							"Quit");
 				} else {
 					// use a CharsetDecoder to turn those bytes into a string
 					// and append it to the client's StringBuilder
@@ -283,29 +326,91 @@ public class ServerThread implements ContextReceiver, LiveStateListener, Updatea
 					String str = getContext().getServer().getAsciiDecoder().decode(readBuffer).toString();
 					readBuffer.clear();
 					client.appendToRecvBuf(str);
-
-					// TODO move this to Client#appendToRecvBuf(String)
-					// check for a full line
-					String line = client.readLine();
-					while (line != null) {
-						executeCommandWrapper(line, client);
-
-						if (!client.isAlive()) {
-							// in case the client was killed within the
-							// executeCommand() method
-							break;
-						}
-						line = client.readLine();
-					}
+					toServe.add(client);
 				}
 			}
 		} catch (IOException ioex) {
 			LOG.info("exception during select(): possibly due to force disconnect. Killing the client ...");
 			if (client != null) {
-				getContext().getClients().killClient(client, "Quit: connection lost");
+				getContext().getClients().killClientDelayed(client,
+						"Quit: connection lost");
 			}
 			LOG.debug("... the exception was:", ioex);
 		}
+
+		Configuration conf = getContext().getService(Configuration.class);
+		int maxCommands = conf.getInt(
+				ServerConfiguration.CLIENT_COMMANDS_PER_ITERATION);
+		int maxBytes = conf.getInt(
+				ServerConfiguration.CLIENT_BYTES_PER_ITERATION);
+		for (Client curClient : toServe) {
+			if (curClient.isAlive() && !curClient.isHalfDead()) {
+				executeReceivedLines(curClient, maxCommands, maxBytes);
+			}
+		}
+	}
+
+	/**
+	 * Executes the complete lines in the receive buffer of a client,
+	 * until it used up its budget for this iteration.
+	 * If lines are left over, the client is queued to be served again in the
+	 * next iteration, so a single client can not block all others.
+	 * @param maxCommands the command budget, 0 for no limit
+	 * @param maxBytes the budget in bytes of the commands, 0 for no limit
+	 */
+	private void executeReceivedLines(Client client, int maxCommands,
+			int maxBytes)
+	{
+		int commands = 0;
+		int bytes = 0;
+
+		if (client.isCommandProcessingSuspended()) {
+			// served again once the current command is complete
+			return;
+		}
+
+		// TODO move this to Client#appendToRecvBuf(String)
+		// check for a full line
+		String line = client.readLine();
+		while (line != null) {
+			executeCommandWrapper(line, client);
+
+			if (!client.isAlive()) {
+				// in case the client was killed within the
+				// executeCommand() method
+				return;
+			}
+			if (client.isCommandProcessingSuspended()) {
+				// the command is processed asynchronously;
+				// the following ones have to wait for it
+				return;
+			}
+
+			commands++;
+			bytes += line.length() + 1;
+			if (((maxCommands > 0) && (commands >= maxCommands))
+					|| ((maxBytes > 0) && (bytes >= maxBytes)))
+			{
+				if (client.hasLine()) {
+					clientsWithPendingLines.add(client);
+				}
+				return;
+			}
+			line = client.readLine();
+		}
+	}
+
+	/**
+	 * Makes the lines left in the receive buffer of a client be executed
+	 * in the next iteration.
+	 * This is used once the processing of the clients commands resumes.
+	 * @see Client#isCommandProcessingSuspended()
+	 */
+	public void serveReceivedLines(Client client) {
+
+		if (client.isAlive() && client.hasLine()) {
+			clientsWithPendingLines.add(client);
+		}
 	}
 
 	private void executeCommandWrapper(String command, Client client) {
@@ -447,18 +552,25 @@ public class ServerThread implements ContextReceiver, LiveStateListener, Updatea
 		Configuration configuration =
 				getContext().getService(Configuration.class);
 		int port = configuration.getInt(ServerConfiguration.PORT);
+		int acceptorThreads = configuration.getInt(
+				ServerConfiguration.ACCEPTOR_THREADS);
 
 		try {
 			context.getServer().setCharset("ISO-8859-1");
 
-			// open a non-blocking server socket channel
-			sSockChan = ServerSocketChannel.open();
-			sSockChan.configureBlocking(false);
-
-			// bind to localhost on designated port
-			//***InetAddress addr = InetAddress.getLocalHost();
-			//***sSockChan.socket().bind(new InetSocketAddress(addr, port));
-			sSockChan.socket().bind(new InetSocketAddress(port));
+			if (acceptorThreads > 0) {
+				acceptor = new Acceptor(port, acceptorThreads);
+				acceptor.start();
+			} else {
+				// open a non-blocking server socket channel
+				sSockChan = ServerSocketChannel.open();
+				sSockChan.configureBlocking(false);
+
+				// bind to localhost on designated port
+				//***InetAddress addr = InetAddress.getLocalHost();
+				//***sSockChan.socket().bind(new InetSocketAddress(addr, port));
+				sSockChan.socket().bind(new InetSocketAddress(port));
+			}
 
 			// get a selector for multiplexing the client channels
 			readSelector = Selector.open();
@@ -588,6 +700,10 @@ public class ServerThread implements ContextReceiver, LiveStateListener, Updatea
 		DateFormat dateTimeFormat = new SimpleDateFormat("yyyy.MM.dd 'at' hh:mm:ss z");
 
 		running = false;
+		if (acceptor != null) {
+			acceptor.stop();
+			acceptor = null;
+		}
 		LOG.info("Server stopped on {}", dateTimeFormat.format(new Date()));
 	}
 }
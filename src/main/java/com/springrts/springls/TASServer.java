@@ -61,6 +61,8 @@ public final class TASServer {
 
 		new com.springrts.springls.floodprotection.Activator().start(context.getFramework().getBundleContext());
 
+		new com.springrts.springls.database.Activator().start(context.getFramework().getBundleContext());
+
 		new com.springrts.springls.accounts.Activator().start(context.getFramework().getBundleContext());
 
 		new com.springrts.springls.bans.Activator().start(context.getFramework().getBundleContext());
@@ -77,6 +79,7 @@ public final class TASServer {
 		}
 
 		context.getServer().setStartTime(System.currentTimeMillis());
+		context.getServer().startLocalIpAddressResolver();
 
 		new com.springrts.springls.updateproperties.Activator().start(context.getFramework().getBundleContext());
 
@@ -47,6 +47,15 @@ public abstract class AbstractAccountsService implements AccountsService {
 		return context;
 	}
 
+	/**
+	 * Returns false by default.
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isThreadSafe() {
+		return false;
+	}
+
 	@Override
 	public void update() {
 		saveAccountsIfNeeded();
@@ -44,6 +44,13 @@ public interface AccountsService extends ContextReceiver, LiveStateListener,
 	 */
 	public boolean isReadyToOperate();
 
+	/**
+	 * Whether this service may be used by threads other then the main one,
+	 * for example to do the work of commands asynchronously.
+	 * @see com.springrts.springls.commands.AbstractAsyncCommandProcessor
+	 */
+	public boolean isThreadSafe();
+
 	/**
 	 * Returns the number of all accounts.
 	 */
@@ -21,6 +21,7 @@ package com.springrts.springls.accounts;
 import com.springrts.springls.Context;
 import com.springrts.springls.ServerConfiguration;
 import com.springrts.springls.Updateable;
+import com.springrts.springls.database.Database;
 import org.apache.commons.configuration.Configuration;
 
 import org.osgi.framework.BundleActivator;
@@ -74,7 +75,14 @@ public class Activator implements BundleActivator {
 		if (lanMode) {
 			accountsService = new LanAccountsService();
 		} else if (useDatabase) {
-			accountsService = new JPAAccountsService();
+			Database database = context.getService(Database.class);
+			int cacheSize = conf.getInt(ServerConfiguration.DATABASE_CACHE_SIZE);
+			if (cacheSize > 0) {
+				accountsService = new CachingAccountsService(
+						new JPAAccountsService(database), cacheSize);
+			} else {
+				accountsService = new JPAAccountsService(database);
+			}
 		} else {
 			accountsService = new FSAccountsService();
 		}
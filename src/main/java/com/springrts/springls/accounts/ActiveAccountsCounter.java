@@ -0,0 +1,136 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls.accounts;
+
+
+import com.springrts.springls.Account;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of the number of active accounts, without looking at all of
+ * them each time it is queried.
+ * Each account counts until one week after its last login, if its rank is
+ * above Newbie. The accounts are grouped by the minute in which they stop
+ * being active, and whole groups are dropped once that minute is over.
+ * @see AccountsService#getActiveAccountsSize()
+ * @author hoijui
+ */
+class ActiveAccountsCounter {
+
+	/** in milliseconds */
+	private static final long ACTIVE_PERIOD = 1000L * 60 * 60 * 24 * 7;
+	/** in milliseconds */
+	private static final long BUCKET_SIZE = 1000L * 60;
+
+	/** Number of accounts by the bucket in which they stop being active. */
+	private final TreeMap<Long, Integer> expiring;
+	/** Buckets up to this one were dropped already. */
+	private long expiredBucket;
+	private int active;
+
+
+	ActiveAccountsCounter() {
+
+		this.expiring = new TreeMap<Long, Integer>();
+		this.expiredBucket = Long.MIN_VALUE;
+		this.active = 0;
+	}
+
+
+	/**
+	 * Returns until when an account counts as active.
+	 * @return time in milliseconds, or 0 if it never does
+	 */
+	public static long activeUntil(long inGameTime, long lastLogin) {
+
+		if (inGameTime < Account.Rank.Beginner.getRequiredTime()) {
+			return 0;
+		}
+		return lastLogin + ACTIVE_PERIOD;
+	}
+
+	public static long activeUntil(Account account) {
+		return activeUntil(account.getInGameTime(), account.getLastLogin());
+	}
+
+	public void clear() {
+
+		expiring.clear();
+		active = 0;
+	}
+
+	/**
+	 * Counts an account.
+	 * @param activeUntil as returned by {@link #activeUntil(long, long)}
+	 */
+	public void add(long activeUntil) {
+
+		long bucket = activeUntil / BUCKET_SIZE;
+		if ((activeUntil <= 0) || (bucket <= expiredBucket)) {
+			return;
+		}
+		Integer count = expiring.get(bucket);
+		expiring.put(bucket, (count == null) ? 1 : (count + 1));
+		active++;
+	}
+
+	/**
+	 * Stops counting an account.
+	 * @param activeUntil the same value it was added with
+	 */
+	public void remove(long activeUntil) {
+
+		long bucket = activeUntil / BUCKET_SIZE;
+		if ((activeUntil <= 0) || (bucket <= expiredBucket)) {
+			return;
+		}
+		Integer count = expiring.get(bucket);
+		if (count == null) {
+			return;
+		}
+		if (count == 1) {
+			expiring.remove(bucket);
+		} else {
+			expiring.put(bucket, count - 1);
+		}
+		active--;
+	}
+
+	/**
+	 * Returns the number of accounts active at the given time.
+	 * Accounts stop being counted at the end of the minute their activity
+	 * ends in.
+	 */
+	public int getActive(long now) {
+
+		long nowBucket = (now / BUCKET_SIZE) - 1;
+		if (nowBucket > expiredBucket) {
+			Iterator<Map.Entry<Long, Integer>> expired
+					= expiring.headMap(nowBucket, true).entrySet().iterator();
+			while (expired.hasNext()) {
+				active -= expired.next().getValue();
+				expired.remove();
+			}
+			expiredBucket = nowBucket;
+		}
+		return active;
+	}
+}
@@ -0,0 +1,707 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.springrts.springls.accounts;
+
+
+import com.springrts.springls.Account;
+import com.springrts.springls.Context;
+import com.springrts.springls.ServerNotification;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches accounts in front of the database, so looking them up and changing
+ * them does not have to wait for the database.
+ * Accounts are cached by ID, name and lower-case name, with the least
+ * recently used ones evicted once the cache is full.
+ * Changes and removals are written by a background thread, in batches, each
+ * in one transaction. Changed accounts stay in the cache until they are
+ * written. Changes which could not be written are kept, and retried later,
+ * with growing intervals while writing fails.
+ * The numbers of accounts are counted by the background thread too, and
+ * lookups by last IP take the changes not yet written into account, so none
+ * of these wait for the pending changes to be written.
+ * Adding accounts, and fetching all of them, still go to the database
+ * directly.
+ * This service is thread-safe; the database is never accessed while holding
+ * the lock of the cache.
+ * @see JPAAccountsService
+ * @author hoijui
+ */
+public class CachingAccountsService extends AbstractAccountsService {
+
+	private static final Logger LOG
+			= LoggerFactory.getLogger(CachingAccountsService.class);
+
+	/**
+	 * How long changes are collected before they get written,
+	 * in milliseconds.
+	 */
+	private static final long FLUSH_INTERVAL = 1000;
+	/**
+	 * The longest time to wait before retrying to write changes which could
+	 * not be written, in milliseconds.
+	 */
+	private static final long MAX_RETRY_INTERVAL = 1000 * 60;
+	/** How often the accounts are counted, in milliseconds. */
+	private static final long COUNT_INTERVAL = 1000 * 60;
+
+	private final JPAAccountsService store;
+	private final int capacity;
+
+	/**
+	 * The cached accounts by ID, with the least recently used one first.
+	 * Guarded by <code>this</code>.
+	 */
+	private final LinkedHashMap<Integer, Account> byId;
+	/** Guarded by <code>this</code>. */
+	private final Map<String, Integer> idByName;
+	/** Guarded by <code>this</code>. */
+	private final Map<String, Integer> idByLowerName;
+
+	/**
+	 * Changed accounts by ID, not yet written.
+	 * Guarded by <code>this</code>.
+	 */
+	private Map<Integer, Account> dirty;
+	/**
+	 * Changed accounts by ID, currently being written.
+	 * Guarded by <code>this</code>.
+	 */
+	private Map<Integer, Account> flushing;
+	/**
+	 * Accounts by ID, which are to be removed from the database.
+	 * Guarded by <code>this</code>.
+	 */
+	private final Map<Integer, Account> removing;
+	/** Guarded by <code>this</code>. */
+	private int accountsSize;
+	/** Guarded by <code>this</code>. */
+	private int activeAccountsSize;
+	/**
+	 * Whether the accounts were counted already.
+	 * Guarded by <code>this</code>.
+	 */
+	private boolean counted;
+	/** Makes sure only one thread writes changes at a time. */
+	private final Object flushLock;
+	/**
+	 * Whether the last flush failed. This is used to report a failure
+	 * only once, instead of with every retry. Guarded by flushLock.
+	 */
+	private boolean failing;
+	private final Object flushSignal;
+	private Thread writer;
+	private volatile boolean running;
+
+
+	/**
+	 * @param capacity how many accounts are cached at most, not counting the
+	 *   ones with changes not yet written
+	 */
+	public CachingAccountsService(JPAAccountsService store, int capacity) {
+
+		this.store = store;
+		this.capacity = capacity;
+		this.byId = new LinkedHashMap<Integer, Account>(16, 0.75f, true);
+		this.idByName = new HashMap<String, Integer>();
+		this.idByLowerName = new HashMap<String, Integer>();
+		this.dirty = new LinkedHashMap<Integer, Account>();
+		this.flushing = new HashMap<Integer, Account>();
+		this.removing = new LinkedHashMap<Integer, Account>();
+		this.accountsSize = 0;
+		this.activeAccountsSize = 0;
+		this.counted = false;
+		this.flushLock = new Object();
+		this.failing = false;
+		this.flushSignal = new Object();
+		this.writer = null;
+		this.running = false;
+	}
+
+
+	@Override
+	public void receiveContext(Context context) {
+
+		super.receiveContext(context);
+		store.receiveContext(context);
+	}
+
+	@Override
+	public boolean isReadyToOperate() {
+		return store.isReadyToOperate();
+	}
+
+	@Override
+	public void starting() {
+
+		super.starting();
+		store.starting();
+	}
+
+	@Override
+	public void started() {
+
+		super.started();
+		store.started();
+	}
+
+	@Override
+	public void stopping() {
+
+		super.stopping();
+		store.stopping();
+	}
+
+	@Override
+	public void stopped() {
+
+		super.stopped();
+		running = false;
+		if (writer != null) {
+			synchronized (flushSignal) {
+				flushSignal.notifyAll();
+			}
+			try {
+				writer.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			writer = null;
+		}
+		if (!flush()) {
+			int lost;
+			synchronized (this) {
+				lost = dirty.size() + removing.size();
+			}
+			LOG.error("Failed writing {} account changes to the database;"
+					+ " they are lost", lost);
+		}
+		store.stopped();
+	}
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+
+	/**
+	 * Returns the number of accounts counted last, adjusted by the accounts
+	 * added and removed since then.
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getAccountsSize() {
+
+		synchronized (this) {
+			if (counted) {
+				return accountsSize;
+			}
+		}
+		count();
+		synchronized (this) {
+			return accountsSize;
+		}
+	}
+
+	/**
+	 * Returns the number of active accounts counted last.
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getActiveAccountsSize() {
+
+		synchronized (this) {
+			if (counted) {
+				return activeAccountsSize;
+			}
+		}
+		count();
+		synchronized (this) {
+			return activeAccountsSize;
+		}
+	}
+
+	/**
+	 * Counts the accounts in the database.
+	 * The ones which are still to be removed are not counted.
+	 */
+	private void count() {
+
+		int size = store.getAccountsSize();
+		int activeSize = store.getActiveAccountsSize();
+		synchronized (this) {
+			accountsSize = size - removing.size();
+			activeAccountsSize = activeSize;
+			counted = true;
+		}
+	}
+
+	/**
+	 * Starts the thread which writes the changes.
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean loadAccounts() {
+
+		boolean loaded = store.loadAccounts();
+		count();
+
+		if (writer == null) {
+			running = true;
+			writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeLoop();
+				}
+			}, "accounts-writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		return loaded;
+	}
+
+	/**
+	 * Writes the changed accounts to the database.
+	 * @param block if false, this only makes the background thread write
+	 *   them right away, instead of at the end of the current interval
+	 */
+	@Override
+	public void saveAccounts(boolean block) {
+
+		if (block) {
+			flush();
+		} else {
+			requestFlush();
+		}
+	}
+
+	/**
+	 * Makes the background thread write the changes right away, instead of
+	 * at the end of the current interval.
+	 */
+	private void requestFlush() {
+
+		synchronized (flushSignal) {
+			flushSignal.notifyAll();
+		}
+	}
+
+	@Override
+	public void saveAccountsIfNeeded() {}
+
+	@Override
+	public void addAccount(Account acc) {
+
+		// the database generates the ID
+		store.addAccount(acc);
+		if (acc.getId() != Account.NO_ACCOUNT_ID) {
+			synchronized (this) {
+				cache(acc);
+				accountsSize++;
+			}
+		}
+	}
+
+	/**
+	 * Some of the accounts may exist already, so they are counted again
+	 * afterwards.
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addAccounts(Iterable<Account> accs) {
+
+		store.addAccounts(accs);
+		for (Account acc : accs) {
+			invalidate(acc);
+		}
+		count();
+	}
+
+	/**
+	 * The account is removed from the database by the background thread.
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean removeAccount(Account acc) {
+
+		Integer id = acc.getId();
+		boolean known;
+		synchronized (this) {
+			if (removing.containsKey(id)) {
+				return false;
+			}
+			known = byId.containsKey(id);
+		}
+		if (!known) {
+			known = (store.getAccount(acc.getName()) != null);
+		}
+		if (!known) {
+			return false;
+		}
+
+		synchronized (this) {
+			invalidate(acc);
+			dirty.remove(id);
+			removing.put(id, acc);
+			accountsSize--;
+		}
+		requestFlush();
+
+		return true;
+	}
+
+	@Override
+	public Account getAccount(String username) {
+
+		Account act = lookupByName(username);
+		if (act == null) {
+			act = store.getAccount(username);
+			if (act != null) {
+				act = cachedOrCache(act);
+				if ((act != null) && !act.getName().equals(username)) {
+					// renamed, but not yet written
+					act = null;
+				}
+			}
+		}
+
+		return act;
+	}
+
+	@Override
+	public Account findAccountNoCase(String username) {
+
+		Account act = lookupByLowerName(username.toLowerCase());
+		if (act == null) {
+			act = store.findAccountNoCase(username);
+			if (act != null) {
+				act = cachedOrCache(act);
+				if ((act != null)
+						&& !act.getName().equalsIgnoreCase(username))
+				{
+					// renamed, but not yet written
+					act = null;
+				}
+			}
+		}
+
+		return act;
+	}
+
+	/**
+	 * Of multiple accounts with changes not yet written, which were last used
+	 * from this IP, the one with the highest ID is returned.
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Account findAccountByLastIP(InetAddress ip) {
+
+		Account act = null;
+		synchronized (this) {
+			act = findByLastIp(dirty, ip, act);
+			act = findByLastIp(flushing, ip, act);
+		}
+		if (act != null) {
+			return act;
+		}
+
+		act = store.findAccountByLastIP(ip);
+		if (act != null) {
+			act = cachedOrCache(act);
+			if ((act != null) && !ip.equals(act.getLastIp())) {
+				// used from an other IP since, but not yet written
+				act = null;
+			}
+		}
+
+		return act;
+	}
+
+	/**
+	 * @param found the account found so far, or <code>null</code>
+	 * @return the account with the highest ID of <code>found</code> and the
+	 *   ones in <code>accounts</code> last used from the IP
+	 */
+	private static Account findByLastIp(Map<Integer, Account> accounts,
+			InetAddress ip, Account found)
+	{
+		for (Account acc : accounts.values()) {
+			if (ip.equals(acc.getLastIp())
+					&& ((found == null) || (acc.getId() > found.getId())))
+			{
+				found = acc;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Updates the cache, and queues the account to be written by the
+	 * background thread. Changes are kept until they could be written.
+	 * @return false if the account is being removed
+	 */
+	@Override
+	public boolean mergeAccountChanges(Account account, String oldName) {
+
+		synchronized (this) {
+			if (removing.containsKey(account.getId())) {
+				return false;
+			}
+			if (!account.getName().equals(oldName)) {
+				// the account was renamed, maybe in place
+				idByName.remove(oldName);
+				idByLowerName.remove(oldName.toLowerCase());
+			}
+			cache(account);
+			dirty.put(account.getId(), account);
+		}
+
+		return true;
+	}
+
+	@Override
+	public List<Account> fetchAllAccounts() {
+
+		flush();
+		List<Account> acts = store.fetchAllAccounts();
+		if (acts != null) {
+			// hand out the cached objects, which may be changed already
+			synchronized (this) {
+				for (int a = 0; a < acts.size(); a++) {
+					Account cached = byId.get(acts.get(a).getId());
+					if (cached != null) {
+						acts.set(a, cached);
+					}
+				}
+				// the ones which could not be removed yet
+				Iterator<Account> actsIt = acts.iterator();
+				while (actsIt.hasNext()) {
+					if (removing.containsKey(actsIt.next().getId())) {
+						actsIt.remove();
+					}
+				}
+			}
+		}
+
+		return acts;
+	}
+
+	private synchronized Account lookupByName(String name) {
+
+		Integer id = idByName.get(name);
+		return (id == null) ? null : byId.get(id);
+	}
+
+	private synchronized Account lookupByLowerName(String lowerName) {
+
+		Integer id = idByLowerName.get(lowerName);
+		return (id == null) ? null : byId.get(id);
+	}
+
+	/**
+	 * Returns the cached object for an account loaded from the database,
+	 * as it may contain changes, or caches the loaded one.
+	 * The returned account may have a different name then the loaded one,
+	 * if it was renamed, and the change is not yet written.
+	 * @return <code>null</code> if the account is being removed
+	 */
+	private synchronized Account cachedOrCache(Account loaded) {
+
+		if (removing.containsKey(loaded.getId())) {
+			return null;
+		}
+		Account cached = byId.get(loaded.getId());
+		if (cached != null) {
+			return cached;
+		}
+		cache(loaded);
+		return loaded;
+	}
+
+	private synchronized void cache(Account acc) {
+
+		Account previous = byId.put(acc.getId(), acc);
+		if ((previous != null) && !previous.getName().equals(acc.getName())) {
+			idByName.remove(previous.getName());
+			idByLowerName.remove(previous.getName().toLowerCase());
+		}
+		idByName.put(acc.getName(), acc.getId());
+		idByLowerName.put(acc.getName().toLowerCase(), acc.getId());
+		evict();
+	}
+
+	private synchronized void invalidate(Account acc) {
+
+		Account cached = byId.remove(acc.getId());
+		if (cached != null) {
+			idByName.remove(cached.getName());
+			idByLowerName.remove(cached.getName().toLowerCase());
+		}
+	}
+
+	/**
+	 * Evicts the least recently used accounts, skipping the ones with changes
+	 * not yet written.
+	 */
+	private synchronized void evict() {
+
+		Iterator<Account> leastRecentlyUsed = byId.values().iterator();
+		while (leastRecentlyUsed.hasNext() && (byId.size() > capacity)) {
+			Account acc = leastRecentlyUsed.next();
+			Integer id = acc.getId();
+			if (!dirty.containsKey(id) && !flushing.containsKey(id)) {
+				leastRecentlyUsed.remove();
+				idByName.remove(acc.getName());
+				idByLowerName.remove(acc.getName().toLowerCase());
+			}
+		}
+	}
+
+	/**
+	 * Writes the changes at regular intervals, or less often while writing
+	 * fails, and counts the accounts.
+	 */
+	private void writeLoop() {
+
+		long interval = FLUSH_INTERVAL;
+		long lastCount = System.currentTimeMillis();
+		while (running) {
+			synchronized (flushSignal) {
+				try {
+					flushSignal.wait(interval);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+			if (flush()) {
+				interval = FLUSH_INTERVAL;
+			} else {
+				interval = Math.min(interval * 2, MAX_RETRY_INTERVAL);
+			}
+			long now = System.currentTimeMillis();
+			if ((now - lastCount) >= COUNT_INTERVAL) {
+				count();
+				lastCount = now;
+			}
+		}
+	}
+
+	/**
+	 * Writes all changed accounts to the database, in batched transactions,
+	 * and removes the accounts to be removed.
+	 * Changes and removals which could not be written are kept, and retried
+	 * with the next flush.
+	 * @return true if all changes were written
+	 */
+	private boolean flush() {
+
+		synchronized (flushLock) {
+			List<Account> toWrite;
+			List<Account> toRemove;
+			synchronized (this) {
+				if (dirty.isEmpty() && removing.isEmpty()) {
+					return true;
+				}
+				flushing = dirty;
+				dirty = new LinkedHashMap<Integer, Account>();
+				toWrite = new ArrayList<Account>(flushing.values());
+				toRemove = new ArrayList<Account>(removing.values());
+			}
+
+			List<Account> failed = new ArrayList<Account>();
+			if (!toWrite.isEmpty() && !store.mergeAccountChanges(toWrite)) {
+				// write them one by one, to find the faulty ones
+				for (Account acc : toWrite) {
+					if (!store.mergeAccountChanges(acc, acc.getName())) {
+						failed.add(acc);
+					}
+				}
+			}
+			int failedRemovals = 0;
+			for (Account acc : toRemove) {
+				// it may not exist in the database anymore
+				if (store.removeAccountIfExists(acc) != null) {
+					synchronized (this) {
+						removing.remove(acc.getId());
+					}
+				} else {
+					failedRemovals++;
+				}
+			}
+
+			synchronized (this) {
+				for (Account acc : failed) {
+					Integer id = acc.getId();
+					// newer changes or a removal take precedence
+					if (!dirty.containsKey(id) && !removing.containsKey(id)) {
+						dirty.put(id, acc);
+					}
+				}
+				flushing = new HashMap<Integer, Account>();
+			}
+
+			int failures = failed.size() + failedRemovals;
+			if (failures > 0) {
+				reportFlushFailure(failures);
+			} else if (failing) {
+				failing = false;
+				LOG.info("Writing account changes to the database works"
+						+ " again");
+			}
+
+			return (failures == 0);
+		}
+	}
+
+	/**
+	 * Reports that changes could not be written, but only the first time
+	 * in a row.
+	 */
+	private void reportFlushFailure(int failures) {
+
+		if (failing) {
+			LOG.debug("Failed writing {} account changes to the database"
+					+ " again", failures);
+			return;
+		}
+
+		failing = true;
+		LOG.error("Failed writing {} account changes to the database;"
+				+ " retrying later", failures);
+		if (getContext() != null) {
+			ServerNotification sn = new ServerNotification(
+					"Error writing accounts");
+			sn.addLine(String.format("Serious error: %d account changes could"
+					+ " not be written to the database. They are kept in"
+					+ " memory and retried, but will be lost if the server"
+					+ " stops before this works again. See the server log"
+					+ " for details.", failures));
+			getContext().getServerNotifications().addNotification(sn);
+		}
+	}
+}
@@ -0,0 +1,499 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls.accounts;
+
+
+import com.springrts.springls.Context;
+import com.springrts.springls.ContextReceiver;
+import com.springrts.springls.ServerNotification;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of the changes to the accounts, since they were last
+ * written to the accounts file.
+ * Each change is one line of text, and several of them are written and
+ * synced to disk together by a background thread (group commit), so the main
+ * thread never waits for the disk.
+ * The journal consists of generations, each in its own file. When the
+ * accounts file is rewritten, a new generation is started, and the older ones
+ * are deleted once the new accounts file is in place.
+ * Records which could not be written are kept, and written with the next
+ * commit. A record which was only partly written is cut off again, or left
+ * at the end of its generation, where it is skipped on replay.
+ * @see FSAccountsService
+ * @author hoijui
+ */
+public class FSAccountsJournal implements ContextReceiver {
+
+	private static final Logger LOG
+			= LoggerFactory.getLogger(FSAccountsJournal.class);
+
+	/** In milliseconds */
+	private static final long COMMIT_INTERVAL = 1000;
+
+	/**
+	 * Used to replay the records of the journal.
+	 */
+	public static interface RecordHandler {
+
+		/**
+		 * Applies one record to the accounts.
+		 * @param record the record as passed to
+		 *   {@link FSAccountsJournal#append(String)}
+		 */
+		void handle(String record);
+	}
+
+	/** The journal files are called like this, followed by the generation. */
+	private final String filePrefix;
+	/** Guarded by this */
+	private int generation;
+	/** Guarded by this */
+	private FileOutputStream out;
+	/** Guarded by this */
+	private FileChannel channel;
+	/**
+	 * The size of the current generation, up to the last record written
+	 * completely. Guarded by this.
+	 */
+	private long validSize;
+	/** Whether the journal was closed. Guarded by this. */
+	private boolean closed;
+	/**
+	 * Whether the last commit failed. This is used to report a failure
+	 * only once, instead of with every commit. Guarded by this.
+	 */
+	private boolean failing;
+	/** Records not yet written, guarded by itself. */
+	private List<String> pending;
+	private Thread committer;
+	/**
+	 * Used to wake up the committer before the end of the commit interval.
+	 * Interrupting it is not an option, as that would close the channel.
+	 */
+	private final Object commitSignal;
+	private volatile boolean running;
+	private Context context = null;
+
+
+	/**
+	 * @param filePrefix path of the journal files, without the generation
+	 */
+	public FSAccountsJournal(String filePrefix) {
+
+		this.filePrefix = filePrefix;
+		this.generation = 0;
+		this.out = null;
+		this.channel = null;
+		this.validSize = 0;
+		this.closed = false;
+		this.failing = false;
+		this.pending = new ArrayList<String>();
+		this.committer = null;
+		this.commitSignal = new Object();
+		this.running = false;
+	}
+
+
+	@Override
+	public void receiveContext(Context context) {
+		this.context = context;
+	}
+
+	/**
+	 * Starts a new generation after the existing ones, and the thread which
+	 * writes the appended records to it.
+	 * @throws IOException if the journal file could not be created
+	 */
+	public void open() throws IOException {
+
+		List<Integer> generations = findGenerations();
+		synchronized (this) {
+			generation = generations.isEmpty() ? 1
+					: (generations.get(generations.size() - 1) + 1);
+			openFile();
+		}
+
+		running = true;
+		committer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				commitLoop();
+			}
+		}, "accounts-journal");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Writes the remaining records, and stops the background thread.
+	 */
+	public void close() {
+
+		running = false;
+		if (committer != null) {
+			requestCommit();
+			try {
+				committer.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			committer = null;
+		}
+		synchronized (this) {
+			if (!commit()) {
+				synchronized (pending) {
+					LOG.error("Failed writing {} account changes to the"
+							+ " journal; they are lost", pending.size());
+				}
+			}
+			closeFile();
+			closed = true;
+		}
+	}
+
+	/**
+	 * Queues a record to be written with the next commit.
+	 * This does not block on disk I/O.
+	 * @param record one line of text, without EOL
+	 */
+	public void append(String record) {
+
+		synchronized (pending) {
+			pending.add(record);
+		}
+	}
+
+	/**
+	 * Makes the background thread write the queued records right away,
+	 * instead of at the end of the current commit interval.
+	 */
+	public void requestCommit() {
+
+		synchronized (commitSignal) {
+			commitSignal.notifyAll();
+		}
+	}
+
+	/**
+	 * Writes all queued records to the journal file, and syncs it to disk.
+	 * Records which could not be written are queued again, in front of the
+	 * ones appended in the meantime.
+	 * @return true if all records were written
+	 */
+	public synchronized boolean commit() {
+
+		List<String> toWrite;
+		synchronized (pending) {
+			if (pending.isEmpty()) {
+				return true;
+			}
+			toWrite = pending;
+			pending = new ArrayList<String>();
+		}
+		if (closed) {
+			LOG.error("Journal is closed; {} account changes were not"
+					+ " written", toWrite.size());
+			return false;
+		}
+
+		byte[][] records = new byte[toWrite.size()][];
+		int dataSize = 0;
+		for (int r = 0; r < records.length; r++) {
+			records[r] = (toWrite.get(r) + '\n').getBytes();
+			dataSize += records[r].length;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(dataSize);
+		for (byte[] record : records) {
+			buf.put(record);
+		}
+		buf.flip();
+
+		long written = 0;
+		try {
+			if (channel == null) {
+				// starting the current generation failed before
+				openFile();
+			}
+			while (buf.hasRemaining()) {
+				written += channel.write(buf);
+			}
+			channel.force(false);
+		} catch (IOException ex) {
+			handleCommitFailure(toWrite, records, written, ex);
+			return false;
+		}
+		validSize += dataSize;
+
+		if (failing) {
+			failing = false;
+			LOG.info("Writing account changes to the journal works again");
+		}
+
+		return true;
+	}
+
+	/**
+	 * Queues the records which were not written completely again, and cuts
+	 * off a partly written one. If that is not possible, a new generation is
+	 * started, so the next record will not be appended to the partly
+	 * written one.
+	 */
+	private void handleCommitFailure(List<String> toWrite, byte[][] records,
+			long written, IOException cause)
+	{
+		// records written completely stay in the file, but may not be synced
+		int completeRecords = 0;
+		long completeSize = 0;
+		while ((completeRecords < records.length) && ((completeSize
+				+ records[completeRecords].length) <= written))
+		{
+			completeSize += records[completeRecords].length;
+			completeRecords++;
+		}
+		validSize += completeSize;
+		synchronized (pending) {
+			List<String> requeued = new ArrayList<String>(
+					toWrite.subList(completeRecords, toWrite.size()));
+			requeued.addAll(pending);
+			pending = requeued;
+		}
+
+		if ((channel != null) && (written > completeSize)) {
+			try {
+				channel.truncate(validSize);
+			} catch (IOException ex) {
+				LOG.warn("Failed cutting off a partly written record from"
+						+ " journal generation " + generation
+						+ "; starting a new one", ex);
+				closeFile();
+				generation++;
+				// the file is opened with the next commit
+			}
+		}
+
+		if (!failing) {
+			failing = true;
+			LOG.error("Failed writing " + (toWrite.size() - completeRecords)
+					+ " account changes to the journal; retrying with the"
+					+ " next commit", cause);
+			if (context != null) {
+				ServerNotification sn = new ServerNotification(
+						"Error writing accounts journal");
+				sn.addLine("Serious error: account changes could not be"
+						+ " written to the journal. They are kept in memory"
+						+ " and retried every second, but will be lost if the"
+						+ " server stops before this works again."
+						+ " Exception trace:");
+				sn.addException(cause);
+				context.getServerNotifications().addNotification(sn);
+			}
+		} else {
+			LOG.debug("Failed writing account changes to the journal again",
+					cause);
+		}
+	}
+
+	/**
+	 * Commits the queued records and starts a new generation.
+	 * This is called right before the accounts get copied for writing them
+	 * to the accounts file, so that file will contain all the changes of
+	 * the previous generations.
+	 * @return the last generation whose changes are contained in the accounts
+	 *   copied right after this call
+	 * @see #deleteUpTo(int)
+	 */
+	public synchronized int rotate() {
+
+		commit();
+		if (closed) {
+			// the next generation will be started on open
+			return generation;
+		}
+		closeFile();
+		int previous = generation;
+		generation++;
+		try {
+			openFile();
+		} catch (IOException ex) {
+			// the next commit tries again
+			LOG.error("Failed to start a new journal generation", ex);
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Returns the generation new records are currently appended to.
+	 */
+	public synchronized int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Deletes the files of all the generations up to the given one.
+	 * This may only be called once their changes are safely stored in the
+	 * accounts file.
+	 */
+	public void deleteUpTo(int lastGeneration) {
+
+		for (Integer oldGeneration : findGenerations()) {
+			if (oldGeneration > lastGeneration) {
+				break;
+			}
+			File journalFile = getFile(oldGeneration);
+			if (!journalFile.delete()) {
+				LOG.warn("Failed to delete the old journal file {}",
+						journalFile.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Passes all records of all existing generations, from the oldest to the
+	 * latest, to the handler.
+	 * A record which was only partly written, for example due to a crash,
+	 * is skipped.
+	 * @return the number of records replayed
+	 * @throws IOException if one of the journal files could not be read
+	 */
+	public int replay(RecordHandler handler) throws IOException {
+
+		int records = 0;
+		for (Integer curGeneration : findGenerations()) {
+			String content = readFile(getFile(curGeneration));
+			int start = 0;
+			int end;
+			while ((end = content.indexOf('\n', start)) != -1) {
+				if (end > start) {
+					handler.handle(content.substring(start, end));
+					records++;
+				}
+				start = end + 1;
+			}
+			if (start < content.length()) {
+				LOG.warn("Skipping incomplete record at the end of journal"
+						+ " generation {}", curGeneration);
+			}
+		}
+
+		return records;
+	}
+
+	private static String readFile(File file) throws IOException {
+
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] content = new byte[(int) file.length()];
+			int read = 0;
+			while (read < content.length) {
+				int n = in.read(content, read, content.length - read);
+				if (n == -1) {
+					break;
+				}
+				read += n;
+			}
+			return new String(content, 0, read);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void commitLoop() {
+
+		while (running) {
+			synchronized (commitSignal) {
+				try {
+					commitSignal.wait(COMMIT_INTERVAL);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+			commit();
+		}
+	}
+
+	private File getFile(int fileGeneration) {
+		return new File(filePrefix + fileGeneration);
+	}
+
+	/**
+	 * Returns the generations of all existing journal files, in ascending
+	 * order.
+	 */
+	private List<Integer> findGenerations() {
+
+		File prefixFile = new File(filePrefix).getAbsoluteFile();
+		File dir = prefixFile.getParentFile();
+		String namePrefix = prefixFile.getName();
+		List<Integer> generations = new ArrayList<Integer>();
+		String[] fileNames = (dir == null) ? null : dir.list();
+		if (fileNames != null) {
+			for (String fileName : fileNames) {
+				if (!fileName.startsWith(namePrefix)) {
+					continue;
+				}
+				try {
+					generations.add(Integer.valueOf(
+							fileName.substring(namePrefix.length())));
+				} catch (NumberFormatException ex) {
+					// not one of our files
+				}
+			}
+		}
+		Collections.sort(generations);
+
+		return generations;
+	}
+
+	/** Has to be called while holding the lock on this. */
+	private void openFile() throws IOException {
+
+		out = new FileOutputStream(getFile(generation), true);
+		channel = out.getChannel();
+		validSize = channel.size();
+	}
+
+	/** Has to be called while holding the lock on this. */
+	private void closeFile() {
+
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException ex) {
+				LOG.warn("Failed closing journal generation " + generation,
+						ex);
+			}
+		}
+		out = null;
+		channel = null;
+	}
+}
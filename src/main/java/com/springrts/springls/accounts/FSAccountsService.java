@@ -19,6 +19,8 @@ package com.springrts.springls.accounts;
 
 
 import com.springrts.springls.Account;
+import com.springrts.springls.Clients;
+import com.springrts.springls.ServerConfiguration;
 import com.springrts.springls.util.Misc;
 import java.io.BufferedReader;
 import java.io.File;
@@ -26,14 +28,40 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.net.InetAddress;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.apache.commons.configuration.Configuration;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Keeps the accounts in memory, and stores them in a text file.
+ * Changes are appended to a journal as they happen, and the accounts file is
+ * only rewritten periodically, which compacts the journal.
+ * Optionally, the accounts are also written to a binary snapshot, which is
+ * faster to load then the text file. The text file stays the format for
+ * importing and exporting accounts.
+ * With the binary snapshot, the number of accounts kept in memory may be
+ * limited. The others stay in the memory mapped snapshot (the cold tier),
+ * and are loaded when they are looked up, for example on login.
+ * The least recently used accounts which did not change since the snapshot
+ * was written, and are not logged in, are evicted to the cold tier again.
+ * Lookups by last IP and the number of active accounts are served from
+ * indices, which are kept up to date with every change.
+ * @see FSAccountsJournal
+ * @see FSAccountsSnapshot
  * @author Betalord
  */
 public class FSAccountsService extends AbstractAccountsService {
@@ -42,14 +70,78 @@ public class FSAccountsService extends AbstractAccountsService {
 
 	/** in milliseconds */
 	private static final long SAVE_ACCOUNT_INFO_INTERVAL = 1000 * 60 * 60;
+	/**
+	 * How often we check whether accounts have to be evicted to the cold
+	 * tier, in milliseconds.
+	 */
+	private static final long EVICTION_INTERVAL = 1000 * 10;
 
 	public static final String ACCOUNTS_INFO_FILEPATH = "accounts.txt";
+	/**
+	 * The journal files are called like this, followed by their generation.
+	 */
+	public static final String ACCOUNTS_JOURNAL_FILEPATH_PREFIX
+			= ACCOUNTS_INFO_FILEPATH + ".journal.";
+	/**
+	 * The binary snapshot of the accounts.
+	 * @see ServerConfiguration#ACCOUNTS_BINARY_SNAPSHOT
+	 */
+	public static final String ACCOUNTS_SNAPSHOT_FILEPATH = "accounts.bin";
+
+	/** Journal record prefix for an added or changed account. */
+	private static final String JOURNAL_UPDATE = "U ";
+	/** Journal record prefix for a renamed account. */
+	private static final String JOURNAL_RENAME = "N ";
+	/** Journal record prefix for a removed account. */
+	private static final String JOURNAL_REMOVE = "D ";
+
+	/** Marks an account in memory as unchanged since the snapshot. */
+	private static final int CLEAN = -1;
 
-	// note: ArrayList is not synchronized!
-	// Use Collections.synchronizedList(...) instead,
-	// if multiple threads are going to access it
-	private List<Account> accounts = new ArrayList<Account>();
+	/**
+	 * The accounts kept in memory, by lower-case name,
+	 * with the least recently used one first.
+	 * Note: this is not synchronized!
+	 */
+	private final LinkedHashMap<String, HotAccount> hot
+			= new LinkedHashMap<String, HotAccount>(16, 0.75f, true);
+	/**
+	 * Accounts from old accounts files, whose names differ only in case from
+	 * the one of an account in <code>hot</code>, by lower-case name.
+	 * They are kept in memory, and the account in <code>hot</code> with the
+	 * same lower-case name is never evicted, so lookups by exact name find
+	 * all of them.
+	 */
+	private final Map<String, List<HotAccount>> caseCollisions
+			= new HashMap<String, List<HotAccount>>();
+	/**
+	 * The accounts only stored in the binary snapshot,
+	 * or <code>null</code> if all accounts are kept in memory.
+	 */
+	private FSColdAccounts cold = null;
+	/**
+	 * Names of the accounts removed or renamed, with the journal
+	 * generation of the change, until a snapshot without them was written.
+	 */
+	private final Map<String, Integer> removedInGeneration
+			= new HashMap<String, Integer>();
+	/**
+	 * The accounts in memory by last IP.
+	 * The cold tier has an index of its own.
+	 */
+	private final Map<InetAddress, Set<HotAccount>> ipIndex
+			= new HashMap<InetAddress, Set<HotAccount>>();
+	/** Counts the active accounts, in memory and in the cold tier. */
+	private final ActiveAccountsCounter activeAccounts
+			= new ActiveAccountsCounter();
 	private FSSaveAccountsThread saveAccountsThread = null;
+	/** The last journal generation contained in the accounts being saved. */
+	private int savingGeneration = 0;
+	/**
+	 * Records all changes since the accounts file was last written,
+	 * or <code>null</code> if the accounts were not loaded from disk.
+	 */
+	private FSAccountsJournal journal = null;
 	private int biggestAccountId = 1000;
 
 	/**
@@ -57,38 +149,76 @@ public class FSAccountsService extends AbstractAccountsService {
 	 * @see java.lang.System#currentTimeMillis()
 	 */
 	private long lastSaveAccountsTime = System.currentTimeMillis();
+	/**
+	 * Time we last evicted accounts to the cold tier.
+	 * @see java.lang.System#currentTimeMillis()
+	 */
+	private long lastEvictionTime = System.currentTimeMillis();
+
+	/** The accounts file */
+	private final File textFile;
+	/** The binary snapshot, only used if enabled */
+	private final File snapshotFile;
+	/** Path of the journal files, without the generation */
+	private final String journalFilePrefix;
 
 	/**
-	 * Used to speed up searching for accounts by username.
-	 * (TreeMap class implements efficient Red-Black trees)
-	 * @see mapNoCase
+	 * An account kept in memory.
 	 */
-	private static TreeMap<String, Account> map = new TreeMap<String, Account>(
-			new java.util.Comparator<String>() {
+	private static class HotAccount {
+
+		/** The object handed out to the rest of the server. */
+		private Account account;
+		/** The record of the account in the cold tier, or -1. */
+		private int record;
+		/**
+		 * The journal generation of the last change to the account,
+		 * or {@link #CLEAN} if it is unchanged since the snapshot.
+		 */
+		private int changedInGeneration;
+		/** The last IP under which the account is in the index. */
+		private InetAddress indexedIp;
+		/** The value the account is counted with as active account. */
+		private long activeUntil;
+
+		HotAccount(Account account, int record, int changedInGeneration) {
+
+			this.account = account;
+			this.record = record;
+			this.changedInGeneration = changedInGeneration;
+			this.indexedIp = null;
+			this.activeUntil = 0;
+		}
+	}
 
-				public int compare(String s1, String s2) {
-					return s1.compareTo(s2);
-				}
-			});
 
 	/**
-	 * Same as 'map', only that this ignores case.
-	 * @see map
+	 * Uses the files in the current working directory.
 	 */
-	private static TreeMap<String, Account> mapNoCase = new TreeMap<String, Account>(
-			new java.util.Comparator<String>() {
+	public FSAccountsService() {
+		this(null);
+	}
 
-				public int compare(String s1, String s2) {
-					return s1.compareToIgnoreCase(s2);
-				}
-			});
+	/**
+	 * Uses the files in the given directory.
+	 * This is used by the tests.
+	 * @param dir where the files are, or <code>null</code> for the current
+	 *   working directory
+	 */
+	FSAccountsService(File dir) {
+
+		this.textFile = new File(dir, ACCOUNTS_INFO_FILEPATH);
+		this.snapshotFile = new File(dir, ACCOUNTS_SNAPSHOT_FILEPATH);
+		this.journalFilePrefix = new File(dir,
+				ACCOUNTS_JOURNAL_FILEPATH_PREFIX).getPath();
+	}
 
 
 	@Override
 	public boolean isReadyToOperate() {
 
-		if (!(new File(ACCOUNTS_INFO_FILEPATH)).exists()) {
-			LOG.warn("Accounts info file \"{}\" not found", ACCOUNTS_INFO_FILEPATH);
+		if (!textFile.exists() && !snapshotFile.exists()) {
+			LOG.warn("Accounts info file \"{}\" not found", textFile);
 			return false;
 		}
 
@@ -97,25 +227,17 @@ public class FSAccountsService extends AbstractAccountsService {
 
 	@Override
 	public int getAccountsSize() {
-		return accounts.size();
+
+		int collisions = 0;
+		for (List<HotAccount> sameLowerName : caseCollisions.values()) {
+			collisions += sameLowerName.size();
+		}
+		return hot.size() + collisions + ((cold == null) ? 0 : cold.size());
 	}
 
 	@Override
 	public int getActiveAccountsSize() {
-
-		int activeAccounts = 0;
-
-		final long oneWeekAgo = System.currentTimeMillis() - (1000 * 60 * 60 * 24 * 7);
-		for (int i = 0; i < getAccountsSize(); i++) {
-			Account act = getAccount(i);
-			if ((act.getRank().compareTo(Account.Rank.Newbie) > 0)
-					&& (act.getLastLogin() > oneWeekAgo))
-			{
-				activeAccounts++;
-			}
-		}
-
-		return activeAccounts;
+		return activeAccounts.getActive(System.currentTimeMillis());
 	}
 
 
@@ -164,8 +286,37 @@ public class FSAccountsService extends AbstractAccountsService {
 		return act;
 	}
 
+	/**
+	 * Whether the accounts are also stored in a binary snapshot.
+	 * @see ServerConfiguration#ACCOUNTS_BINARY_SNAPSHOT
+	 */
+	private boolean isBinarySnapshotEnabled() {
+
+		if (getContext() == null) {
+			return false;
+		}
+		Configuration conf = getContext().getService(Configuration.class);
+		return conf.getBoolean(ServerConfiguration.ACCOUNTS_BINARY_SNAPSHOT);
+	}
+
+	/**
+	 * How many accounts are kept in memory at most, if possible.
+	 * @return the limit, or 0 if all accounts are kept in memory
+	 * @see ServerConfiguration#ACCOUNTS_HOT_LIMIT
+	 */
+	private int getHotLimit() {
+
+		if (!isBinarySnapshotEnabled()) {
+			return 0;
+		}
+		Configuration conf = getContext().getService(Configuration.class);
+		return conf.getInt(ServerConfiguration.ACCOUNTS_HOT_LIMIT);
+	}
+
 	/**
 	 * (Re-)Loads accounts from disk.
+	 * If enabled, they are loaded from the binary snapshot, unless the text
+	 * file is newer, for example because it was edited by hand.
 	 * @return false if loading failed, true otherwise
 	 */
 	@Override
@@ -173,77 +324,190 @@ public class FSAccountsService extends AbstractAccountsService {
 
 		long time = System.currentTimeMillis();
 
+		boolean useSnapshot = isBinarySnapshotEnabled()
+				&& snapshotFile.exists()
+				&& (!textFile.exists()
+				|| (snapshotFile.lastModified() >= textFile.lastModified()));
+		String loadedFrom = (useSnapshot ? snapshotFile : textFile).getPath();
+
+		try {
+			hot.clear();
+			caseCollisions.clear();
+			cold = null;
+			removedInGeneration.clear();
+			ipIndex.clear();
+			activeAccounts.clear();
+
+			if (useSnapshot) {
+				try {
+					readSnapshot(snapshotFile);
+				} catch (IOException ex) {
+					if (!textFile.exists()) {
+						throw ex;
+					}
+					LOG.warn("Failed reading accounts from "
+							+ snapshotFile + ", reading " + textFile
+							+ " instead", ex);
+					hot.clear();
+					caseCollisions.clear();
+					cold = null;
+					ipIndex.clear();
+					activeAccounts.clear();
+					loadedFrom = textFile.getPath();
+					readAccountsFile();
+				}
+			} else {
+				readAccountsFile();
+			}
+
+			// apply the changes made after the accounts file was written
+			if (journal != null) {
+				journal.close();
+			}
+			journal = new FSAccountsJournal(journalFilePrefix);
+			journal.receiveContext(getContext());
+			int changes = journal.replay(new JournalReplayer());
+			if (changes > 0) {
+				LOG.info("{} account changes replayed from the journal",
+						changes);
+			}
+			journal.open();
+		} catch (IOException ex) {
+			LOG.error("Failed updating accounts info from "
+					+ loadedFrom + "! Skipping ...", ex);
+			return false;
+		}
+
+		LOG.info("{} accounts information read from {} ({} ms)",
+				new Object[] {
+					getAccountsSize(),
+					loadedFrom,
+					(System.currentTimeMillis() - time)
+				});
+
+		return true;
+	}
+
+	/**
+	 * Reads the accounts from the binary snapshot.
+	 * If the number of accounts in memory is limited, they are left in the
+	 * cold tier.
+	 */
+	private void readSnapshot(File snapshotFile) throws IOException {
+
+		if (getHotLimit() > 0) {
+			cold = FSColdAccounts.open(snapshotFile);
+			FSAccountsSnapshot snapshot = cold.getSnapshot();
+			for (int r = 0; r < snapshot.size(); r++) {
+				biggestAccountId = Math.max(biggestAccountId,
+						snapshot.getId(r));
+				activeAccounts.add(coldActiveUntil(snapshot, r));
+			}
+		} else {
+			int threads = Runtime.getRuntime().availableProcessors();
+			for (Account act : FSAccountsSnapshot.read(snapshotFile, threads))
+			{
+				putAccountUnjournaled(act);
+			}
+		}
+	}
+
+	/**
+	 * Reads the accounts from the text file.
+	 */
+	private void readAccountsFile() throws IOException {
+
 		Reader fIn = null;
 		BufferedReader in = null;
 		try {
-			fIn = new FileReader(ACCOUNTS_INFO_FILEPATH);
+			fIn = new FileReader(textFile);
 			in = new BufferedReader(fIn);
 
-			accounts.clear();
-
 			String line;
 			while ((line = in.readLine()) != null) {
 				if (line.isEmpty()) {
 					continue;
 				}
-				Account act = FSAccountsService.parsePersistenString(line);
-				addAccount(act);
+				putAccountUnjournaled(
+						FSAccountsService.parsePersistenString(line));
 			}
-		} catch (IOException ex) {
-			// catch possible io errors from readLine()
-			LOG.error("Failed updating accounts info from "
-					+ ACCOUNTS_INFO_FILEPATH + "! Skipping ...", ex);
-			return false;
 		} finally {
 			if (in != null) {
 				try {
 					in.close();
 				} catch (IOException ex) {
 					LOG.warn("Failed closing stream from "
-							+ ACCOUNTS_INFO_FILEPATH, ex);
+							+ textFile, ex);
 				}
 			} else if (fIn != null) {
 				try {
 					fIn.close();
 				} catch (IOException ex) {
 					LOG.warn("Failed closing file stream from "
-							+ ACCOUNTS_INFO_FILEPATH, ex);
+							+ textFile, ex);
 				}
 			}
 		}
+	}
 
-		LOG.info("{} accounts information read from {} ({} ms)",
-				new Object[] {
-					accounts.size(),
-					ACCOUNTS_INFO_FILEPATH,
-					(System.currentTimeMillis() - time)
-				});
+	/**
+	 * Saves accounts to permanent storage.
+	 * All changes are recorded in the journal anyway, so in non-blocking mode,
+	 * this only makes sure they get written to it right away.
+	 * In blocking mode, the accounts file is rewritten, which compacts the
+	 * journal.
+	 * @param block if false, this method will return immediately
+	 *   (non-blocking mode).
+	 *   If 'true', it will not return until the accounts have been saved.
+	 */
+	@Override
+	public void saveAccounts(boolean block) {
 
-		return true;
+		if (!block && (journal != null)) {
+			journal.requestCommit();
+			return;
+		}
+		writeAccountsFile(block);
 	}
 
 	/**
-	 * Saves accounts to permanent storage.
+	 * Rewrites the accounts file, and the binary snapshot if enabled,
+	 * and removes the journal generations whose changes it contains
+	 * afterwards.
 	 * @param block if false, this method will spawn a new thread,
 	 *   so this method can return immediately (non-blocking mode).
 	 *   If 'true', it will not return until the accounts have been saved.
 	 */
-	@Override
-	public void saveAccounts(boolean block) {
+	private void writeAccountsFile(boolean block) {
 
-		if ((saveAccountsThread != null) && (saveAccountsThread.isAlive())) {
-			return; // already in progress. Let's just skip it ...
+		if (saveAccountsThread != null) {
+			if (saveAccountsThread.isAlive()) {
+				if (!block) {
+					return; // already in progress. Let's just skip it ...
+				}
+				try {
+					// the running one may not contain the latest changes
+					saveAccountsThread.join();
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+			savingFinished();
 		}
 		lastSaveAccountsTime = System.currentTimeMillis();
-		List<Account> accountsCopy = new ArrayList<Account>(accounts);
-		File accsFile = new File(ACCOUNTS_INFO_FILEPATH);
-		saveAccountsThread = new FSSaveAccountsThread(accsFile, accountsCopy);
+		savingGeneration = (journal == null) ? 0 : journal.rotate();
+		saveAccountsThread = new FSSaveAccountsThread(textFile, copyAccounts(),
+				journal, savingGeneration);
+		if (isBinarySnapshotEnabled()) {
+			saveAccountsThread.setSnapshotFile(snapshotFile);
+		}
 		saveAccountsThread.receiveContext(getContext());
 		saveAccountsThread.start();
 
 		if (block) {
 			try {
 				saveAccountsThread.join(); // wait for the thread to return
+				savingFinished();
 			} catch (InterruptedException ex) {
 				// do nothing
 			}
@@ -252,6 +516,87 @@ public class FSAccountsService extends AbstractAccountsService {
 		lastSaveAccountsTime = System.currentTimeMillis();
 	}
 
+	/**
+	 * Copies the accounts for the save thread.
+	 * The ones in the cold tier are only loaded by the save thread,
+	 * one after the other.
+	 */
+	private Collection<Account> copyAccounts() {
+
+		List<Account> hotCopy = new ArrayList<Account>(hot.size());
+		for (HotAccount entry : hot.values()) {
+			hotCopy.add(entry.account);
+		}
+		for (List<HotAccount> sameLowerName : caseCollisions.values()) {
+			for (HotAccount entry : sameLowerName) {
+				hotCopy.add(entry.account);
+			}
+		}
+		return new AccountsCopy(hotCopy, (cold == null) ? null : cold.copy());
+	}
+
+	/**
+	 * Called on the main thread, once the save thread is done.
+	 * If the number of accounts in memory is limited, the new snapshot becomes
+	 * the cold tier, and the accounts saved in it may be evicted from memory.
+	 */
+	private void savingFinished() {
+
+		boolean adopt = saveAccountsThread.isSnapshotWritten()
+				&& (getHotLimit() > 0);
+		saveAccountsThread = null;
+
+		Iterator<Integer> removedGenerations
+				= removedInGeneration.values().iterator();
+		while (removedGenerations.hasNext()) {
+			if (removedGenerations.next() <= savingGeneration) {
+				removedGenerations.remove();
+			}
+		}
+
+		if (!adopt) {
+			return;
+		}
+		FSColdAccounts newCold;
+		try {
+			newCold = FSColdAccounts.open(snapshotFile);
+		} catch (IOException ex) {
+			LOG.warn("Failed to map the new accounts snapshot", ex);
+			return;
+		}
+		for (HotAccount entry : hot.values()) {
+			adopted(newCold, entry);
+		}
+		for (List<HotAccount> sameLowerName : caseCollisions.values()) {
+			for (HotAccount entry : sameLowerName) {
+				adopted(newCold, entry);
+			}
+		}
+		// accounts removed while the snapshot was written are still in it
+		for (String removedName : removedInGeneration.keySet()) {
+			int record = newCold.find(removedName);
+			if (record != -1) {
+				newCold.supersede(record);
+			}
+		}
+		cold = newCold;
+	}
+
+	/**
+	 * Updates an account in memory after the snapshot was written, which
+	 * becomes the new cold tier.
+	 */
+	private void adopted(FSColdAccounts newCold, HotAccount entry) {
+
+		entry.record = newCold.find(entry.account.getName());
+		if (entry.record != -1) {
+			newCold.supersede(entry.record);
+		}
+		if (entry.changedInGeneration <= savingGeneration) {
+			entry.changedInGeneration = CLEAN;
+		}
+	}
+
 	/**
 	 * Will call saveAccounts() only if they have not been saved for some time.
 	 * {@inheritDoc}
@@ -262,20 +607,288 @@ public class FSAccountsService extends AbstractAccountsService {
 		// note: lastSaveAccountsTime will get updated in saveAccounts() method!
 		long timeSinceLastSave = System.currentTimeMillis() - lastSaveAccountsTime;
 		if (timeSinceLastSave > SAVE_ACCOUNT_INFO_INTERVAL) {
-			saveAccounts(false);
+			writeAccountsFile(false);
+		}
+	}
+
+	@Override
+	public void update() {
+
+		super.update();
+		if ((saveAccountsThread != null) && !saveAccountsThread.isAlive()) {
+			savingFinished();
+		}
+		if ((System.currentTimeMillis() - lastEvictionTime)
+				> EVICTION_INTERVAL)
+		{
+			lastEvictionTime = System.currentTimeMillis();
+			evictAccounts();
+		}
+	}
+
+	/**
+	 * Evicts the least recently used accounts from memory, until the limit
+	 * is reached.
+	 * Only accounts which are unchanged since the snapshot was written and
+	 * which are not logged in are evicted.
+	 */
+	private void evictAccounts() {
+
+		int hotLimit = getHotLimit();
+		if ((cold == null) || (hotLimit <= 0) || (hot.size() <= hotLimit)) {
+			return;
+		}
+
+		Set<String> loggedIn = new HashSet<String>();
+		Clients clients = getContext().getClients();
+		for (int i = 0; i < clients.getClientsSize(); i++) {
+			loggedIn.add(clients.getClient(i).getAccount().getName());
+		}
+
+		int evicted = 0;
+		Iterator<HotAccount> leastRecentlyUsed = hot.values().iterator();
+		while (leastRecentlyUsed.hasNext() && (hot.size() > hotLimit)) {
+			HotAccount entry = leastRecentlyUsed.next();
+			if ((entry.record != -1) && (entry.changedInGeneration == CLEAN)
+					&& !loggedIn.contains(entry.account.getName())
+					&& !caseCollisions.containsKey(
+					entry.account.getName().toLowerCase()))
+			{
+				leastRecentlyUsed.remove();
+				unindexIp(entry);
+				cold.restore(entry.record);
+				evicted++;
+			}
+		}
+		LOG.debug("{} accounts evicted to the cold tier", evicted);
+	}
+
+	@Override
+	public void stopped() {
+
+		super.stopped();
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	private int getJournalGeneration() {
+		return (journal == null) ? 0 : journal.getGeneration();
+	}
+
+	/**
+	 * Looks up an account in memory, and loads it from the cold tier if it is
+	 * not there.
+	 * @return the account, or <code>null</code> if there is no account with
+	 *   this name, ignoring case
+	 */
+	private HotAccount findHot(String username) {
+
+		String key = username.toLowerCase();
+		HotAccount entry = hot.get(key);
+		if ((entry == null) && (cold != null)) {
+			int record = cold.findNoCase(username);
+			if (record != -1) {
+				entry = loadCold(record);
+				hot.put(key, entry);
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Looks up an account by its exact name in memory, and loads it from the
+	 * cold tier if it is not there.
+	 * @return the account, or <code>null</code> if there is no account with
+	 *   exactly this name
+	 */
+	private HotAccount findHotExact(String username) {
+
+		HotAccount entry = findHot(username);
+		if ((entry == null) || entry.account.getName().equals(username)) {
+			return entry;
+		}
+		// an other account with a name differing only in case
+		String key = username.toLowerCase();
+		List<HotAccount> sameLowerName = caseCollisions.get(key);
+		if (sameLowerName != null) {
+			for (HotAccount collision : sameLowerName) {
+				if (collision.account.getName().equals(username)) {
+					return collision;
+				}
+			}
 		}
+		if (cold != null) {
+			int record = cold.find(username);
+			if (record != -1) {
+				HotAccount collision = loadCold(record);
+				addCaseCollision(key, collision);
+				return collision;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Loads an account from the cold tier into memory.
+	 * The caller has to store the returned entry.
+	 */
+	private HotAccount loadCold(int record) {
+
+		HotAccount entry = new HotAccount(cold.getAccount(record), record,
+				CLEAN);
+		// it is counted as active already
+		entry.activeUntil = ActiveAccountsCounter.activeUntil(entry.account);
+		indexIp(entry);
+		cold.supersede(record);
+		return entry;
+	}
+
+	private void addCaseCollision(String lowerName, HotAccount entry) {
+
+		List<HotAccount> sameLowerName = caseCollisions.get(lowerName);
+		if (sameLowerName == null) {
+			sameLowerName = new ArrayList<HotAccount>(1);
+			caseCollisions.put(lowerName, sameLowerName);
+		}
+		sameLowerName.add(entry);
+	}
+
+	private static long coldActiveUntil(FSAccountsSnapshot snapshot,
+			int record)
+	{
+		return ActiveAccountsCounter.activeUntil(
+				Account.extractInGameTime(snapshot.getAccessBitField(record)),
+				snapshot.getLastLogin(record));
+	}
+
+	private void indexIp(HotAccount entry) {
+
+		entry.indexedIp = entry.account.getLastIp();
+		if (entry.indexedIp != null) {
+			Set<HotAccount> sameIp = ipIndex.get(entry.indexedIp);
+			if (sameIp == null) {
+				sameIp = new HashSet<HotAccount>(2);
+				ipIndex.put(entry.indexedIp, sameIp);
+			}
+			sameIp.add(entry);
+		}
+	}
+
+	private void unindexIp(HotAccount entry) {
+
+		if (entry.indexedIp != null) {
+			Set<HotAccount> sameIp = ipIndex.get(entry.indexedIp);
+			if (sameIp != null) {
+				sameIp.remove(entry);
+				if (sameIp.isEmpty()) {
+					ipIndex.remove(entry.indexedIp);
+				}
+			}
+			entry.indexedIp = null;
+		}
+	}
+
+	/**
+	 * Stores a new state of an account in memory, and updates the indices.
+	 */
+	private void setAccount(HotAccount entry, Account acc) {
+
+		activeAccounts.remove(entry.activeUntil);
+		unindexIp(entry);
+		entry.account = acc;
+		entry.activeUntil = ActiveAccountsCounter.activeUntil(acc);
+		activeAccounts.add(entry.activeUntil);
+		indexIp(entry);
+		entry.changedInGeneration = getJournalGeneration();
 	}
 
 	@Override
 	public void addAccount(Account acc) {
-		if (acc.getId() == Account.NEW_ACCOUNT_ID) {
-			acc.setId(++biggestAccountId);
-		} else if (acc.getId() > biggestAccountId) {
-			biggestAccountId = acc.getId();
+
+		putAccountUnjournaled(acc);
+		if (journal != null) {
+			journal.append(JOURNAL_UPDATE + toPersistentString(acc));
+		}
+	}
+
+	/**
+	 * Adds an account, or replaces the stored state of the account with the
+	 * same name, keeping its ID.
+	 * Old accounts files may contain accounts with names differing only in
+	 * case. These are kept as separate accounts.
+	 */
+	private void putAccountUnjournaled(Account acc) {
+
+		HotAccount entry = findHotExact(acc.getName());
+		if (entry != null) {
+			acc.setId(entry.account.getId());
+		} else {
+			// freshly registered accounts come without an ID
+			if ((acc.getId() == Account.NEW_ACCOUNT_ID)
+					|| (acc.getId() == Account.NO_ACCOUNT_ID))
+			{
+				acc.setId(++biggestAccountId);
+			} else if (acc.getId() > biggestAccountId) {
+				biggestAccountId = acc.getId();
+			}
+			entry = new HotAccount(acc, -1, CLEAN);
+			String key = acc.getName().toLowerCase();
+			HotAccount sameLowerName = findHot(key);
+			if (sameLowerName == null) {
+				hot.put(key, entry);
+			} else {
+				LOG.warn("The account names \"{}\" and \"{}\" differ only in"
+						+ " case; keeping both accounts",
+						sameLowerName.account.getName(), acc.getName());
+				addCaseCollision(key, entry);
+			}
 		}
-		accounts.add(acc);
-		map.put(acc.getName(), acc);
-		mapNoCase.put(acc.getName(), acc);
+		setAccount(entry, acc);
+	}
+
+	/**
+	 * Removes an account from memory, or from the cold tier.
+	 * @param username the exact name of the account
+	 * @return the ID of the removed account,
+	 *   or {@link Account#NEW_ACCOUNT_ID} if there was none with this name
+	 */
+	private int removeAccountUnjournaled(String username) {
+
+		// this loads it from the cold tier, if it is there
+		HotAccount entry = findHotExact(username);
+		if (entry == null) {
+			return Account.NEW_ACCOUNT_ID;
+		}
+
+		String key = username.toLowerCase();
+		List<HotAccount> sameLowerName = caseCollisions.get(key);
+		if (hot.get(key) == entry) {
+			hot.remove(key);
+			if (sameLowerName != null) {
+				// an other account with this lower-case name takes its place
+				hot.put(key, sameLowerName.remove(0));
+			}
+		} else {
+			sameLowerName.remove(entry);
+		}
+		if ((sameLowerName != null) && sameLowerName.isEmpty()) {
+			caseCollisions.remove(key);
+		}
+		activeAccounts.remove(entry.activeUntil);
+		unindexIp(entry);
+		removedInGeneration.put(username, getJournalGeneration());
+
+		return entry.account.getId();
+	}
+
+	private void renameAccountUnjournaled(String oldName, Account account) {
+
+		int id = removeAccountUnjournaled(oldName);
+		if (id != Account.NEW_ACCOUNT_ID) {
+			account.setId(id);
+		}
+		putAccountUnjournaled(account);
 	}
 
 	@Override
@@ -288,43 +901,58 @@ public class FSAccountsService extends AbstractAccountsService {
 
 	@Override
 	public boolean removeAccount(Account acc) {
-		boolean result = accounts.remove(acc);
-		map.remove(acc.getName());
-		mapNoCase.remove(acc.getName());
+
+		boolean result = (removeAccountUnjournaled(acc.getName())
+				!= Account.NEW_ACCOUNT_ID);
+		if (result && (journal != null)) {
+			journal.append(JOURNAL_REMOVE + acc.getName());
+		}
 		return result;
 	}
 
 	/** Returns null if account is not found */
 	@Override
 	public Account getAccount(String username) {
-		return map.get(username);
-	}
 
-	/** Returns 'null' if index is out of bounds */
-	public Account getAccount(int index) {
-		try {
-			return accounts.get(index);
-		} catch (IndexOutOfBoundsException e) {
-			return null;
-		}
+		HotAccount entry = findHotExact(username);
+		return (entry == null) ? null : entry.account;
 	}
 
 	@Override
 	public Account findAccountNoCase(String username) {
-		return mapNoCase.get(username);
+
+		HotAccount entry = findHot(username);
+		return (entry == null) ? null : entry.account;
 	}
 
+	/**
+	 * Of multiple accounts last used from this IP, the one with the highest
+	 * ID is returned.
+	 * {@inheritDoc}
+	 */
 	@Override
 	public Account findAccountByLastIP(InetAddress ip) {
 
 		Account account = null;
 
-		for (int i = 0; i < getAccountsSize(); i++) {
-			Account actTmp = getAccount(i);
-			if (!ip.equals(actTmp.getLastIp())) {
-				continue;
+		Set<HotAccount> sameIp = ipIndex.get(ip);
+		if (sameIp != null) {
+			for (HotAccount entry : sameIp) {
+				if ((account == null)
+						|| (entry.account.getId() > account.getId()))
+				{
+					account = entry.account;
+				}
+			}
+		}
+		if (cold != null) {
+			int record = cold.findByLastIp(ip.getAddress());
+			if ((record != -1) && ((account == null)
+					|| (cold.getSnapshot().getId(record) > account.getId())))
+			{
+				account = findHotExact(cold.getSnapshot().getName(record))
+						.account;
 			}
-			account = actTmp;
 		}
 
 		return account;
@@ -333,25 +961,146 @@ public class FSAccountsService extends AbstractAccountsService {
 	@Override
 	public boolean mergeAccountChanges(Account account, String oldName) {
 
-		final boolean isPersistentAccount = map.containsKey(oldName);
-		if (!isPersistentAccount) {
+		HotAccount entry = findHotExact(oldName);
+		if (entry == null) {
 			return false;
 		}
 
 		final String newName = account.getName();
 		if (!newName.equals(oldName)) {
 			// the account was renamed
-			map.remove(oldName);
-			mapNoCase.remove(oldName);
-			map.put(newName, account);
-			mapNoCase.put(newName, account);
+			renameAccountUnjournaled(oldName, account);
+			if (journal != null) {
+				journal.append(JOURNAL_RENAME + oldName + " "
+						+ toPersistentString(account));
+			}
+		} else {
+			setAccount(entry, account);
+			if (journal != null) {
+				journal.append(JOURNAL_UPDATE + toPersistentString(account));
+			}
 		}
 
 		return true;
 	}
 
+	/**
+	 * Applies the changes recorded in the journal to the accounts read from
+	 * the accounts file or the snapshot.
+	 */
+	private class JournalReplayer implements FSAccountsJournal.RecordHandler {
+
+		@Override
+		public void handle(String record) {
+
+			try {
+				if (record.startsWith(JOURNAL_UPDATE)) {
+					putAccountUnjournaled(parsePersistenString(
+							record.substring(JOURNAL_UPDATE.length())));
+				} else if (record.startsWith(JOURNAL_RENAME)) {
+					String rest = record.substring(JOURNAL_RENAME.length());
+					int sepPos = rest.indexOf(' ');
+					String oldName = rest.substring(0, sepPos);
+					renameAccountUnjournaled(oldName,
+							parsePersistenString(rest.substring(sepPos + 1)));
+				} else if (record.startsWith(JOURNAL_REMOVE)) {
+					removeAccountUnjournaled(
+							record.substring(JOURNAL_REMOVE.length()));
+				} else {
+					LOG.warn("Skipping unknown journal record: {}", record);
+				}
+			} catch (RuntimeException ex) {
+				// for example NumberFormatException or
+				// ArrayIndexOutOfBoundsException
+				LOG.warn("Skipping invalid journal record: " + record, ex);
+			}
+		}
+	}
+
+	/**
+	 * The accounts in memory and the ones in the cold tier, ordered by ID.
+	 * The ones in the cold tier are only loaded while iterating.
+	 */
+	private static class AccountsCopy extends AbstractCollection<Account> {
+
+		private static final Comparator<Account> ID_ORDER
+				= new Comparator<Account>() {
+					@Override
+					public int compare(Account acc1, Account acc2) {
+						return (acc1.getId() < acc2.getId()) ? -1
+								: ((acc1.getId() == acc2.getId()) ? 0 : 1);
+					}
+				};
+
+		private final List<Account> hotAccounts;
+		/** May be <code>null</code>. */
+		private final FSColdAccounts coldAccounts;
+		private boolean sorted;
+
+		AccountsCopy(List<Account> hotAccounts, FSColdAccounts coldAccounts) {
+
+			this.hotAccounts = hotAccounts;
+			this.coldAccounts = coldAccounts;
+			this.sorted = false;
+		}
+
+		@Override
+		public int size() {
+			return hotAccounts.size()
+					+ ((coldAccounts == null) ? 0 : coldAccounts.size());
+		}
+
+		@Override
+		public synchronized Iterator<Account> iterator() {
+
+			if (!sorted) {
+				Collections.sort(hotAccounts, ID_ORDER);
+				sorted = true;
+			}
+
+			return new Iterator<Account>() {
+
+				private int hotPos = 0;
+				private int coldRecord = (coldAccounts == null) ? -1
+						: coldAccounts.nextLive(0);
+
+				@Override
+				public boolean hasNext() {
+					return (hotPos < hotAccounts.size()) || (coldRecord != -1);
+				}
+
+				@Override
+				public Account next() {
+
+					boolean hotLeft = (hotPos < hotAccounts.size());
+					if ((coldRecord != -1) && (!hotLeft
+							|| (coldAccounts.getSnapshot().getId(coldRecord)
+							< hotAccounts.get(hotPos).getId())))
+					{
+						Account next = coldAccounts.getAccount(coldRecord);
+						coldRecord = coldAccounts.nextLive(coldRecord + 1);
+						return next;
+					} else if (hotLeft) {
+						return hotAccounts.get(hotPos++);
+					}
+					throw new NoSuchElementException();
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Loads all accounts, including the ones in the cold tier, without
+	 * keeping the latter in memory.
+	 * {@inheritDoc}
+	 */
 	@Override
 	public List<Account> fetchAllAccounts() {
-		return accounts;
+		return new ArrayList<Account>(copyAccounts());
 	}
 }
@@ -0,0 +1,610 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls.accounts;
+
+
+import com.springrts.springls.Account;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads and writes accounts in a binary format, which is much faster to load
+ * than the text format of the accounts file.
+ * The file consists of a header, one fixed-width record per account, a
+ * pool of the strings referenced by the records, and two indices of the
+ * records, one sorted by lower-case name and one by last IP. Equal strings,
+ * like the country codes, are stored only once.
+ * It is accessed through a memory mapped buffer, so single accounts may be
+ * looked up without loading the others, and when loading all of them,
+ * the records are parsed in chunks, in parallel.
+ * @see FSAccountsService#toPersistentString(Account)
+ * @author hoijui
+ */
+public final class FSAccountsSnapshot {
+
+	/** "SLAS" */
+	private static final int MAGIC = 0x534C4153;
+	private static final int VERSION = 3;
+	/** magic, version, number of records, size of the string pool */
+	private static final int HEADER_SIZE = 4 * 4;
+	/** The maximum length of an IP address, which is the one of IP v6. */
+	private static final int MAX_IP_LENGTH = 16;
+	/**
+	 * ID, name, password and country references, access bit-field,
+	 * last user ID, last login, IP length, IP, registration date
+	 */
+	private static final int RECORD_SIZE
+			= 4 + (3 * 4) + 4 + 4 + 8 + 1 + MAX_IP_LENGTH + 8;
+	private static final int OFFSET_ID = 0;
+	private static final int OFFSET_NAME = 4;
+	private static final int OFFSET_PASSWORD = 8;
+	private static final int OFFSET_COUNTRY = 12;
+	private static final int OFFSET_ACCESS = 16;
+	private static final int OFFSET_LAST_USER_ID = 20;
+	private static final int OFFSET_LAST_LOGIN = 24;
+	private static final int OFFSET_IP_LENGTH = 32;
+	private static final int OFFSET_IP = 33;
+	private static final int OFFSET_REGISTRATION_DATE = 33 + MAX_IP_LENGTH;
+	/** Chunks smaller then this are not worth an extra task. */
+	private static final int MIN_CHUNK_RECORDS = 4096;
+	private static final String CHARSET = "UTF-8";
+
+	/** Only absolute reads are used on this, so it may be shared. */
+	private final ByteBuffer data;
+	private final int size;
+	private final int poolStart;
+	private final int nameIndexStart;
+	private final int ipIndexStart;
+
+
+	private FSAccountsSnapshot(ByteBuffer data, int size, int poolStart,
+			int nameIndexStart)
+	{
+		this.data = data;
+		this.size = size;
+		this.poolStart = poolStart;
+		this.nameIndexStart = nameIndexStart;
+		this.ipIndexStart = nameIndexStart + (4 * size);
+	}
+
+
+	/**
+	 * Maps a file in the binary format into memory.
+	 * The file may be replaced afterwards, as the mapping stays valid.
+	 * @throws IOException if the file can not be read, or is not valid
+	 */
+	public static FSAccountsSnapshot map(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+
+			if ((data.limit() < HEADER_SIZE) || (data.getInt(0) != MAGIC)) {
+				throw new IOException("Not an accounts snapshot: "
+						+ file.getAbsolutePath());
+			}
+			if (data.getInt(4) != VERSION) {
+				throw new IOException("Unsupported accounts snapshot version "
+						+ data.getInt(4));
+			}
+			int count = data.getInt(8);
+			int poolSize = data.getInt(12);
+			long poolStart = HEADER_SIZE + ((long) count * RECORD_SIZE);
+			long nameIndexStart = poolStart + poolSize;
+			if ((count < 0) || (poolSize < 0)
+					|| (data.limit() < (nameIndexStart + (2 * 4L * count))))
+			{
+				throw new IOException("Truncated accounts snapshot: "
+						+ file.getAbsolutePath());
+			}
+
+			return new FSAccountsSnapshot(data, count, (int) poolStart,
+					(int) nameIndexStart);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the number of accounts in this snapshot.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private int recordStart(int record) {
+		return HEADER_SIZE + (record * RECORD_SIZE);
+	}
+
+	public int getId(int record) {
+		return data.getInt(recordStart(record) + OFFSET_ID);
+	}
+
+	public String getName(int record) {
+		return getString(data.getInt(recordStart(record) + OFFSET_NAME), null);
+	}
+
+	public int getAccessBitField(int record) {
+		return data.getInt(recordStart(record) + OFFSET_ACCESS);
+	}
+
+	public long getLastLogin(int record) {
+		return data.getLong(recordStart(record) + OFFSET_LAST_LOGIN);
+	}
+
+	/**
+	 * Whether the account was last used from the given IP, without creating
+	 * an InetAddress.
+	 * @param address as returned by {@link InetAddress#getAddress()}
+	 */
+	public boolean isLastIp(int record, byte[] address) {
+
+		int pos = recordStart(record);
+		if (data.get(pos + OFFSET_IP_LENGTH) != address.length) {
+			return false;
+		}
+		for (int b = 0; b < address.length; b++) {
+			if (data.get(pos + OFFSET_IP + b) != address[b]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates the account stored in a record.
+	 * @throws IllegalStateException if the record is corrupt
+	 */
+	public Account getAccount(int record) {
+		return readAccount(record, null);
+	}
+
+	/**
+	 * Finds the record of an account by name, ignoring case.
+	 * This is a binary search over the name index, which only decodes the
+	 * names it compares.
+	 * @return the record, or -1 if there is no such account
+	 */
+	public int findNoCase(String name) {
+
+		int pos = findNamePosition(name.toLowerCase());
+		return (pos == -1) ? -1 : getNameIndexRecord(pos);
+	}
+
+	/**
+	 * Finds the records of all accounts with a name, ignoring case.
+	 * There is more then one only if the accounts were read from an old
+	 * accounts file, with names differing in case only.
+	 * @return the records, in no particular order
+	 */
+	public int[] findAllNoCase(String name) {
+
+		String key = name.toLowerCase();
+		int pos = findNamePosition(key);
+		if (pos == -1) {
+			return new int[0];
+		}
+		int first = pos;
+		while ((first > 0) && getLowerName(first - 1).equals(key)) {
+			first--;
+		}
+		int last = pos;
+		while ((last < (size - 1)) && getLowerName(last + 1).equals(key)) {
+			last++;
+		}
+		int[] records = new int[last - first + 1];
+		for (int r = 0; r < records.length; r++) {
+			records[r] = getNameIndexRecord(first + r);
+		}
+		return records;
+	}
+
+	/**
+	 * Binary search over the name index, which only decodes the names it
+	 * compares.
+	 * @return a position in the name index, or -1 if there is no such name
+	 */
+	private int findNamePosition(String lowerName) {
+
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = getLowerName(mid).compareTo(lowerName);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private int getNameIndexRecord(int pos) {
+		return data.getInt(nameIndexStart + (4 * pos));
+	}
+
+	private String getLowerName(int pos) {
+		return getName(getNameIndexRecord(pos)).toLowerCase();
+	}
+
+	/**
+	 * Finds the records of the accounts last used from an IP.
+	 * This is a binary search over the IP index.
+	 * @param address as returned by {@link InetAddress#getAddress()}
+	 * @return the records, in no particular order
+	 */
+	public int[] findByLastIp(byte[] address) {
+
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compareLastIp(data.getInt(ipIndexStart + (4 * mid)), address)
+					< 0)
+			{
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		int end = low;
+		while ((end < size) && (compareLastIp(
+				data.getInt(ipIndexStart + (4 * end)), address) == 0))
+		{
+			end++;
+		}
+
+		int[] records = new int[end - low];
+		for (int i = 0; i < records.length; i++) {
+			records[i] = data.getInt(ipIndexStart + (4 * (low + i)));
+		}
+		return records;
+	}
+
+	/**
+	 * Orders by address length first, and then by the unsigned bytes,
+	 * the same way as {@link #compareIps(byte[], byte[])}.
+	 */
+	private int compareLastIp(int record, byte[] address) {
+
+		int pos = recordStart(record);
+		int length = data.get(pos + OFFSET_IP_LENGTH);
+		if (length != address.length) {
+			return length - address.length;
+		}
+		for (int b = 0; b < length; b++) {
+			int cmp = (data.get(pos + OFFSET_IP + b) & 0xFF)
+					- (address[b] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return 0;
+	}
+
+	private static int compareIps(byte[] address1, byte[] address2) {
+
+		if (address1.length != address2.length) {
+			return address1.length - address2.length;
+		}
+		for (int b = 0; b < address1.length; b++) {
+			int cmp = (address1[b] & 0xFF) - (address2[b] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param decoded strings decoded so far by pool offset, to share the
+	 *   repeated ones, or <code>null</code>
+	 */
+	private Account readAccount(int record, Map<Integer, String> decoded) {
+
+		int pos = recordStart(record);
+		String name = getString(data.getInt(pos + OFFSET_NAME), decoded);
+		int accessBitField = data.getInt(pos + OFFSET_ACCESS);
+
+		InetAddress lastIp = null;
+		int ipLength = data.get(pos + OFFSET_IP_LENGTH);
+		if (ipLength > 0) {
+			byte[] ip = new byte[ipLength];
+			for (int b = 0; b < ipLength; b++) {
+				ip[b] = data.get(pos + OFFSET_IP + b);
+			}
+			try {
+				lastIp = InetAddress.getByAddress(ip);
+			} catch (UnknownHostException ex) {
+				throw new IllegalStateException("Invalid IP address in"
+						+ " account " + name, ex);
+			}
+		}
+
+		return new Account(
+				name,
+				getString(data.getInt(pos + OFFSET_PASSWORD), decoded),
+				Account.extractAccess(accessBitField),
+				data.getInt(pos + OFFSET_LAST_USER_ID),
+				data.getLong(pos + OFFSET_LAST_LOGIN),
+				lastIp,
+				data.getLong(pos + OFFSET_REGISTRATION_DATE),
+				getString(data.getInt(pos + OFFSET_COUNTRY), decoded),
+				data.getInt(pos + OFFSET_ID),
+				Account.extractBot(accessBitField),
+				Account.extractInGameTime(accessBitField),
+				Account.extractAgreementAccepted(accessBitField));
+	}
+
+	private String getString(int offset, Map<Integer, String> decoded) {
+
+		Integer key = offset;
+		String str = (decoded == null) ? null : decoded.get(key);
+		if (str == null) {
+			int pos = poolStart + offset;
+			int length = data.getShort(pos) & 0xFFFF;
+			byte[] bytes = new byte[length];
+			for (int b = 0; b < length; b++) {
+				bytes[b] = data.get(pos + 2 + b);
+			}
+			try {
+				str = new String(bytes, CHARSET);
+			} catch (UnsupportedEncodingException ex) {
+				// UTF-8 is always supported
+				throw new IllegalStateException(ex);
+			}
+			if (decoded != null) {
+				decoded.put(key, str);
+			}
+		}
+		return str;
+	}
+
+
+	/**
+	 * Writes the accounts to a file in the binary format.
+	 * @param accounts the accounts to write, preferably ordered by ID
+	 * @throws IOException if writing fails
+	 */
+	public static void write(File file, Collection<Account> accounts)
+			throws IOException
+	{
+		PoolWriter pool = new PoolWriter();
+		ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * accounts.size());
+		final String[] lowerNames = new String[accounts.size()];
+		final byte[][] ips = new byte[accounts.size()][];
+		int record = 0;
+		for (Account account : accounts) {
+			records.putInt(account.getId());
+			records.putInt(pool.add(account.getName()));
+			records.putInt(pool.add(account.getPassword()));
+			records.putInt(pool.add(
+					String.valueOf(account.getLastCountry())));
+			records.putInt(account.getAccessBitField());
+			records.putInt(account.getLastUserId());
+			records.putLong(account.getLastLogin());
+			InetAddress lastIp = account.getLastIp();
+			byte[] ip = (lastIp == null) ? new byte[0] : lastIp.getAddress();
+			records.put((byte) ip.length);
+			records.put(Arrays.copyOf(ip, MAX_IP_LENGTH));
+			records.putLong(account.getRegistrationDate());
+			lowerNames[record] = account.getName().toLowerCase();
+			ips[record] = ip;
+			record++;
+		}
+
+		Integer[] nameIndex = new Integer[lowerNames.length];
+		for (int r = 0; r < nameIndex.length; r++) {
+			nameIndex[r] = r;
+		}
+		Integer[] ipIndex = nameIndex.clone();
+		Arrays.sort(nameIndex, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer record1, Integer record2) {
+				return lowerNames[record1].compareTo(lowerNames[record2]);
+			}
+		});
+		Arrays.sort(ipIndex, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer record1, Integer record2) {
+				return compareIps(ips[record1], ips[record2]);
+			}
+		});
+
+		FileOutputStream fileOut = new FileOutputStream(file);
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(fileOut));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(lowerNames.length);
+			out.writeInt(pool.size());
+			out.write(records.array(), 0, records.position());
+			pool.writeTo(out);
+			for (Integer indexedRecord : nameIndex) {
+				out.writeInt(indexedRecord);
+			}
+			for (Integer indexedRecord : ipIndex) {
+				out.writeInt(indexedRecord);
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads all accounts from a file in the binary format.
+	 * @param threads how many threads to parse the records with
+	 * @return the accounts, in the order they were written
+	 * @throws IOException if reading fails, or the file is not valid
+	 */
+	public static List<Account> read(File file, int threads)
+			throws IOException
+	{
+		FSAccountsSnapshot snapshot = map(file);
+
+		Account[] accounts = new Account[snapshot.size()];
+		int chunks = Math.max(1, Math.min(threads,
+				accounts.length / MIN_CHUNK_RECORDS));
+		try {
+			if (chunks == 1) {
+				new ChunkParser(snapshot, accounts, 0, accounts.length).call();
+			} else {
+				snapshot.parseParallel(accounts, chunks);
+			}
+		} catch (IllegalStateException ex) {
+			throw new IOException("Corrupt accounts snapshot: "
+					+ file.getAbsolutePath(), ex);
+		}
+
+		return Arrays.asList(accounts);
+	}
+
+	private void parseParallel(Account[] accounts, int chunks)
+			throws IOException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(chunks);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>(chunks);
+			int chunkSize = (accounts.length + chunks - 1) / chunks;
+			for (int from = 0; from < accounts.length; from += chunkSize) {
+				int to = Math.min(from + chunkSize, accounts.length);
+				results.add(executor.submit(
+						new ChunkParser(this, accounts, from, to)));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while parsing accounts", ex);
+		} catch (ExecutionException ex) {
+			throw new IOException("Failed parsing accounts", ex.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Parses a range of the records.
+	 * Each chunk only writes to its own range of the accounts array.
+	 */
+	private static class ChunkParser implements Callable<Void> {
+
+		private final FSAccountsSnapshot snapshot;
+		private final Account[] accounts;
+		private final int from;
+		private final int to;
+
+		ChunkParser(FSAccountsSnapshot snapshot, Account[] accounts,
+				int from, int to)
+		{
+			this.snapshot = snapshot;
+			this.accounts = accounts;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public Void call() {
+
+			Map<Integer, String> decoded = new HashMap<Integer, String>();
+			for (int r = from; r < to; r++) {
+				accounts[r] = snapshot.readAccount(r, decoded);
+			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * Collects the strings referenced by the records, each only once.
+	 */
+	private static class PoolWriter {
+
+		private final Map<String, Integer> offsets;
+		private final List<byte[]> entries;
+		private int size;
+
+		PoolWriter() {
+
+			this.offsets = new HashMap<String, Integer>();
+			this.entries = new ArrayList<byte[]>();
+			this.size = 0;
+		}
+
+		/** Returns the offset of the string in the pool. */
+		int add(String str) throws UnsupportedEncodingException {
+
+			Integer offset = offsets.get(str);
+			if (offset == null) {
+				byte[] bytes = str.getBytes(CHARSET);
+				if (bytes.length > 0xFFFF) {
+					throw new UnsupportedEncodingException(
+							"String too long for the accounts snapshot");
+				}
+				offset = size;
+				offsets.put(str, offset);
+				entries.add(bytes);
+				size += 2 + bytes.length;
+			}
+			return offset;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void writeTo(DataOutputStream out) throws IOException {
+
+			for (byte[] entry : entries) {
+				out.writeShort(entry.length);
+				out.write(entry);
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls.accounts;
+
+
+import com.springrts.springls.Account;
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * The accounts which are not kept in memory as objects, but only in the
+ * memory mapped binary snapshot.
+ * Records of accounts which got loaded into memory, removed or renamed are
+ * superseded, and no longer show up here.
+ * @see FSAccountsService
+ * @author hoijui
+ */
+class FSColdAccounts {
+
+	private final FSAccountsSnapshot snapshot;
+	private final BitSet superseded;
+	private int live;
+
+
+	private FSColdAccounts(FSAccountsSnapshot snapshot, BitSet superseded) {
+
+		this.snapshot = snapshot;
+		this.superseded = superseded;
+		this.live = snapshot.size() - superseded.cardinality();
+	}
+
+	/**
+	 * Maps a snapshot file, with all its records not yet superseded.
+	 */
+	public static FSColdAccounts open(File file) throws IOException {
+		return new FSColdAccounts(FSAccountsSnapshot.map(file), new BitSet());
+	}
+
+	/**
+	 * Returns an independent copy, which may be used by an other thread.
+	 */
+	public FSColdAccounts copy() {
+		return new FSColdAccounts(snapshot, (BitSet) superseded.clone());
+	}
+
+	public FSAccountsSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Returns the number of accounts whose records are not superseded.
+	 */
+	public int size() {
+		return live;
+	}
+
+	/**
+	 * Finds the record of an account by name, ignoring case.
+	 * @return the record, or -1 if there is no such account,
+	 *   or its record is superseded
+	 */
+	public int findNoCase(String name) {
+
+		for (int record : snapshot.findAllNoCase(name)) {
+			if (!superseded.get(record)) {
+				return record;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the record of an account by its exact name.
+	 * @return the record, or -1 if there is no such account,
+	 *   or its record is superseded
+	 */
+	public int find(String name) {
+
+		for (int record : snapshot.findAllNoCase(name)) {
+			if (!superseded.get(record)
+					&& snapshot.getName(record).equals(name))
+			{
+				return record;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the record of the account with the highest ID, which was last
+	 * used from an IP.
+	 * @param address as returned by {@link java.net.InetAddress#getAddress()}
+	 * @return the record, or -1 if there is no such account,
+	 *   or the records of all of them are superseded
+	 */
+	public int findByLastIp(byte[] address) {
+
+		int found = -1;
+		for (int record : snapshot.findByLastIp(address)) {
+			if (!superseded.get(record) && ((found == -1)
+					|| (snapshot.getId(record) > snapshot.getId(found))))
+			{
+				found = record;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the first record at or after the given one which is not
+	 * superseded, or -1 if there is none.
+	 */
+	public int nextLive(int record) {
+
+		int next = superseded.nextClearBit(record);
+		return (next < snapshot.size()) ? next : -1;
+	}
+
+	public Account getAccount(int record) {
+		return snapshot.getAccount(record);
+	}
+
+	/**
+	 * Marks a record as no longer valid, for example because the account
+	 * got loaded into memory.
+	 */
+	public void supersede(int record) {
+
+		if (!superseded.get(record)) {
+			superseded.set(record);
+			live--;
+		}
+	}
+
+	/**
+	 * Marks a record as valid again, for example because the unchanged
+	 * account got evicted from memory.
+	 */
+	public void restore(int record) {
+
+		if (superseded.get(record)) {
+			superseded.clear(record);
+			live++;
+		}
+	}
+}
@@ -24,11 +24,12 @@ import com.springrts.springls.ContextReceiver;
 import com.springrts.springls.ServerNotification;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
-import java.util.List;
+import java.util.Collection;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +49,10 @@ import org.slf4j.LoggerFactory;
  * <code>int</code>s, and is thus not atomic, but it will not cause corruption
  * in the accounts file, as it is used right now. So it is essential to ensure
  * that the MapGrading class is thread-safe, or at least its toString() method.
+ * The accounts are first written to a temporary file, which then replaces the
+ * actual accounts file, so a crash while saving never leaves a corrupt
+ * accounts file behind. The same goes for the binary snapshot, if one is
+ * written too.
  *
  * @author Betalord
  */
@@ -62,18 +67,68 @@ public class FSSaveAccountsThread extends Thread implements ContextReceiver {
 	 * Where to save the accounts to.
 	 */
 	private File saveFile;
+	/**
+	 * Where to save the binary snapshot of the accounts to,
+	 * or <code>null</code> to not write one.
+	 */
+	private File snapshotFile;
+	private volatile boolean snapshotWritten;
 
 	/**
 	 * Duplicated accounts.
 	 * Needed to ensure thread safety as well as accounts state consistency.
 	 */
-	private List<Account> dupAccounts;
+	private Collection<Account> dupAccounts;
+
+	/**
+	 * The journal whose older generations become obsolete once the accounts
+	 * are saved, or <code>null</code>.
+	 */
+	private FSAccountsJournal journal;
+	/**
+	 * The last journal generation whose changes are contained in
+	 * the duplicated accounts.
+	 */
+	private int journalGeneration;
 
 
-	public FSSaveAccountsThread(File saveFile, List<Account> dupAccounts) {
+	public FSSaveAccountsThread(File saveFile, Collection<Account> dupAccounts)
+	{
+		this(saveFile, dupAccounts, null, 0);
+	}
 
+	/**
+	 * @param journal the journal to compact, may be <code>null</code>
+	 * @param journalGeneration the last journal generation whose changes are
+	 *   contained in <code>dupAccounts</code>
+	 */
+	public FSSaveAccountsThread(File saveFile, Collection<Account> dupAccounts,
+			FSAccountsJournal journal, int journalGeneration)
+	{
 		this.saveFile = saveFile;
 		this.dupAccounts = dupAccounts;
+		this.journal = journal;
+		this.journalGeneration = journalGeneration;
+		this.snapshotFile = null;
+		this.snapshotWritten = false;
+	}
+
+	/**
+	 * Where to save the binary snapshot of the accounts to, additionally to
+	 * the text file.
+	 * @param snapshotFile the file, or <code>null</code> to not write one
+	 * @see FSAccountsSnapshot
+	 */
+	public void setSnapshotFile(File snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+	/**
+	 * Whether the binary snapshot was written successfully.
+	 * @see #setSnapshotFile(File)
+	 */
+	public boolean isSnapshotWritten() {
+		return snapshotWritten;
 	}
 
 
@@ -88,17 +143,36 @@ public class FSSaveAccountsThread extends Thread implements ContextReceiver {
 		LOG.info("Dumping accounts to disk in a separate thread ...");
 		long time = System.currentTimeMillis();
 
+		File tmpFile = new File(saveFile.getPath() + ".tmp");
+		FileOutputStream outS = null;
 		Writer outF = null;
 		Writer outB = null;
 		PrintWriter out = null;
 		try {
-			outF = new FileWriter(saveFile);
+			outS = new FileOutputStream(tmpFile);
+			outF = new OutputStreamWriter(outS);
 			outB = new BufferedWriter(outF);
 			out = new PrintWriter(outB);
 
-			for (int i = 0; i < dupAccounts.size(); i++) {
-				out.println(FSAccountsService.toPersistentString(
-						dupAccounts.get(i)));
+			for (Account account : dupAccounts) {
+				out.println(FSAccountsService.toPersistentString(account));
+			}
+			out.flush();
+			if (out.checkError()) {
+				throw new IOException("Failed writing to "
+						+ tmpFile.getAbsolutePath());
+			}
+			// make sure the data is on disk before it replaces the old file
+			outS.getFD().sync();
+			out.close();
+			out = null;
+			replace(tmpFile, saveFile);
+
+			if (snapshotFile != null) {
+				File tmpSnapshotFile = new File(snapshotFile.getPath() + ".tmp");
+				FSAccountsSnapshot.write(tmpSnapshotFile, dupAccounts);
+				replace(tmpSnapshotFile, snapshotFile);
+				snapshotWritten = true;
 			}
 		} catch (IOException ex) {
 			LOG.error("Failed writing accounts info to "
@@ -121,6 +195,8 @@ public class FSSaveAccountsThread extends Thread implements ContextReceiver {
 					outB.close();
 				} else if (outF != null) {
 					outF.close();
+				} else if (outS != null) {
+					outS.close();
 				}
 			} catch (IOException ex) {
 				LOG.trace("Failed closing file writer to accounts file '{}';"
@@ -136,7 +212,34 @@ public class FSSaveAccountsThread extends Thread implements ContextReceiver {
 					(System.currentTimeMillis() - time)
 				});
 
+		if (journal != null) {
+			// all these changes are in the accounts file
+			// (and the snapshot) now
+			journal.deleteUpTo(journalGeneration);
+		}
+
 		// let the garbage collector free the duplicate accounts list
 		dupAccounts = null;
 	}
+
+	/**
+	 * Replaces a file with an other one.
+	 * This is atomic on POSIX systems. Elsewhere, the target file has to be
+	 * deleted first.
+	 */
+	private static void replace(File source, File target) throws IOException {
+
+		if (source.renameTo(target)) {
+			return;
+		}
+		if (target.exists() && !target.delete()) {
+			throw new IOException("Failed to delete "
+					+ target.getAbsolutePath());
+		}
+		if (!source.renameTo(target)) {
+			throw new IOException("Failed to rename "
+					+ source.getAbsolutePath() + " to "
+					+ target.getAbsolutePath());
+		}
+	}
 }
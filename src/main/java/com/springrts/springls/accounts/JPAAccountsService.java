@@ -19,12 +19,15 @@ package com.springrts.springls.accounts;
 
 
 import com.springrts.springls.Account;
+import com.springrts.springls.ServerConfiguration;
+import com.springrts.springls.ServerNotification;
+import com.springrts.springls.database.Database;
 import java.net.InetAddress;
+import java.util.Collection;
 import java.util.List;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.NoResultException;
-import javax.persistence.Persistence;
 import javax.persistence.PersistenceException;
 import javax.persistence.Query;
 
@@ -43,19 +46,33 @@ public class JPAAccountsService extends AbstractAccountsService {
 	private static final Logger LOG
 			= LoggerFactory.getLogger(JPAAccountsService.class);
 	private static final long DAY = 1000L * 60L * 60L * 24L;
+	/** How many accounts are merged in one transaction at most. */
+	private static final int MERGE_BATCH_SIZE = 100;
 
 	private EntityManagerFactory emf = null;
 
 
-	public JPAAccountsService() {
+	/**
+	 * @param database gives access to the entity manager factory shared with
+	 *   the other services using the database
+	 */
+	public JPAAccountsService(Database database) {
 
 		try {
-			emf = Persistence.createEntityManagerFactory("springls");
+			emf = database.getEntityManagerFactory();
 		} catch (PersistenceException ex) {
 			LOG.error("Failed to initialize database storage", ex);
 		}
 	}
 
+	/**
+	 * Uses a database of its own, with the default configuration.
+	 * This is meant for stand-alone tools.
+	 */
+	public JPAAccountsService() {
+		this(new Database(ServerConfiguration.getDefaults()));
+	}
+
 	private EntityManager open() {
 
 		EntityManager em = emf.createEntityManager();
@@ -105,6 +122,15 @@ public class JPAAccountsService extends AbstractAccountsService {
 		return (emf != null);
 	}
 
+	/**
+	 * Each call uses its own entity manager.
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+
 	@Override
 	public int getAccountsSize() {
 
@@ -150,9 +176,85 @@ public class JPAAccountsService extends AbstractAccountsService {
 		return activeAccounts;
 	}
 
+	/**
+	 * Fills in the lower case names of accounts stored before that column
+	 * existed, as they are used to find accounts by name case-insensitively.
+	 * If this fails, for example because some names only differ in case,
+	 * the admins are notified, as these accounts can not be found by name.
+	 * {@inheritDoc}
+	 * @see Account#getLowerName()
+	 */
 	@Override
 	public boolean loadAccounts() {
-		return true;
+
+		boolean success = false;
+
+		EntityManager em = null;
+		try {
+			em = open();
+			begin(em);
+			int migrated = em.createNamedQuery("acc_fillLowerNames")
+					.executeUpdate();
+			commit(em);
+			if (migrated > 0) {
+				LOG.info("Stored the lower case names of {} accounts",
+						migrated);
+			}
+			success = true;
+		} catch (Exception ex) {
+			LOG.error("Failed storing the lower case names of accounts", ex);
+			rollback(em);
+		} finally {
+			close(em);
+			em = null;
+		}
+
+		if (!success) {
+			reportLowerNamesFailure();
+		}
+
+		return success;
+	}
+
+	/**
+	 * Notifies the admins that the lower case names could not be stored,
+	 * listing the names which only differ in case, if there are any.
+	 */
+	private void reportLowerNamesFailure() {
+
+		List<String> duplicates = null;
+		EntityManager em = null;
+		try {
+			em = open();
+			Query caseDuplicatesQuery
+					= em.createNamedQuery("acc_caseDuplicates");
+			duplicates = (List<String>) caseDuplicatesQuery.getResultList();
+		} catch (Exception ex) {
+			LOG.error("Failed looking up account names which only differ"
+					+ " in case", ex);
+		} finally {
+			close(em);
+			em = null;
+		}
+
+		ServerNotification sn = new ServerNotification(
+				"Error migrating accounts");
+		sn.addLine("Serious error: Failed to store the lower case names of"
+				+ " the accounts. Accounts without one can not be found by"
+				+ " name, so their users can not login.");
+		if ((duplicates != null) && !duplicates.isEmpty()) {
+			LOG.error("Account names which only differ in case: {}",
+					duplicates);
+			sn.addLine("These names are used by multiple accounts, which only"
+					+ " differ in case; rename all but one of each and restart"
+					+ " the server:");
+			for (String duplicate : duplicates) {
+				sn.addLine(duplicate);
+			}
+		} else {
+			sn.addLine("See the server log for details.");
+		}
+		getContext().getServerNotifications().addNotification(sn);
 	}
 
 	@Override
@@ -203,16 +305,29 @@ public class JPAAccountsService extends AbstractAccountsService {
 
 	@Override
 	public boolean removeAccount(Account acc) {
+		return Boolean.TRUE.equals(removeAccountIfExists(acc));
+	}
 
-		boolean removed = false;
+	/**
+	 * Removes an account, if it exists.
+	 * @return whether the account existed, or <code>null</code> if removing
+	 *   it failed
+	 */
+	Boolean removeAccountIfExists(Account acc) {
+
+		Boolean removed = null;
 
 		EntityManager em = null;
 		try {
 			em = open();
 			begin(em);
-			em.remove(acc);
+			// the account is usually detached, which can not be removed
+			Account managed = em.find(Account.class, acc.getId());
+			if (managed != null) {
+				em.remove(managed);
+			}
 			commit(em);
-			removed = true;
+			removed = (managed != null);
 		} catch (Exception ex) {
 			LOG.error("Failed removing an account", ex);
 			rollback(em);
@@ -316,6 +431,43 @@ public class JPAAccountsService extends AbstractAccountsService {
 		return replaced;
 	}
 
+	/**
+	 * Saves changes to multiple accounts, in batches of transactions.
+	 * @return 'true' if all changes were saved successfully
+	 * @see #mergeAccountChanges(Account, String)
+	 */
+	public boolean mergeAccountChanges(Collection<Account> accounts) {
+
+		boolean replaced = true;
+
+		EntityManager em = null;
+		try {
+			em = open();
+			begin(em);
+			int inTransaction = 0;
+			for (Account account : accounts) {
+				if (inTransaction == MERGE_BATCH_SIZE) {
+					commit(em);
+					em.clear();
+					begin(em);
+					inTransaction = 0;
+				}
+				em.merge(account);
+				inTransaction++;
+			}
+			commit(em);
+		} catch (Exception ex) {
+			LOG.error("Failed replacing accounts", ex);
+			rollback(em);
+			replaced = false;
+		} finally {
+			close(em);
+			em = null;
+		}
+
+		return replaced;
+	}
+
 	@Override
 	public List<Account> fetchAllAccounts() {
 
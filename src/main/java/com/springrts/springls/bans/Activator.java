@@ -20,6 +20,7 @@ package com.springrts.springls.bans;
 
 import com.springrts.springls.Context;
 import com.springrts.springls.ServerConfiguration;
+import com.springrts.springls.database.Database;
 import org.apache.commons.configuration.Configuration;
 
 import org.osgi.framework.BundleActivator;
@@ -53,7 +54,8 @@ public class Activator implements BundleActivator {
 
 		if (!lanMode) {
 			try {
-				banService = new JPABanService();
+				banService = new JPABanService(
+						context.getService(Database.class));
 			} catch (Exception pex) {
 				log.warn("Failed to access database for ban entries,"
 						+ " bans are not supported!", pex);
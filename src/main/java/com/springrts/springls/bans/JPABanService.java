@@ -18,12 +18,12 @@
 package com.springrts.springls.bans;
 
 
+import com.springrts.springls.database.Database;
 import com.springrts.springls.util.ProtocolUtil;
 import java.net.InetAddress;
 import java.util.List;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
-import javax.persistence.Persistence;
 import javax.persistence.PersistenceException;
 import javax.persistence.Query;
 
@@ -44,8 +44,12 @@ public class JPABanService implements BanService {
 
 	private EntityManagerFactory emf;
 
-	public JPABanService() {
-		emf = Persistence.createEntityManagerFactory("springls");
+	/**
+	 * @param database gives access to the entity manager factory shared with
+	 *   the other services using the database
+	 */
+	public JPABanService(Database database) {
+		emf = database.getEntityManagerFactory();
 	}
 
 	private EntityManager open() {
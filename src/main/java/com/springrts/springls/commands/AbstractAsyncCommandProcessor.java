@@ -0,0 +1,161 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls.commands;
+
+
+import com.springrts.springls.Account;
+import com.springrts.springls.Client;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Utility base class for command processors which have to do blocking work,
+ * like database access.
+ * After the common checks, {@link #prepare(Client, List)} is called on the
+ * main thread, and returns the blocking work. This work is done on an other
+ * thread, if possible, while the server keeps processing the commands of
+ * other clients. {@link #complete(Client, List, Object)} is then called back
+ * on the main thread, with the message ID of the command set on the client.
+ * The following commands of the same client are only processed after that.
+ * @param <T> the result of the blocking work
+ * @see AsyncCommandExecutor
+ * @author hoijui
+ */
+public abstract class AbstractAsyncCommandProcessor<T>
+		extends AbstractCommandProcessor
+{
+	private static final Logger LOG
+			= LoggerFactory.getLogger(AbstractAsyncCommandProcessor.class);
+
+	protected AbstractAsyncCommandProcessor(int argsMin, int argsMax,
+			Account.Access accessMin)
+	{
+		super(argsMin, argsMax, accessMin);
+	}
+	protected AbstractAsyncCommandProcessor(int argsMin, int argsMax) {
+		super(argsMin, argsMax);
+	}
+	protected AbstractAsyncCommandProcessor(Account.Access accessMin) {
+		super(accessMin);
+	}
+
+	/**
+	 * Performs the common checks, and then does the work returned by
+	 * {@link #prepare(Client, List)}.
+	 * @return false if the command was rejected; true if it was completed
+	 *   successfully, or is processed asynchronously
+	 */
+	@Override
+	public boolean process(Client client, List<String> args)
+			throws CommandProcessingException
+	{
+		boolean checksOk = super.process(client, args);
+		if (!checksOk) {
+			return false;
+		}
+
+		Callable<T> work = prepare(client, args);
+		if (work == null) {
+			return false;
+		}
+
+		return execute(client, args, work);
+	}
+
+	/**
+	 * Does the work on an other thread if possible, or right away otherwise.
+	 * This is called on the main thread, with the message ID of the command
+	 * set on the client.
+	 * @return false if the work was done right away and the command failed
+	 */
+	protected boolean execute(final Client client, final List<String> args,
+			Callable<T> work)
+	{
+		if (isAsyncPossible()) {
+			AsyncCommandExecutor.Continuation<T> continuation
+					= new AsyncCommandExecutor.Continuation<T>() {
+				@Override
+				public void completed(T result) {
+					complete(client, args, result);
+				}
+				@Override
+				public void failed(Exception failure) {
+					AbstractAsyncCommandProcessor.this.failed(client, args,
+							failure);
+				}
+			};
+			getContext().getCommandProcessors().getAsyncExecutor()
+					.submit(client, work, continuation);
+			return true;
+		}
+
+		T result;
+		try {
+			result = work.call();
+		} catch (Exception ex) {
+			failed(client, args, ex);
+			return false;
+		}
+		return complete(client, args, result);
+	}
+
+	/**
+	 * Whether the work may be done on an other thread.
+	 * By default, this is the case if the accounts service is thread-safe.
+	 * @see com.springrts.springls.accounts.AccountsService#isThreadSafe()
+	 */
+	protected boolean isAsyncPossible() {
+		return getContext().getCommandProcessors().getAsyncExecutor()
+				.isEnabled()
+				&& getContext().getAccountsService().isThreadSafe();
+	}
+
+	/**
+	 * Validates the command on the main thread, and returns the blocking
+	 * work to do.
+	 * The work must not touch the state of the server, other then through
+	 * thread-safe services.
+	 * @return the work to do, or <code>null</code> if the command was
+	 *   rejected
+	 */
+	protected abstract Callable<T> prepare(Client client, List<String> args)
+			throws CommandProcessingException;
+
+	/**
+	 * Finishes processing the command on the main thread, after the work was
+	 * done.
+	 * @param result what the work returned
+	 * @return false if the command failed
+	 */
+	protected abstract boolean complete(Client client, List<String> args,
+			T result);
+
+	/**
+	 * Called on the main thread if the work threw an exception.
+	 * By default, this only logs it.
+	 */
+	protected void failed(Client client, List<String> args,
+			Exception failure)
+	{
+		LOG.error("Failed to process command " + getCommandName(), failure);
+	}
+}
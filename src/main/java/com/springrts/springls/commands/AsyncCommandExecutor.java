@@ -0,0 +1,229 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls.commands;
+
+
+import com.springrts.springls.Client;
+import com.springrts.springls.Context;
+import com.springrts.springls.ContextReceiver;
+import com.springrts.springls.ServerConfiguration;
+import com.springrts.springls.Updateable;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Does the blocking work of commands, like database access, on a bounded
+ * pool of threads, and continues processing them on the main thread once the
+ * work is done.
+ * While one of its commands is processed like this, further commands of the
+ * same client are held back, so they are still processed in order.
+ * The message ID of the command is restored while continuing.
+ * @see AbstractAsyncCommandProcessor
+ * @see ServerConfiguration#COMMANDS_ASYNC_THREADS
+ * @author hoijui
+ */
+public class AsyncCommandExecutor implements ContextReceiver, Updateable {
+
+	private static final Logger LOG
+			= LoggerFactory.getLogger(AsyncCommandExecutor.class);
+
+	/**
+	 * How many commands may wait for a thread to do their work.
+	 * Once this is exceeded, the work is done on the main thread.
+	 */
+	private static final int QUEUE_CAPACITY = 1000;
+
+	/**
+	 * Continues processing a command on the main thread.
+	 * @param <T> the result of the blocking work
+	 */
+	public static interface Continuation<T> {
+
+		/**
+		 * Called on the main thread, after the work was done.
+		 * @param result the result of the work
+		 */
+		void completed(T result);
+
+		/**
+		 * Called on the main thread, if the work failed.
+		 * @param failure what the work threw
+		 */
+		void failed(Exception failure);
+	}
+
+	private Context context;
+	/** Created on first use. */
+	private ExecutorService executor;
+	/** Work done, waiting to be continued on the main thread. */
+	private final Queue<Completion<?>> completions;
+
+
+	public AsyncCommandExecutor() {
+
+		this.context = null;
+		this.executor = null;
+		this.completions = new ConcurrentLinkedQueue<Completion<?>>();
+	}
+
+
+	@Override
+	public void receiveContext(Context context) {
+		this.context = context;
+	}
+
+	/**
+	 * Whether work is done on other threads at all.
+	 * If not, it should be done right away, on the main thread.
+	 */
+	public boolean isEnabled() {
+
+		Configuration conf = context.getService(Configuration.class);
+		return (conf.getInt(ServerConfiguration.COMMANDS_ASYNC_THREADS) > 0);
+	}
+
+	/**
+	 * Does the work on an other thread, and calls the continuation on the main
+	 * thread afterwards.
+	 * The commands of the client are not processed until then.
+	 * This has to be called on the main thread.
+	 */
+	public <T> void submit(Client client, Callable<T> work,
+			Continuation<T> continuation)
+	{
+		final Completion<T> completion = new Completion<T>(client,
+				client.getSendMsgId(), work, continuation);
+		client.setCommandProcessingSuspended(true);
+
+		try {
+			getExecutor().execute(completion);
+		} catch (RejectedExecutionException ex) {
+			LOG.debug("Too many commands waiting; doing the work on the main"
+					+ " thread", ex);
+			completion.run();
+		}
+	}
+
+	private ExecutorService getExecutor() {
+
+		if (executor == null) {
+			Configuration conf = context.getService(Configuration.class);
+			int threads = Math.max(1,
+					conf.getInt(ServerConfiguration.COMMANDS_ASYNC_THREADS));
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+					60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+					new ThreadFactory() {
+						private int created = 0;
+						@Override
+						public synchronized Thread newThread(Runnable r) {
+							Thread thread = new Thread(r,
+									"command-io-" + (++created));
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
+	}
+
+	/**
+	 * Continues processing the commands whose work is done.
+	 */
+	@Override
+	public void update() {
+
+		Completion<?> completion;
+		while ((completion = completions.poll()) != null) {
+			completion.resume();
+		}
+	}
+
+	/**
+	 * The work of a command, and what to do with its result.
+	 */
+	private class Completion<T> implements Runnable {
+
+		private final Client client;
+		private final int msgId;
+		private final Callable<T> work;
+		private final Continuation<T> continuation;
+		private T result;
+		private Exception failure;
+
+		Completion(Client client, int msgId, Callable<T> work,
+				Continuation<T> continuation)
+		{
+			this.client = client;
+			this.msgId = msgId;
+			this.work = work;
+			this.continuation = continuation;
+			this.result = null;
+			this.failure = null;
+		}
+
+		/** Does the work, on an I/O thread. */
+		@Override
+		public void run() {
+
+			try {
+				result = work.call();
+			} catch (Exception ex) {
+				failure = ex;
+			}
+			// the queue makes the results visible to the main thread
+			completions.add(this);
+		}
+
+		/** Continues processing the command, on the main thread. */
+		void resume() {
+
+			client.setSendMsgId(msgId);
+			try {
+				if (!client.isAlive()) {
+					LOG.debug("Client disconnected while its command was being"
+							+ " processed");
+				} else if (failure == null) {
+					continuation.completed(result);
+				} else {
+					continuation.failed(failure);
+				}
+			} catch (RuntimeException ex) {
+				LOG.error("Failed to complete a command", ex);
+			} finally {
+				client.setSendMsgId(Client.NO_MSG_ID);
+				client.setCommandProcessingSuspended(false);
+				context.getServerThread().serveReceivedLines(client);
+			}
+		}
+	}
+}
@@ -41,6 +41,7 @@ public class CommandProcessors implements ContextReceiver {
 	private Map<String, CommandProcessor> cmdNameToProcessor;
 	private Context context;
 	private CommandProcessorTracker commandProcessorTracker;
+	private final AsyncCommandExecutor asyncExecutor;
 
 	/**
 	 * Extracts the name of the command supported by a command processor
@@ -75,12 +76,23 @@ public class CommandProcessors implements ContextReceiver {
 		cmdNameToProcessor = new HashMap<String, CommandProcessor>();
 		context = null;
 		commandProcessorTracker = null;
+		asyncExecutor = new AsyncCommandExecutor();
 	}
 
 
 	@Override
 	public void receiveContext(Context context) {
+
 		this.context = context;
+		asyncExecutor.receiveContext(context);
+	}
+
+	/**
+	 * Returns the executor used by command processors which do their
+	 * blocking work asynchronously.
+	 */
+	public AsyncCommandExecutor getAsyncExecutor() {
+		return asyncExecutor;
 	}
 
 	/**
@@ -59,6 +59,8 @@ public class Activator implements BundleActivator {
 			// FIXME This should probably be done in the ForceJoinBattleCommandProcessor directly.
 			//   That would first need some start(bundle) and stop(bundle) equivalent there, though.
 			Context.getService(context, Context.class).getServer().getSupportedCompFlags().add("m");
+			Context.getService(context, Context.class).getServer().getSupportedCompFlags().add("q");
+			Context.getService(context, Context.class).getServer().getSupportedCompFlags().add("lq");
 		} catch (Exception ex) {
 			log.error("Failed to load Command Processors", ex);
 			Context.getService(context, Context.class).getServerThread().closeServerAndExit();
@@ -73,6 +75,8 @@ public class Activator implements BundleActivator {
 	@Override
 	public void stop(BundleContext context) {
 		Context.getService(context, Context.class).getServer().getSupportedCompFlags().remove("m");
+		Context.getService(context, Context.class).getServer().getSupportedCompFlags().remove("q");
+		Context.getService(context, Context.class).getServer().getSupportedCompFlags().remove("lq");
 	}
 
 	/**
@@ -121,6 +125,7 @@ public class Activator implements BundleActivator {
 		commandProcessorClasses.add(FindIpCommandProcessor.class);
 		commandProcessorClasses.add(GetLastIpCommandProcessor.class);
 		commandProcessorClasses.add(GetAccountInfoCommandProcessor.class);
+		commandProcessorClasses.add(GetDbPoolStatusCommandProcessor.class);
 		commandProcessorClasses.add(ForgeMessageCommandProcessor.class);
 		commandProcessorClasses.add(GetIpCommandProcessor.class);
 		commandProcessorClasses.add(GetInGameTimeCommandProcessor.class);
@@ -166,6 +171,11 @@ public class Activator implements BundleActivator {
 		commandProcessorClasses.add(MyBattleStatusCommandProcessor.class);
 		commandProcessorClasses.add(MyStatusCommandProcessor.class);
 		commandProcessorClasses.add(UpdateBattleInfoCommandProcessor.class);
+		commandProcessorClasses.add(QueryBattlesCommandProcessor.class);
+		commandProcessorClasses.add(SubscribeBattleCommandProcessor.class);
+		commandProcessorClasses.add(UnsubscribeBattleCommandProcessor.class);
+		commandProcessorClasses.add(WatchUsersCommandProcessor.class);
+		commandProcessorClasses.add(UnwatchUsersCommandProcessor.class);
 		commandProcessorClasses.add(HandicapCommandProcessor.class);
 		commandProcessorClasses.add(ForceTeamNumberCommandProcessor.class);
 		commandProcessorClasses.add(ForceAllyNumberCommandProcessor.class);
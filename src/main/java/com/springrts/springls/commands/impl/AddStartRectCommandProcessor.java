@@ -87,6 +87,7 @@ public class AddStartRectCommandProcessor extends AbstractCommandProcessor {
 		startRect.setTop(top);
 		startRect.setRight(right);
 		startRect.setBottom(bottom);
+		battle.startRectsChanged();
 
 		battle.sendToAllExceptFounder(String.format(
 				"ADDSTARTRECT %d %d %d %d %d",
@@ -21,18 +21,22 @@ package com.springrts.springls.commands.impl;
 import com.springrts.springls.Account;
 import com.springrts.springls.Client;
 import com.springrts.springls.ServerConfiguration;
-import com.springrts.springls.commands.AbstractCommandProcessor;
+import com.springrts.springls.accounts.AccountsService;
+import com.springrts.springls.commands.AbstractAsyncCommandProcessor;
 import com.springrts.springls.commands.CommandProcessingException;
 import com.springrts.springls.commands.InvalidNumberOfArgumentsCommandProcessingException;
 import com.springrts.springls.commands.SupportedCommand;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Allows a user to change his password.
  * @author hoijui
  */
 @SupportedCommand("CHANGEPASSWORD")
-public class ChangePasswordCommandProcessor extends AbstractCommandProcessor {
+public class ChangePasswordCommandProcessor
+		extends AbstractAsyncCommandProcessor<Boolean>
+{
 
 	public ChangePasswordCommandProcessor() {
 		super(2, 2, Account.Access.NORMAL);
@@ -42,7 +46,7 @@ public class ChangePasswordCommandProcessor extends AbstractCommandProcessor {
 	public boolean process(Client client, List<String> args)
 			throws CommandProcessingException
 	{
-		boolean checksOk = false;
+		boolean checksOk;
 		try {
 			checksOk = super.process(client, args);
 		} catch (InvalidNumberOfArgumentsCommandProcessingException ex) {
@@ -52,9 +56,11 @@ public class ChangePasswordCommandProcessor extends AbstractCommandProcessor {
 					getCommandName()));
 			throw ex;
 		}
-		if (!checksOk) {
-			return false;
-		}
+		return checksOk;
+	}
+
+	@Override
+	protected Callable<Boolean> prepare(Client client, List<String> args) {
 
 		String oldPassword = args.get(0);
 		String newPassword = args.get(1);
@@ -64,14 +70,14 @@ public class ChangePasswordCommandProcessor extends AbstractCommandProcessor {
 					"SERVERMSG %s failed: You can not change your password"
 					+ " while the server is running in LAN mode!",
 					getCommandName()));
-			return false;
+			return null;
 		}
 
 		if (!oldPassword.equals(client.getAccount().getPassword())) {
 			client.sendLine(String.format(
 					"SERVERMSG %s failed: The old password is incorrect!",
 					getCommandName()));
-			return false;
+			return null;
 		}
 
 		// validate password:
@@ -80,16 +86,33 @@ public class ChangePasswordCommandProcessor extends AbstractCommandProcessor {
 			client.sendLine(String.format(
 					"SERVERMSG %s failed: Invalid password (reason: %s)",
 					getCommandName(), valid));
-			return false;
+			return null;
 		}
 
-		final String oldPasswd = client.getAccount().getPassword();
-		client.getAccount().setPassword(newPassword);
-		final boolean mergeOk = getContext().getAccountsService()
-				.mergeAccountChanges(client.getAccount(),
-				client.getAccount().getName());
+		Account account = client.getAccount();
+		final String name = account.getName();
+		final AccountsService accountsService
+				= getContext().getAccountsService();
+		account.setPassword(newPassword);
+		// the work may not touch the live account, as it belongs to the
+		// main thread
+		final Account changed = account.clone();
+
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return accountsService.mergeAccountChanges(changed, name);
+			}
+		};
+	}
+
+	@Override
+	protected boolean complete(Client client, List<String> args,
+			Boolean mergeOk)
+	{
 		if (!mergeOk) {
-			client.getAccount().setPassword(oldPasswd);
+			// the old password was checked to be the current one
+			client.getAccount().setPassword(args.get(0));
 			client.sendLine(String.format(
 					"SERVERMSG %s failed: Failed saving to persistent storage.",
 					getCommandName()));
@@ -103,4 +126,12 @@ public class ChangePasswordCommandProcessor extends AbstractCommandProcessor {
 
 		return true;
 	}
+
+	@Override
+	protected void failed(Client client, List<String> args,
+			Exception failure)
+	{
+		super.failed(client, args, failure);
+		complete(client, args, false);
+	}
 }
@@ -60,6 +60,7 @@ public class DisableUnitsCommandProcessor extends AbstractCommandProcessor {
 			}
 			battle.getDisabledUnits().add(unit);
 		}
+		battle.disabledUnitsChanged();
 
 		battle.sendToAllExceptFounder(reconstructFullCommand(args));
 
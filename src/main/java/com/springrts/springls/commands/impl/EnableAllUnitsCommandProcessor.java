@@ -51,6 +51,7 @@ public class EnableAllUnitsCommandProcessor extends AbstractCommandProcessor {
 		Battle battle = getBattle(client);
 
 		battle.getDisabledUnits().clear();
+		battle.disabledUnitsChanged();
 
 		battle.sendToAllExceptFounder(reconstructFullCommand(args));
 
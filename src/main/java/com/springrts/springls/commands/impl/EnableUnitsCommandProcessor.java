@@ -55,6 +55,7 @@ public class EnableUnitsCommandProcessor extends AbstractCommandProcessor {
 			// will ignore it if string is not found in the list
 			battle.getDisabledUnits().remove(unit);
 		}
+		battle.disabledUnitsChanged();
 
 		battle.sendToAllExceptFounder(reconstructFullCommand(args));
 
@@ -111,7 +111,7 @@ public class ForceJoinBattleCommandProcessor extends AbstractCommandProcessor {
 			battlePassword = args.get(2);
 		}
 
-		boolean clientSupportsCmd = affectedClient.getCompatFlags().contains("m");
+		boolean clientSupportsCmd = affectedClient.hasCompatFlag("m");
 		if (clientSupportsCmd) {
 			String successResponseMessage = (battlePassword == null)
 					? String.format("FORCEJOINBATTLE %d", destinationBattleId)
@@ -67,7 +67,7 @@ public class ForceSpectatorModeCommandProcessor
 			return false;
 		}
 
-		target.setSpectator(true);
+		battle.setSpectator(target, true);
 		battle.notifyClientsOfBattleStatus(target);
 
 		return true;
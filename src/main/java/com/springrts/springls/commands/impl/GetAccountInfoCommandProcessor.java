@@ -20,33 +20,45 @@ package com.springrts.springls.commands.impl;
 
 import com.springrts.springls.Account;
 import com.springrts.springls.Client;
-import com.springrts.springls.commands.AbstractCommandProcessor;
-import com.springrts.springls.commands.CommandProcessingException;
+import com.springrts.springls.accounts.AccountsService;
+import com.springrts.springls.commands.AbstractAsyncCommandProcessor;
 import com.springrts.springls.commands.SupportedCommand;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * @author hoijui
  */
 @SupportedCommand("GETACCOUNTINFO")
-public class GetAccountInfoCommandProcessor extends AbstractCommandProcessor {
+public class GetAccountInfoCommandProcessor
+		extends AbstractAsyncCommandProcessor<Account>
+{
 
 	public GetAccountInfoCommandProcessor() {
 		super(1, 1, Account.Access.ADMIN);
 	}
 
 	@Override
-	public boolean process(Client client, List<String> args)
-			throws CommandProcessingException
-	{
-		boolean checksOk = super.process(client, args);
-		if (!checksOk) {
-			return false;
-		}
+	protected Callable<Account> prepare(Client client, List<String> args) {
+
+		final String username = args.get(0);
+		final AccountsService accountsService
+				= getContext().getAccountsService();
 
+		return new Callable<Account>() {
+			@Override
+			public Account call() {
+				return accountsService.getAccount(username);
+			}
+		};
+	}
+
+	@Override
+	protected boolean complete(Client client, List<String> args,
+			Account acc)
+	{
 		String username = args.get(0);
 
-		Account acc = getContext().getAccountsService().getAccount(username);
 		if (acc == null) {
 			client.sendLine(String.format(
 					"SERVERMSG Account <%s> does not exist.",
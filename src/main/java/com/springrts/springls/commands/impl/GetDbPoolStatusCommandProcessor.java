@@ -0,0 +1,71 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls.commands.impl;
+
+
+import com.springrts.springls.Account;
+import com.springrts.springls.Client;
+import com.springrts.springls.commands.AbstractCommandProcessor;
+import com.springrts.springls.commands.CommandProcessingException;
+import com.springrts.springls.commands.SupportedCommand;
+import com.springrts.springls.database.Database;
+import com.springrts.springls.database.PooledDataSource;
+import java.util.List;
+
+/**
+ * Allows an administrator to fetch the state of the database connection pool:
+ * the number of active and idle connections, and how long it took to get
+ * connections from it.
+ * @author hoijui
+ */
+@SupportedCommand("GETDBPOOLSTATUS")
+public class GetDbPoolStatusCommandProcessor extends AbstractCommandProcessor {
+
+	public GetDbPoolStatusCommandProcessor() {
+		super(0, 0, Account.Access.ADMIN);
+	}
+
+	@Override
+	public boolean process(Client client, List<String> args)
+			throws CommandProcessingException
+	{
+		boolean checksOk = super.process(client, args);
+		if (!checksOk) {
+			return false;
+		}
+
+		Database database = getContext().getService(Database.class);
+		PooledDataSource pool
+				= (database == null) ? null : database.getDataSource();
+		if (pool == null) {
+			client.sendLine("SERVERMSG No database connection pool is in use.");
+			return false;
+		}
+
+		client.sendLine(String.format(
+				"SERVERMSG Database connection pool: %d active, %d idle,"
+				+ " %d at most; %d connections requested, waited"
+				+ " %.2f ms on average, %.2f ms at most",
+				pool.getNumActive(), pool.getNumIdle(), pool.getMaxActive(),
+				pool.getConnectionRequests(), pool.getAverageWaitTime(),
+				pool.getMaxWaitTime()));
+
+		return true;
+	}
+}
@@ -25,6 +25,7 @@ import com.springrts.springls.util.Misc;
 import com.springrts.springls.commands.AbstractCommandProcessor;
 import com.springrts.springls.commands.CommandProcessingException;
 import com.springrts.springls.commands.SupportedCommand;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -53,9 +54,11 @@ public class KillAllCommandProcessor extends AbstractCommandProcessor {
 		}
 
 		Clients clients = getContext().getClients();
-		while (clients.getClientsSize() > 0) {
-			clients.killClient(clients.getClient(0), reason);
+		List<Client> toKill = new ArrayList<Client>(clients.getClientsSize());
+		for (int c = 0; c < clients.getClientsSize(); c++) {
+			toKill.add(clients.getClient(c));
 		}
+		clients.killClients(toKill, reason);
 
 		return true;
 	}
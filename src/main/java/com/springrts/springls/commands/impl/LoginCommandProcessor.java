@@ -21,36 +21,51 @@ package com.springrts.springls.commands.impl;
 import com.springrts.springls.Account;
 import com.springrts.springls.bans.BanEntry;
 import com.springrts.springls.Client;
+import com.springrts.springls.Context;
 import com.springrts.springls.FailedLoginAttempt;
 import com.springrts.springls.ServerConfiguration;
+import com.springrts.springls.Updateable;
 import com.springrts.springls.util.Misc;
 import com.springrts.springls.ServerNotification;
+import com.springrts.springls.accounts.AccountsService;
 import com.springrts.springls.agreement.Agreement;
 import com.springrts.springls.bans.BanService;
-import com.springrts.springls.commands.AbstractCommandProcessor;
+import com.springrts.springls.commands.AbstractAsyncCommandProcessor;
 import com.springrts.springls.commands.CommandProcessingException;
 import com.springrts.springls.commands.InvalidNumberOfArgumentsCommandProcessingException;
 import com.springrts.springls.commands.SupportedCommand;
 import com.springrts.springls.motd.MessageOfTheDay;
 import com.springrts.springls.util.ProtocolUtil;
 import java.net.InetAddress;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Queue;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Used to login to the lobby.
+ * Looking up the account and bans is done on an other thread if possible,
+ * while the login itself is completed on the main thread.
+ * Logins are started at a limited rate; the ones exceeding it wait in the
+ * login queue. Clients with the compatibility flag 'lq' are told their
+ * position in it with <code>LOGINQUEUED position</code>, sent right away and
+ * whenever it changed, every few seconds; the others just wait.
+ * If the queue is full, the login is denied.
+ * @see ServerConfiguration#LOGIN_RATE
+ * @see ServerConfiguration#LOGIN_QUEUE_SIZE
  * @author hoijui
  */
 @SupportedCommand("LOGIN")
-public class LoginCommandProcessor extends AbstractCommandProcessor {
-
+public class LoginCommandProcessor
+		extends AbstractAsyncCommandProcessor<LoginCommandProcessor.LoginRequest>
+		implements Updateable
+{
 	private static final Logger LOG
 			= LoggerFactory.getLogger(LoginCommandProcessor.class);
 
@@ -63,8 +78,13 @@ public class LoginCommandProcessor extends AbstractCommandProcessor {
 	 * for whether to purge them.
 	 */
 	private static final long PURGE_INTERVAL = 1000;
+	/**
+	 * In what interval (in milli-seconds) to tell the clients in the login
+	 * queue about their new positions.
+	 */
+	private static final long POSITION_NOTICE_INTERVAL = 5000;
 
-	private Timer failedLoginsPurger;
+	private long lastPurge;
 
 	/**
 	 * Here we store information on latest failed login attempts.
@@ -72,55 +92,104 @@ public class LoginCommandProcessor extends AbstractCommandProcessor {
 	 */
 	private List<FailedLoginAttempt> failedLoginAttempts;
 
+	/** Logins waiting to be started, in order. */
+	private final Queue<QueuedLogin> loginQueue;
+	/** How many logins may be started right now. */
+	private double startAllowance;
+	private long lastAllowanceUpdate;
+	private long lastPositionNotice;
+
 	public LoginCommandProcessor() {
 		super(5, ARGS_MAX_NOCHECK);
 
-		// TODO cleanup nicely at server shutdown?
-		failedLoginsPurger = new Timer("Failed Login Purger");
-		failedLoginsPurger.schedule(new PurgeFailedLogins(), PURGE_INTERVAL,
-				PURGE_INTERVAL);
+		lastPurge = 0;
 		failedLoginAttempts = new ArrayList<FailedLoginAttempt>();
+		loginQueue = new ArrayDeque<QueuedLogin>();
+		startAllowance = 0.0;
+		lastAllowanceUpdate = 0;
+		lastPositionNotice = 0;
+	}
+
+	/**
+	 * Also registers this as an updateable, to serve the login queue.
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void receiveContext(Context context) {
+
+		super.receiveContext(context);
+		getBundleContext().registerService(Updateable.class.getName(), this,
+				null);
 	}
 
 	@Override
 	public boolean process(Client client, List<String> args)
 			throws CommandProcessingException
 	{
-		boolean checksOk = false;
+		boolean checksOk;
 		try {
 			checksOk = super.process(client, args);
 		} catch (InvalidNumberOfArgumentsCommandProcessingException ex) {
 			client.sendLine("DENIED Bad command arguments");
 			throw ex;
 		}
-		if (!checksOk) {
-			return false;
-		}
+		return checksOk;
+	}
 
+	@Override
+	protected Callable<LoginRequest> prepare(Client client, List<String> args)
+	{
 		if (client.getAccount().getAccess() != Account.Access.NONE) {
 			client.sendLine("DENIED Already logged in");
-			return false; // user with accessLevel > 0 can not re-login
+			return null; // user with accessLevel > 0 can not re-login
 		}
 
-		String username = args.get(0);
+		String args2str = Misc.makeSentence(args, 4);
 
-		if (!getContext().getServer().isLoginEnabled()
-				&& getContext().getAccountsService().getAccount(username)
-				.getAccess().isLessThen(Account.Access.PRIVILEGED))
-		{
-			client.sendLine("DENIED Sorry, logging in is currently disabled");
-			return false;
+		List<String> args2 =  Arrays.asList(args2str.split("\t"));
+
+		final LoginRequest request = parseRequest(client, args, args2);
+		if (request == null) {
+			return null;
 		}
 
-		String args2str = Misc.makeSentence(args, 4);
+		// FIXME here and in other places: use a method like AccountService.isPersistent()
+		if (getConfiguration().getBoolean(ServerConfiguration.LAN_MODE)) {
+			// there is nothing to look up
+			return new Callable<LoginRequest>() {
+				@Override
+				public LoginRequest call() {
+					return request;
+				}
+			};
+		}
 
-		List<String> args2 =  Arrays.asList(args2str.split("\t"));
+		// "normal", non-LAN mode
+		if (isBlockedFromLogin(client, request.username)) {
+			return null;
+		}
 
-		return processInner(client, args, args2);
+		final AccountsService accountsService
+				= getContext().getAccountsService();
+		final BanService banService = getContext().getService(BanService.class);
+		final InetAddress ip = client.getIp();
+		return new Callable<LoginRequest>() {
+			@Override
+			public LoginRequest call() {
+
+				request.account = accountsService.verifyLogin(
+						request.username, request.password);
+				if ((request.account != null) && (banService != null)) {
+					request.ban = banService.getBanEntry(request.username, ip,
+							request.userId);
+				}
+				return request;
+			}
+		};
 	}
 
-	private boolean processInner(Client client, List<String> args1,
-			List<String> args2) throws CommandProcessingException
+	private LoginRequest parseRequest(Client client, List<String> args1,
+			List<String> args2)
 	{
 		String username = args1.get(0);
 		String lobbyVersion = args2.get(0);
@@ -169,7 +238,7 @@ public class LoginCommandProcessor extends AbstractCommandProcessor {
 			cpu = Integer.parseInt(args1.get(2));
 		} catch (NumberFormatException ex) {
 			client.sendLine("DENIED <cpu> field should be an integer");
-			return false;
+			return null;
 		}
 
 		String localIpStr = args1.get(3);
@@ -181,23 +250,179 @@ public class LoginCommandProcessor extends AbstractCommandProcessor {
 			localIp = Misc.parseIp(localIpStr);
 			if (localIp == null) {
 				client.sendLine("SERVERMSG Invalid IP address: " + localIpStr);
-				return false;
+				return null;
 			}
 		}
 
-		return doLogin(client, lobbyVersion, userId, username, password, cpu,
+		return new LoginRequest(lobbyVersion, userId, username, password, cpu,
 				localIp);
 	}
 
-	private boolean doLogin(Client client, String lobbyVersion, int userId,
-			String username, String password, int cpu, InetAddress localIp)
+	/**
+	 * Starts the login right away if the login rate allows it,
+	 * or queues it otherwise.
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean execute(Client client, List<String> args,
+			Callable<LoginRequest> work)
+	{
+		if (loginQueue.isEmpty() && tryStartLogin()) {
+			return super.execute(client, args, work);
+		}
+
+		int queueSize = getConfiguration().getInt(
+				ServerConfiguration.LOGIN_QUEUE_SIZE);
+		if (loginQueue.size() >= queueSize) {
+			client.sendLine("DENIED Too many clients are logging in right now."
+					+ " Please try again later.");
+			return false;
+		}
+
+		QueuedLogin queued = new QueuedLogin(client, args, work,
+				client.getSendMsgId());
+		loginQueue.add(queued);
+		// further commands of the client have to wait for the login
+		client.setCommandProcessingSuspended(true);
+		queued.position = loginQueue.size();
+		if (client.hasCompatFlag("lq")) {
+			client.sendLine("LOGINQUEUED " + queued.position);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks whether an other login may be started now,
+	 * and accounts for it if so.
+	 */
+	private boolean tryStartLogin() {
+
+		int rate = getConfiguration().getInt(ServerConfiguration.LOGIN_RATE);
+		if (rate <= 0) {
+			return true;
+		}
+
+		long now = System.currentTimeMillis();
+		startAllowance = Math.min(rate,
+				startAllowance + ((now - lastAllowanceUpdate) * rate / 1000.0));
+		lastAllowanceUpdate = now;
+		if (startAllowance < 1.0) {
+			return false;
+		}
+		startAllowance -= 1.0;
+		return true;
+	}
+
+	/**
+	 * Purges the failed login attempts, starts queued logins and tells the
+	 * queued clients their positions.
+	 */
+	@Override
+	public void update() {
+
+		long now = System.currentTimeMillis();
+		if ((now - lastPurge) >= PURGE_INTERVAL) {
+			purgeFailedLoginAttempts(now);
+			lastPurge = now;
+		}
+
+		startQueuedLogins();
+
+		if (!loginQueue.isEmpty()
+				&& ((now - lastPositionNotice) >= POSITION_NOTICE_INTERVAL))
+		{
+			sendQueuePositions();
+			lastPositionNotice = now;
+		}
+	}
+
+	private void startQueuedLogins() {
+
+		QueuedLogin next;
+		while ((next = loginQueue.peek()) != null) {
+			if (next.client.isAlive()) {
+				if (!tryStartLogin()) {
+					break;
+				}
+				loginQueue.poll();
+				startQueuedLogin(next);
+			} else {
+				// the client disconnected while waiting
+				loginQueue.poll();
+			}
+		}
+	}
+
+	private void startQueuedLogin(QueuedLogin queued) {
+
+		Client client = queued.client;
+		client.setCommandProcessingSuspended(false);
+		client.setSendMsgId(queued.msgId);
+		try {
+			super.execute(client, queued.args, queued.work);
+		} catch (RuntimeException ex) {
+			LOG.error("Failed to process a queued login", ex);
+		} finally {
+			client.setSendMsgId(Client.NO_MSG_ID);
+		}
+
+		if (!client.isCommandProcessingSuspended()) {
+			// the login was completed right away
+			getContext().getServerThread().serveReceivedLines(client);
+		}
+	}
+
+	private void sendQueuePositions() {
+
+		int position = 0;
+		for (QueuedLogin queued : loginQueue) {
+			if (!queued.client.isAlive()) {
+				continue;
+			}
+			position++;
+			if ((position != queued.position)
+					&& queued.client.hasCompatFlag("lq"))
+			{
+				queued.position = position;
+				queued.client.setSendMsgId(queued.msgId);
+				queued.client.sendLine("LOGINQUEUED " + position);
+				queued.client.setSendMsgId(Client.NO_MSG_ID);
+			}
+		}
+	}
+
+	@Override
+	protected boolean complete(Client client, List<String> args,
+			LoginRequest request)
 	{
-		boolean validAccount = validateAccount(client, userId, username,
-				password);
+		boolean validAccount;
+		if (getConfiguration().getBoolean(ServerConfiguration.LAN_MODE)) {
+			validAccount = validateLanAccount(client, request.username,
+					request.password);
+		} else {
+			validAccount = validateAccount(client, request);
+		}
 		if (!validAccount) {
 			return false;
 		}
 
+		return doLogin(client, request.lobbyVersion, request.userId,
+				request.cpu, request.localIp);
+	}
+
+	@Override
+	protected void failed(Client client, List<String> args,
+			Exception failure)
+	{
+		super.failed(client, args, failure);
+		client.sendLine("DENIED Failed to verify the login."
+				+ " Please try again later.");
+	}
+
+	private boolean doLogin(Client client, String lobbyVersion, int userId,
+			int cpu, InetAddress localIp)
+	{
 		// set client's status:
 		client.setCpu(cpu);
 		client.getAccount().setLastLogin(System.currentTimeMillis());
@@ -222,9 +447,22 @@ public class LoginCommandProcessor extends AbstractCommandProcessor {
 		if (messageOfTheDay != null) {
 			messageOfTheDay.sendTo(client);
 		}
-		getContext().getClients().sendListOfAllUsersToClient(client);
-		getContext().getBattles().sendInfoOnBattlesToClient(client);
-		getContext().getClients().sendInfoOnStatusesToClient(client);
+		getContext().getClients().addPresenceListener(client);
+		if (client.isPresenceInterestsOnly()) {
+			// such clients get to know other users through WATCHUSERS
+			getContext().getClients().sendAddUserToClient(client, client);
+		} else {
+			getContext().getClients().sendListOfAllUsersToClient(client);
+		}
+		getContext().getBattles().addListener(client);
+		// clients with these flags fetch the battles they are interested in
+		// through QUERYBATTLES or SUBSCRIBEBATTLE
+		if (client.isAllBattlesListener()) {
+			getContext().getBattles().sendInfoOnBattlesToClient(client);
+		}
+		if (!client.isPresenceInterestsOnly()) {
+			getContext().getClients().sendInfoOnStatusesToClient(client);
+		}
 		// notify the new client that we have finished sending login info
 		client.sendLine("LOGININFOEND");
 
@@ -237,121 +475,147 @@ public class LoginCommandProcessor extends AbstractCommandProcessor {
 		return true;
 	}
 
-	private boolean validateAccount(Client client, int userId, String username,
-			String password)
-	{
-		// FIXME here and in other places: use a method like AccountService.isPersistent()
-		if (!getConfiguration().getBoolean(ServerConfiguration.LAN_MODE)) {
-			// "normal", non-LAN mode
-			// protection from brute-forcing the account:
-			FailedLoginAttempt attempt = findFailedLoginAttempt(username);
-			if ((attempt != null) && (attempt.getFailedAttempts() >= 3)) {
-				client.sendLine("DENIED Too many failed login attempts. Wait"
-						+ " for 30 seconds before trying again!");
-				recordFailedLoginAttempt(username);
-				if (!attempt.isLogged()) {
-					attempt.setLogged(true);
-					getContext().getClients().sendToAllAdministrators(
-							String.format("SERVERMSG [broadcast to all admins]:"
-							+ " Too many failed login attempts for <%s> from"
-							+ " %s. Blocking the user for 30 seconds."
-							+ " There will be no further notifications.",
-							username, client.getIp().getHostAddress()));
-					// add server notification:
-					ServerNotification sn = new ServerNotification(
-							"Excessive failed login attempts");
-					sn.addLine(String.format(
-							"Too many failed login attempts for <%s> from %s."
-							+ " Blocking for 30 seconds.",
-							username, client.getIp().getHostAddress()));
-					getContext().getServerNotifications().addNotification(sn);
-				}
-				return false;
-			}
+	/**
+	 * Checks whether the user is blocked from logging in,
+	 * because of too many failed login attempts.
+	 */
+	private boolean isBlockedFromLogin(Client client, String username) {
 
-			Account acc = getContext().getAccountsService().verifyLogin(
-					username, password);
-			if (acc == null) {
-				client.sendLine("DENIED Bad username/password");
-				recordFailedLoginAttempt(username);
-				return false;
+		// protection from brute-forcing the account:
+		FailedLoginAttempt attempt = findFailedLoginAttempt(username);
+		if ((attempt != null) && (attempt.getFailedAttempts() >= 3)) {
+			client.sendLine("DENIED Too many failed login attempts. Wait"
+					+ " for 30 seconds before trying again!");
+			recordFailedLoginAttempt(username);
+			if (!attempt.isLogged()) {
+				attempt.setLogged(true);
+				getContext().getClients().sendToAllAdministrators(
+						String.format("SERVERMSG [broadcast to all admins]:"
+						+ " Too many failed login attempts for <%s> from"
+						+ " %s. Blocking the user for 30 seconds."
+						+ " There will be no further notifications.",
+						username, client.getIp().getHostAddress()));
+				// add server notification:
+				ServerNotification sn = new ServerNotification(
+						"Excessive failed login attempts");
+				sn.addLine(String.format(
+						"Too many failed login attempts for <%s> from %s."
+						+ " Blocking for 30 seconds.",
+						username, client.getIp().getHostAddress()));
+				getContext().getServerNotifications().addNotification(sn);
 			}
-			if (getContext().getClients().isUserLoggedIn(acc)) {
-				client.sendLine("DENIED Already logged in");
+			return true;
+		}
+
+		return false;
+	}
+
+	private boolean isLoginDisabledFor(Account.Access access) {
+		return !getContext().getServer().isLoginEnabled()
+				&& access.isLessThen(Account.Access.PRIVILEGED);
+	}
+
+	private boolean validateAccount(Client client, LoginRequest request) {
+
+		String username = request.username;
+		// failed attempts may have been recorded while this one was
+		// verified or queued
+		if (isBlockedFromLogin(client, username)) {
+			return false;
+		}
+		Account acc = request.account;
+		if (isLoginDisabledFor((acc == null)
+				? Account.Access.NONE : acc.getAccess()))
+		{
+			client.sendLine("DENIED Sorry, logging in is currently disabled");
+			return false;
+		}
+		if (acc == null) {
+			client.sendLine("DENIED Bad username/password");
+			recordFailedLoginAttempt(username);
+			return false;
+		}
+		if (getContext().getClients().isUserLoggedIn(acc)) {
+			client.sendLine("DENIED Already logged in");
+			return false;
+		}
+		BanEntry ban = request.ban;
+		if ((ban != null) && ban.isActive()) {
+			client.sendLine(String.format(
+					"DENIED You are banned from this server!"
+					+ " (Reason: %s)."
+					+ " Please contact a server administrator.",
+					ban.getPublicReason()));
+			recordFailedLoginAttempt(username);
+			return false;
+		}
+		if (!acc.isAgreementAccepted()
+				&& !client.getAccount().isAgreementAccepted())
+		{
+			Agreement agreement = getContext().getService(Agreement.class);
+			if (agreement != null) {
+				agreement.sendToClient(client);
 				return false;
 			}
-			BanService banService = getContext().getService(BanService.class);
-			if (banService != null) {
-				BanEntry ban = banService.getBanEntry(username, client.getIp(),
-						userId);
-				if ((ban != null) && ban.isActive()) {
-					client.sendLine(String.format(
-							"DENIED You are banned from this server!"
-							+ " (Reason: %s)."
-							+ " Please contact a server administrator.",
-							ban.getPublicReason()));
-					recordFailedLoginAttempt(username);
-					return false;
-				}
-			}
-			if (!acc.isAgreementAccepted()
-					&& !client.getAccount().isAgreementAccepted())
-			{
-				Agreement agreement = getContext().getService(Agreement.class);
-				if (agreement != null) {
-					agreement.sendToClient(client);
-					return false;
-				}
-			}
-			// everything is OK so far!
-			if (!acc.isAgreementAccepted()) {
-				// the user has obviously accepted the agreement -> update
-				acc.setAgreementAccepted(true);
-				final boolean mergeOk = getContext().getAccountsService()
-						.mergeAccountChanges(acc, acc.getName());
-				if (!mergeOk) {
-					acc.setAgreementAccepted(false);
-					client.sendLine("DENIED Failed saving 'agreement accepted'"
-							+ " to persistent storage.");
-					return false;
-				}
-				getContext().getAccountsService().saveAccounts(false);
-			}
-			if (acc.getLastLogin() + 5000 > System.currentTimeMillis()) {
-				client.sendLine("DENIED This account has already connected in"
-						+ " the last 5 seconds");
+		}
+		// everything is OK so far!
+		if (!acc.isAgreementAccepted()) {
+			// the user has obviously accepted the agreement -> update
+			acc.setAgreementAccepted(true);
+			final boolean mergeOk = getContext().getAccountsService()
+					.mergeAccountChanges(acc, acc.getName());
+			if (!mergeOk) {
+				acc.setAgreementAccepted(false);
+				client.sendLine("DENIED Failed saving 'agreement accepted'"
+						+ " to persistent storage.");
 				return false;
 			}
-			client.setAccount(acc);
-		} else { // LAN mode
-			if (username.isEmpty()) {
-				client.sendLine("DENIED Can not login with null/empty username"
-						);
-			}
-			Account acc = getContext().getAccountsService().getAccount(username
+			getContext().getAccountsService().saveAccounts(false);
+		}
+		if (acc.getLastLogin() + 5000 > System.currentTimeMillis()) {
+			client.sendLine("DENIED This account has already connected in"
+					+ " the last 5 seconds");
+			return false;
+		}
+		client.setAccount(acc);
+
+		return true;
+	}
+
+	private boolean validateLanAccount(Client client, String username,
+			String password)
+	{
+		if (username.isEmpty()) {
+			client.sendLine("DENIED Can not login with null/empty username"
 					);
-			if (acc != null) {
-				client.sendLine("DENIED Player with same name already logged in"
-						);
-				return false;
-			}
-			Account.Access accessLvl = Account.Access.NORMAL;
-			String adminUsername = getConfiguration().getString(
-					ServerConfiguration.LAN_ADMIN_USERNAME);
-			if (username.equals(adminUsername)) {
-				String adminPassword = getConfiguration().getString(
-						ServerConfiguration.LAN_ADMIN_PASSWORD);
-				String adminPasswordEncoded =
-						ProtocolUtil.encodePassword(adminPassword);
-				if (password.equals(adminPasswordEncoded)) {
-					accessLvl = Account.Access.ADMIN;
-				}
+		}
+		Account acc = getContext().getAccountsService().getAccount(username
+				);
+		if (acc != null) {
+			client.sendLine("DENIED Player with same name already logged in"
+					);
+			return false;
+		}
+		Account.Access accessLvl = Account.Access.NORMAL;
+		String adminUsername = getConfiguration().getString(
+				ServerConfiguration.LAN_ADMIN_USERNAME);
+		if (username.equals(adminUsername)) {
+			String adminPassword = getConfiguration().getString(
+					ServerConfiguration.LAN_ADMIN_PASSWORD);
+			String adminPasswordEncoded =
+					ProtocolUtil.encodePassword(adminPassword);
+			if (password.equals(adminPasswordEncoded)) {
+				accessLvl = Account.Access.ADMIN;
 			}
-			acc = new Account(username, password);
-			acc.setAccess(accessLvl);
-			getContext().getAccountsService().addAccount(acc);
-			client.setAccount(acc);
 		}
+		if (isLoginDisabledFor(accessLvl)) {
+			client.sendLine("DENIED Sorry, logging in is currently disabled");
+			return false;
+		}
+		acc = new Account(username, password);
+		acc.setAccess(accessLvl);
+		getContext().getAccountsService().addAccount(acc);
+		client.setAccount(acc);
 
 		return true;
 	}
@@ -377,23 +641,71 @@ public class LoginCommandProcessor extends AbstractCommandProcessor {
 		return null;
 	}
 
-	private class PurgeFailedLogins extends TimerTask {
-
-		@Override
-		public void run() {
-
-			// purge list of failed login attempts
-			ListIterator<FailedLoginAttempt> attemptIterator
-					= failedLoginAttempts.listIterator();
-			while (attemptIterator.hasNext()) {
-				FailedLoginAttempt attempt = attemptIterator.next();
-				if ((System.currentTimeMillis()
-						- attempt.getTimeOfLastFailedAttempt())
-						> KEEP_FAILED_LOGIN_ATTEMPT_TIME)
-				{
-					attemptIterator.remove();
-				}
+	private void purgeFailedLoginAttempts(long now) {
+
+		// purge list of failed login attempts
+		ListIterator<FailedLoginAttempt> attemptIterator
+				= failedLoginAttempts.listIterator();
+		while (attemptIterator.hasNext()) {
+			FailedLoginAttempt attempt = attemptIterator.next();
+			if ((now - attempt.getTimeOfLastFailedAttempt())
+					> KEEP_FAILED_LOGIN_ATTEMPT_TIME)
+			{
+				attemptIterator.remove();
 			}
 		}
 	}
+
+	/**
+	 * A parsed login command, and what was looked up for it.
+	 */
+	static final class LoginRequest {
+
+		private final String lobbyVersion;
+		private final int userId;
+		private final String username;
+		private final String password;
+		private final int cpu;
+		private final InetAddress localIp;
+		/** The account fitting the credentials, if any. */
+		private Account account;
+		private BanEntry ban;
+
+		LoginRequest(String lobbyVersion, int userId, String username,
+				String password, int cpu, InetAddress localIp)
+		{
+			this.lobbyVersion = lobbyVersion;
+			this.userId = userId;
+			this.username = username;
+			this.password = password;
+			this.cpu = cpu;
+			this.localIp = localIp;
+			this.account = null;
+			this.ban = null;
+		}
+	}
+
+	/**
+	 * A login waiting in the login queue.
+	 */
+	private static final class QueuedLogin {
+
+		private final Client client;
+		private final List<String> args;
+		private final Callable<LoginRequest> work;
+		/** The message ID of the login command. */
+		private final int msgId;
+		/** The position last told to the client. */
+		private int position;
+
+		QueuedLogin(Client client, List<String> args,
+				Callable<LoginRequest> work, int msgId)
+		{
+			this.client = client;
+			this.args = args;
+			this.work = work;
+			this.msgId = msgId;
+			this.position = 0;
+		}
+	}
 }
@@ -21,6 +21,7 @@ package com.springrts.springls.commands.impl;
 import com.springrts.springls.Account;
 import com.springrts.springls.Channel;
 import com.springrts.springls.Client;
+import com.springrts.springls.MuteList;
 import com.springrts.springls.commands.AbstractCommandProcessor;
 import com.springrts.springls.commands.CommandProcessingException;
 import com.springrts.springls.commands.InvalidNumberOfArgumentsCommandProcessingException;
@@ -64,17 +65,20 @@ public class MuteListCommandProcessor extends AbstractCommandProcessor {
 
 		client.sendLine(String.format("MUTELISTBEGIN %s", chan.getName()));
 
-		int size = chan.getMuteList().size(); // we mustn't call muteList.size() in for loop since it will purge expired records each time and so we could have ArrayOutOfBounds exception
-		for (int i = 0; i < size; i++) {
-			if (chan.getMuteList().getRemainingSeconds(i) == 0) {
+		for (MuteList.MuteEntry mute : chan.getMuteList().getEntries()) {
+			if (mute.isExpired()) {
+				// will be purged by the end of this server loop iteration
+				continue;
+			}
+			if (mute.isPersistent()) {
 				client.sendLine(String.format(
 						"MUTELIST %s, indefinite time remaining",
-						chan.getMuteList().getUsername(i)));
+						mute.getUsername()));
 			} else {
 				client.sendLine(String.format(
 						"MUTELIST %s, %d seconds remaining",
-						chan.getMuteList().getUsername(i),
-						chan.getMuteList().getRemainingSeconds(i)));
+						mute.getUsername(),
+						mute.getRemainingSeconds()));
 			}
 		}
 
@@ -95,7 +95,7 @@ public class MyBattleStatusCommandProcessor extends AbstractCommandProcessor {
 			int newBattleStatus, Color newTeamColor)
 	{
 		int oldHandicap = client.getHandicap();
-		client.setBattleStatus(newBattleStatus);
+		battle.setBattleStatus(client, newBattleStatus);
 		// Note: We ignore the handicap value, as it can be changed only by the
 		// founder with the HANDICAP command!
 		client.setHandicap(oldHandicap);
@@ -103,15 +103,16 @@ public class MyBattleStatusCommandProcessor extends AbstractCommandProcessor {
 
 		// if game is full or game type is "battle replay", force player's mode
 		// to spectator:
-		if (((battle.getClientsSize() + 1 - battle.spectatorCount())
-				> battle.getMaxPlayers()) || (battle.getType() == 1))
+		if ((battle.nonSpectatorCount() > battle.getMaxPlayers())
+				|| (battle.getType() == 1))
 		{
-			client.setSpectator(true);
+			battle.setSpectator(client, true);
 		}
 		// if player has chosen a team number which is already used by some
 		// other player/bot, force his ally number and team color to be the same
 		// as the one of that player/bot:
-		battle.applyToTeamControllers(new AllyTeamAndColorAligner(client));
+		battle.applyToTeamControllers(new AllyTeamAndColorAligner(
+				client.getBattleState()));
 
 		battle.notifyClientsOfBattleStatus(client);
 
@@ -64,13 +64,19 @@ public class MyStatusCommandProcessor extends AbstractCommandProcessor {
 		}
 
 		boolean oldInGame = client.isInGame();
+		Battle battle = getBattle(client);
+		boolean battleWasActive = (battle != null) && battle.isActive();
 
 		client.setStatus(newStatus, false);
 
+		if (battle != null) {
+			getContext().getBattles().battleActivityChanged(battle,
+					battleWasActive);
+		}
+
 		if (client.isInGame() != oldInGame) {
 			// user changed his in-game status.
 			if (!oldInGame) { // client just entered game
-				Battle battle = getBattle(client);
 				if ((battle != null) && (battle.getClientsSize() > 0)) {
 					client.setInGameTime(System.currentTimeMillis());
 				} else {
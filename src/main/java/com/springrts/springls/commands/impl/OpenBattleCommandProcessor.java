@@ -21,7 +21,6 @@ package com.springrts.springls.commands.impl;
 import com.springrts.springls.Account;
 import com.springrts.springls.Battle;
 import com.springrts.springls.Client;
-import com.springrts.springls.Clients;
 import com.springrts.springls.commands.AbstractCommandProcessor;
 import com.springrts.springls.commands.CommandProcessingException;
 import com.springrts.springls.commands.SupportedCommand;
@@ -51,6 +50,8 @@ public class OpenBattleCommandProcessor extends AbstractCommandProcessor {
 					);
 			return false;
 		}
+		// reset before creating the battle, so it counts the founder correctly
+		client.setDefaultBattleStatus();
 		Battle battle = getContext().getBattles().createBattleFromString(args,
 				client);
 		if (battle == null) {
@@ -59,17 +60,15 @@ public class OpenBattleCommandProcessor extends AbstractCommandProcessor {
 			return false;
 		}
 		getContext().getBattles().addBattle(battle);
-		client.setDefaultBattleStatus();
 		client.setBattleID(battle.getId());
 		client.setRequestedBattleID(Battle.NO_BATTLE_ID);
+		// keep the founder informed about its own battle
+		getContext().getBattles().subscribe(client, battle);
 
 		boolean local;
-		Clients clients = getContext().getClients();
-		for (int i = 0; i < clients.getClientsSize(); i++) {
-			Client c = clients.getClient(i);
-			if (c.getAccount().getAccess().isLessThen(Account.Access.NORMAL)) {
-				continue;
-			}
+		for (Client c
+				: getContext().getBattles().getInterestedClients(battle))
+		{
 			// make sure that the clients behind NAT get local IPs and not
 			// external ones:
 			local = client.getIp().equals(c.getIp());
@@ -0,0 +1,53 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.springrts.springls.commands.impl;
+
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps track of the account names which are about to be taken by a
+ * registration or a renaming that is still being processed asynchronously.
+ * This prevents two such commands from claiming the same name, as both would
+ * find it to be free in the accounts service.
+ * This must only be used on the main thread.
+ * @author hoijui
+ */
+final class PendingAccountNames {
+
+	/** Lower case names */
+	private static final Set<String> NAMES = new HashSet<String>();
+
+	private PendingAccountNames() {}
+
+	/**
+	 * Reserves a name, ignoring case.
+	 * @return false if the name is already reserved
+	 */
+	static boolean reserve(String name) {
+		return NAMES.add(name.toLowerCase());
+	}
+
+	/**
+	 * Releases a name previously reserved with {@link #reserve(String)}.
+	 */
+	static void release(String name) {
+		NAMES.remove(name.toLowerCase());
+	}
+}
@@ -0,0 +1,175 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.springrts.springls.commands.impl;
+
+
+import com.springrts.springls.Account;
+import com.springrts.springls.Battle;
+import com.springrts.springls.BattleQuery;
+import com.springrts.springls.Client;
+import com.springrts.springls.commands.AbstractCommandProcessor;
+import com.springrts.springls.commands.CommandProcessingException;
+import com.springrts.springls.commands.SupportedCommand;
+import com.springrts.springls.util.Misc;
+import com.springrts.springls.util.ProtocolUtil;
+import java.util.List;
+
+/**
+ * Sent by client to fetch only the battles it is interested in,
+ * instead of keeping track of all of them.
+ * The optional criteria are separated by TABs, each of the form
+ * <code>key=value</code>, with the keys being:
+ * <ul>
+ *   <li><code>mod</code> exact mod name</li>
+ *   <li><code>map</code> exact map name</li>
+ *   <li><code>founder</code> user name of the battle host</li>
+ *   <li><code>freeslots</code> minimum number of open player slots</li>
+ *   <li><code>locked</code> 0 or 1</li>
+ *   <li><code>passworded</code> 0 or 1</li>
+ *   <li><code>rank</code> only battles which may be joined with this rank</li>
+ *   <li><code>sort</code> one of id, players, freeslots, mod, map, founder
+ *     and title; prefix with '-' for descending order</li>
+ *   <li><code>offset</code> number of matching battles to skip</li>
+ *   <li><code>limit</code> maximum number of battles to send</li>
+ * </ul>
+ * The server answers with
+ * <code>QUERYBATTLESRESULT totalMatching offset count</code>,
+ * followed by the same commands as sent for each battle at login,
+ * and <code>QUERYBATTLESEND</code>, or with
+ * <code>QUERYBATTLESFAILED reason</code>.
+ * Clients which use this command instead of the full battle list, may login
+ * with the compatibility flag 'q', to not receive all battles at login.
+ * Such clients then only receive the events of the battles sent to them,
+ * and of the ones opened after they logged in.
+ * @author hoijui
+ */
+@SupportedCommand("QUERYBATTLES")
+public class QueryBattlesCommandProcessor extends AbstractCommandProcessor {
+
+	/** The number of battles sent if the client did not specify a limit. */
+	private static final int DEFAULT_LIMIT = 50;
+	/** The maximum number of battles sent in reply to a single query. */
+	private static final int MAX_LIMIT = 500;
+
+	public QueryBattlesCommandProcessor() {
+		super(0, ARGS_MAX_NOCHECK, Account.Access.NORMAL);
+	}
+
+	@Override
+	public boolean process(Client client, List<String> args)
+			throws CommandProcessingException
+	{
+		boolean checksOk = super.process(client, args);
+		if (!checksOk) {
+			return false;
+		}
+
+		BattleQuery query = new BattleQuery();
+		int offset = 0;
+		int limit = DEFAULT_LIMIT;
+
+		if (!args.isEmpty()) {
+			String[] criteria = Misc.makeSentence(args, 0).split("\t");
+			for (String criterion : criteria) {
+				int sepPos = criterion.indexOf('=');
+				if (sepPos <= 0) {
+					client.sendLine("QUERYBATTLESFAILED Invalid criterion: "
+							+ criterion);
+					return false;
+				}
+				String key = criterion.substring(0, sepPos).toLowerCase();
+				String value = criterion.substring(sepPos + 1);
+				try {
+					if (key.equals("mod")) {
+						query.setModName(value);
+					} else if (key.equals("map")) {
+						query.setMapName(value);
+					} else if (key.equals("founder")) {
+						query.setFounderName(value);
+					} else if (key.equals("freeslots")) {
+						query.setMinFreeSlots(Integer.valueOf(value));
+					} else if (key.equals("locked")) {
+						query.setLocked(ProtocolUtil.numberToBool(
+								Byte.parseByte(value)));
+					} else if (key.equals("passworded")) {
+						query.setPassworded(ProtocolUtil.numberToBool(
+								Byte.parseByte(value)));
+					} else if (key.equals("rank")) {
+						query.setRank(Integer.valueOf(value));
+					} else if (key.equals("sort")) {
+						boolean descending = value.startsWith("-");
+						String sortKeyName = descending
+								? value.substring(1) : value;
+						query.setSortKey(parseSortKey(sortKeyName));
+						query.setDescending(descending);
+					} else if (key.equals("offset")) {
+						offset = Integer.parseInt(value);
+					} else if (key.equals("limit")) {
+						limit = Integer.parseInt(value);
+					} else {
+						client.sendLine("QUERYBATTLESFAILED Unknown criterion: "
+								+ key);
+						return false;
+					}
+				} catch (IllegalArgumentException ex) {
+					// this also catches NumberFormatException
+					client.sendLine("QUERYBATTLESFAILED Invalid value for "
+							+ key + ": " + value);
+					return false;
+				}
+			}
+		}
+
+		if ((offset < 0) || (limit < 0)) {
+			client.sendLine("QUERYBATTLESFAILED Offset and limit may not be"
+					+ " negative");
+			return false;
+		}
+		limit = Math.min(limit, MAX_LIMIT);
+
+		List<Battle> matching = getContext().getBattles().queryBattles(query);
+		int fromIndex = Math.min(offset, matching.size());
+		int toIndex = Math.min(fromIndex + limit, matching.size());
+		List<Battle> page = matching.subList(fromIndex, toIndex);
+
+		client.beginFastWrite();
+		client.sendLine(String.format("QUERYBATTLESRESULT %d %d %d",
+				matching.size(), fromIndex, page.size()));
+		for (Battle battle : page) {
+			if (client.isBattleListQueried()
+					&& !client.isBattleSubscriptionsOnly())
+			{
+				// it receives the events of the battles it was sent
+				getContext().getBattles().subscribe(client, battle);
+			}
+			getContext().getBattles().sendInfoOnBattleToClient(battle, client);
+		}
+		client.sendLine("QUERYBATTLESEND");
+		client.endFastWrite();
+
+		return true;
+	}
+
+	private static BattleQuery.SortKey parseSortKey(String name) {
+
+		if (name.equalsIgnoreCase("freeslots")) {
+			return BattleQuery.SortKey.FREE_SLOTS;
+		}
+		return BattleQuery.SortKey.valueOf(name.toUpperCase());
+	}
+}
@@ -21,17 +21,21 @@ package com.springrts.springls.commands.impl;
 import com.springrts.springls.Account;
 import com.springrts.springls.Client;
 import com.springrts.springls.ServerConfiguration;
-import com.springrts.springls.commands.AbstractCommandProcessor;
+import com.springrts.springls.accounts.AccountsService;
+import com.springrts.springls.commands.AbstractAsyncCommandProcessor;
 import com.springrts.springls.commands.CommandProcessingException;
 import com.springrts.springls.commands.InvalidNumberOfArgumentsCommandProcessingException;
 import com.springrts.springls.commands.SupportedCommand;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * @author hoijui
  */
 @SupportedCommand("REGISTER")
-public class RegisterCommandProcessor extends AbstractCommandProcessor {
+public class RegisterCommandProcessor
+		extends AbstractAsyncCommandProcessor<Boolean>
+{
 
 	public RegisterCommandProcessor() {
 		super(2, 2, Account.Access.NONE);
@@ -48,21 +52,23 @@ public class RegisterCommandProcessor extends AbstractCommandProcessor {
 			client.sendLine("REGISTRATIONDENIED Bad command arguments");
 			throw ex;
 		}
-		if (!checksOk) {
-			return false;
-		}
+		return checksOk;
+	}
+
+	@Override
+	protected Callable<Boolean> prepare(Client client, List<String> args) {
 
 		if (!getContext().getAccountsService().isRegistrationEnabled()) {
 			client.sendLine("REGISTRATIONDENIED Sorry, account registration is"
 					+ " currently disabled");
-			return false;
+			return null;
 		}
 
 		if (client.getAccount().getAccess() != Account.Access.NONE) {
 			// only clients which are not logged-in can register
 			client.sendLine("REGISTRATIONDENIED You are already logged-in,"
 					+ " no need to register a new account");
-			return false;
+			return null;
 		}
 
 		if (getConfiguration().getBoolean(ServerConfiguration.LAN_MODE)) {
@@ -70,7 +76,7 @@ public class RegisterCommandProcessor extends AbstractCommandProcessor {
 			// userName
 			client.sendLine("REGISTRATIONDENIED Can not register in LAN-mode."
 					+ " Login with any username and password to proceed");
-			return false;
+			return null;
 		}
 
 		String username = args.get(0);
@@ -81,7 +87,7 @@ public class RegisterCommandProcessor extends AbstractCommandProcessor {
 		if (valid != null) {
 			client.sendLine(String.format(
 					"REGISTRATIONDENIED Invalid username (reason: %s)", valid));
-			return false;
+			return null;
 		}
 
 		// validate password:
@@ -89,20 +95,13 @@ public class RegisterCommandProcessor extends AbstractCommandProcessor {
 		if (valid != null) {
 			client.sendLine(String.format(
 					"REGISTRATIONDENIED Invalid password (reason: %s)", valid));
-			return false;
-		}
-		Account account = getContext().getAccountsService()
-				.findAccountNoCase(username);
-		if (account != null) {
-			client.sendLine("REGISTRATIONDENIED Account already exists");
-			return false;
+			return null;
 		}
-
 		// check for reserved names:
 		if (Account.RESERVED_NAMES.contains(username)) {
 			client.sendLine("REGISTRATIONDENIED Invalid account name - you are"
 					+ " trying to register a reserved account name");
-			return false;
+			return null;
 		}
 		/*if (!getContext().whiteList.contains(client.getIp())) {
 			if (registrationTimes.containsKey(client.ip)
@@ -125,12 +124,46 @@ public class RegisterCommandProcessor extends AbstractCommandProcessor {
 			} catch (UnknownHostException e) {
 			}
 		}*/
+
+		if (!PendingAccountNames.reserve(username)) {
+			client.sendLine("REGISTRATIONDENIED Account already exists");
+			return null;
+		}
+
+		final Account account = new Account(username, password,
+				client.getIp(), client.getCountry());
+		final AccountsService accountsService
+				= getContext().getAccountsService();
+
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				if (accountsService.findAccountNoCase(account.getName())
+						!= null)
+				{
+					return false;
+				}
+				accountsService.addAccount(account);
+				return true;
+			}
+		};
+	}
+
+	@Override
+	protected boolean complete(Client client, List<String> args,
+			Boolean added)
+	{
+		String username = args.get(0);
+		PendingAccountNames.release(username);
+
+		if (!added) {
+			client.sendLine("REGISTRATIONDENIED Account already exists");
+			return false;
+		}
+
 		getContext().getClients().sendToAllAdministrators(String.format(
 				"SERVERMSG New registration of <%s> at %s", username,
 				client.getIp().getHostAddress()));
-		account = new Account(username, password, client.getIp(),
-				client.getCountry());
-		getContext().getAccountsService().addAccount(account);
 
 		// let's save new accounts info to disk
 		getContext().getAccountsService().saveAccounts(false);
@@ -138,4 +171,14 @@ public class RegisterCommandProcessor extends AbstractCommandProcessor {
 		client.sendLine("REGISTRATIONACCEPTED");
 		return true;
 	}
+
+	@Override
+	protected void failed(Client client, List<String> args,
+			Exception failure)
+	{
+		super.failed(client, args, failure);
+		PendingAccountNames.release(args.get(0));
+		client.sendLine("REGISTRATIONDENIED Failed saving to persistent"
+				+ " storage");
+	}
 }
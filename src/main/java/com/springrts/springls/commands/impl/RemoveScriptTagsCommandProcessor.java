@@ -66,6 +66,7 @@ public class RemoveScriptTagsCommandProcessor extends AbstractCommandProcessor {
 			lowerKeyCommand.append(" ").append(lowerKey);
 			battle.getScriptTags().remove(lowerKey);
 		}
+		battle.scriptTagsChanged();
 
 		// relay the command
 		battle.sendToAllClients(lowerKeyCommand.toString());
@@ -73,6 +73,7 @@ public class RemoveStartRectCommandProcessor extends AbstractCommandProcessor {
 		}
 
 		startRect.setEnabled(false);
+		battle.startRectsChanged();
 
 		battle.sendToAllExceptFounder(String.format("REMOVESTARTRECT %d",
 				allyno));
@@ -23,18 +23,22 @@ import com.springrts.springls.Client;
 import com.springrts.springls.ServerConfiguration;
 import com.springrts.springls.util.Misc;
 import com.springrts.springls.ServerNotification;
-import com.springrts.springls.commands.AbstractCommandProcessor;
+import com.springrts.springls.accounts.AccountsService;
+import com.springrts.springls.commands.AbstractAsyncCommandProcessor;
 import com.springrts.springls.commands.CommandProcessingException;
 import com.springrts.springls.commands.InvalidNumberOfArgumentsCommandProcessingException;
 import com.springrts.springls.commands.SupportedCommand;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Allows a user to change his username.
  * @author hoijui
  */
 @SupportedCommand("RENAMEACCOUNT")
-public class RenameAccountCommandProcessor extends AbstractCommandProcessor {
+public class RenameAccountCommandProcessor
+		extends AbstractAsyncCommandProcessor<Boolean>
+{
 
 	public RenameAccountCommandProcessor() {
 		super(1, 1, Account.Access.NORMAL);
@@ -53,9 +57,11 @@ public class RenameAccountCommandProcessor extends AbstractCommandProcessor {
 					getCommandName()));
 			throw ex;
 		}
-		if (!checksOk) {
-			return false;
-		}
+		return checksOk;
+	}
+
+	@Override
+	protected Callable<Boolean> prepare(Client client, List<String> args) {
 
 		String newUsername = Misc.makeSentence(args, 0);
 
@@ -64,7 +70,7 @@ public class RenameAccountCommandProcessor extends AbstractCommandProcessor {
 					"SERVERMSG %s failed: You cannot rename your account while"
 					+ " the server is running in LAN mode, since you have no"
 					+ " persistent account!", getCommandName()));
-			return false;
+			return null;
 		}
 
 		// validate new user name
@@ -73,35 +79,74 @@ public class RenameAccountCommandProcessor extends AbstractCommandProcessor {
 			client.sendLine(String.format(
 					"SERVERMSG %s failed: Invalid username (reason: %s)",
 					getCommandName(), valid));
-			return false;
+			return null;
 		}
 
-		Account account = getContext().getAccountsService().findAccountNoCase(newUsername);
-		if ((account != null) && (account != client.getAccount())) {
-			client.sendLine(String.format(
-					"SERVERMSG %s failed: Account with same username already exists!",
-					getCommandName()));
-			return false;
+		if (!PendingAccountNames.reserve(newUsername)) {
+			sendAlreadyExists(client);
+			return null;
 		}
 
 		final String oldName = client.getAccount().getName();
+		final int accountId = client.getAccount().getId();
+		final Account accountNew = createRenamed(client, newUsername);
+		final AccountsService accountsService
+				= getContext().getAccountsService();
+
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				// null means that an other account uses the name already
+				Account account = accountsService.findAccountNoCase(
+						accountNew.getName());
+				if ((account != null) && (account.getId() != accountId)) {
+					return null;
+				}
+				return accountsService.mergeAccountChanges(accountNew,
+						oldName);
+			}
+		};
+	}
+
+	private static Account createRenamed(Client client, String newUsername) {
+
 		Account accountNew = client.getAccount().clone();
 		accountNew.setName(newUsername);
 		accountNew.setLastLogin(System.currentTimeMillis());
 		accountNew.setLastIp(client.getIp());
-		final boolean mergeOk = getContext().getAccountsService()
-				.mergeAccountChanges(accountNew, client.getAccount().getName());
-		if (mergeOk) {
-			client.setAccount(accountNew);
-		} else {
+		return accountNew;
+	}
+
+	private void sendAlreadyExists(Client client) {
+		client.sendLine(String.format(
+				"SERVERMSG %s failed: Account with same username already exists!",
+				getCommandName()));
+	}
+
+	@Override
+	protected boolean complete(Client client, List<String> args,
+			Boolean mergeOk)
+	{
+		String newUsername = Misc.makeSentence(args, 0);
+		PendingAccountNames.release(newUsername);
+
+		if (mergeOk == null) {
+			sendAlreadyExists(client);
+			return false;
+		}
+		if (!mergeOk) {
 			client.sendLine("SERVERMSG Your account renaming failed.");
 			return false;
 		}
 
+		final String oldName = client.getAccount().getName();
+		Account accountNew = createRenamed(client, newUsername);
+		client.setAccount(accountNew);
+
 		// make sure all mutes are accordingly adjusted to the new userName:
 		for (int i = 0; i < getContext().getChannels().getChannelsSize(); i++) {
 			getContext().getChannels().getChannel(i).getMuteList().rename(
-					client.getAccount().getName(), newUsername);
+					oldName, newUsername);
 		}
 
 		client.sendLine(String.format(
@@ -125,4 +170,13 @@ public class RenameAccountCommandProcessor extends AbstractCommandProcessor {
 
 		return true;
 	}
+
+	@Override
+	protected void failed(Client client, List<String> args,
+			Exception failure)
+	{
+		super.failed(client, args, failure);
+		PendingAccountNames.release(Misc.makeSentence(args, 0));
+		client.sendLine("SERVERMSG Your account renaming failed.");
+	}
 }
@@ -57,6 +57,8 @@ public class SayPrivateCommandProcessor extends AbstractSayCommandProcessor {
 
 		checkFlooding(client, message);
 
+		getContext().getClients().introduce(target, client);
+		getContext().getClients().introduce(client, target);
 		target.sendLine(String.format("SAIDPRIVATE %s %s",
 				client.getAccount().getName(), message));
 		// echo the command. See protocol description!
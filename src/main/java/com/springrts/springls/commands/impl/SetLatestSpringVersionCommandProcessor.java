@@ -58,6 +58,7 @@ public class SetLatestSpringVersionCommandProcessor extends AbstractCommandProce
 
 		getConfiguration().setProperty(ServerConfiguration.ENGINE_VERSION,
 				engineVersion);
+		getContext().getClients().welcomeMessageChanged();
 
 		client.sendLine("SERVERMSG Latest spring version has been set to "
 				+ engineVersion);
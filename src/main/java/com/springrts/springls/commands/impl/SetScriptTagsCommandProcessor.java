@@ -78,6 +78,7 @@ public class SetScriptTagsCommandProcessor extends AbstractCommandProcessor {
 		String scriptTagsClean = createScriptTagsString(scriptTags);
 
 		battle.getScriptTags().putAll(scriptTags);
+		battle.scriptTagsChanged();
 
 		// relay the valid pairs
 		if (scriptTagsClean.length() > 0) {
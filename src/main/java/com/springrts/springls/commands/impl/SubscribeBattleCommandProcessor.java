@@ -0,0 +1,82 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.springrts.springls.commands.impl;
+
+
+import com.springrts.springls.Account;
+import com.springrts.springls.Battle;
+import com.springrts.springls.Client;
+import com.springrts.springls.commands.AbstractCommandProcessor;
+import com.springrts.springls.commands.CommandProcessingException;
+import com.springrts.springls.commands.SupportedCommand;
+import java.util.List;
+
+/**
+ * Sent by a client which logged in with the compatibility flag 'bs' or 'q',
+ * to receive the detailed events of a battle (JOINEDBATTLE, LEFTBATTLE,
+ * UPDATEBATTLEINFO, BATTLECLOSED).
+ * The server replies with the current state of the battle, in the same format
+ * as the battle list sent at login, or with SUBSCRIBEBATTLEFAILED.
+ * Joining a battle subscribes to it implicitly.
+ * @author hoijui
+ */
+@SupportedCommand("SUBSCRIBEBATTLE")
+public class SubscribeBattleCommandProcessor extends AbstractCommandProcessor {
+
+	public SubscribeBattleCommandProcessor() {
+		super(1, 1, Account.Access.NORMAL);
+	}
+
+	@Override
+	public boolean process(Client client, List<String> args)
+			throws CommandProcessingException
+	{
+		boolean checksOk = super.process(client, args);
+		if (!checksOk) {
+			return false;
+		}
+
+		if (client.isAllBattlesListener()) {
+			client.sendLine("SUBSCRIBEBATTLEFAILED You receive the events of"
+					+ " all battles already");
+			return false;
+		}
+
+		int battleId;
+		try {
+			battleId = Integer.parseInt(args.get(0));
+		} catch (NumberFormatException ex) {
+			client.sendLine("SUBSCRIBEBATTLEFAILED Invalid battle ID!");
+			return false;
+		}
+
+		Battle battle = getContext().getBattles().getBattleByID(battleId);
+		if (battle == null) {
+			client.sendLine("SUBSCRIBEBATTLEFAILED Invalid battle ID!");
+			return false;
+		}
+
+		if (getContext().getBattles().subscribe(client, battle)) {
+			client.beginFastWrite();
+			getContext().getBattles().sendInfoOnBattleToClient(battle, client);
+			client.endFastWrite();
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,57 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.springrts.springls.commands.impl;
+
+
+import com.springrts.springls.Account;
+import com.springrts.springls.Client;
+import com.springrts.springls.commands.AbstractCommandProcessor;
+import com.springrts.springls.commands.CommandProcessingException;
+import com.springrts.springls.commands.SupportedCommand;
+import java.util.List;
+
+/**
+ * Sent by a client which no longer wants the presence changes of the given
+ * users, which it watched with WATCHUSERS.
+ * The server sends REMOVEUSER for each of them which is online, unless it
+ * shares a channel or a subscribed battle with the client.
+ * @author hoijui
+ */
+@SupportedCommand("UNWATCHUSERS")
+public class UnwatchUsersCommandProcessor extends AbstractCommandProcessor {
+
+	public UnwatchUsersCommandProcessor() {
+		super(1, ARGS_MAX_NOCHECK, Account.Access.NORMAL);
+	}
+
+	@Override
+	public boolean process(Client client, List<String> args)
+			throws CommandProcessingException
+	{
+		boolean checksOk = super.process(client, args);
+		if (!checksOk) {
+			return false;
+		}
+
+		for (String username : args) {
+			getContext().getClients().unwatch(client, username);
+		}
+
+		return true;
+	}
+}
@@ -72,13 +72,14 @@ public class UpdateBattleInfoCommandProcessor extends AbstractCommandProcessor {
 		battle.setMapName(mapName);
 		battle.setLocked(locked);
 		battle.setMapHash(maphash);
-		getContext().getClients().sendToAllRegisteredUsers(
+		getContext().getBattles().sendToInterestedClients(battle,
 				String.format("UPDATEBATTLEINFO %d %d %d %s %s",
 				battle.getId(),
 				spectatorCount,
 				ProtocolUtil.boolToNumber(battle.isLocked()),
 				maphash,
-				battle.getMapName()));
+				battle.getMapName()),
+				"UPDATEBATTLEINFO " + battle.getId());
 
 		return true;
 	}
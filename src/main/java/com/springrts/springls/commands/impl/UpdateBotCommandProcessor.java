@@ -85,6 +85,7 @@ public class UpdateBotCommandProcessor extends AbstractCommandProcessor {
 
 		bot.setBattleStatus(battleStatus);
 		bot.setTeamColor(teamColor);
+		battle.botsChanged();
 
 		// TODO force ally and color number if someone else is using his team
 		// number already
@@ -0,0 +1,78 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.springrts.springls.commands.impl;
+
+
+import com.springrts.springls.Account;
+import com.springrts.springls.Client;
+import com.springrts.springls.Clients;
+import com.springrts.springls.commands.AbstractCommandProcessor;
+import com.springrts.springls.commands.CommandProcessingException;
+import com.springrts.springls.commands.SupportedCommand;
+import java.util.List;
+
+/**
+ * Sent by a client which logged in with the compatibility flags 'pi' and
+ * 'bs', to receive the presence changes (ADDUSER, REMOVEUSER, CLIENTSTATUS)
+ * of the given users, for example its friends.
+ * For each newly watched user which is online and not known to the client
+ * yet, the server replies with ADDUSER and CLIENTSTATUS.
+ * Users sharing a channel with the client, or being in a battle it subscribed
+ * to, do not have to be watched explicitly; the server sends ADDUSER for
+ * them before anything else referring to them, and REMOVEUSER once the
+ * client is no longer interested in them.
+ * @author hoijui
+ */
+@SupportedCommand("WATCHUSERS")
+public class WatchUsersCommandProcessor extends AbstractCommandProcessor {
+
+	public WatchUsersCommandProcessor() {
+		super(1, ARGS_MAX_NOCHECK, Account.Access.NORMAL);
+	}
+
+	@Override
+	public boolean process(Client client, List<String> args)
+			throws CommandProcessingException
+	{
+		boolean checksOk = super.process(client, args);
+		if (!checksOk) {
+			return false;
+		}
+
+		if (!client.isPresenceInterestsOnly()) {
+			client.sendLine("WATCHUSERSFAILED You receive the presence changes"
+					+ " of all users already");
+			return false;
+		}
+
+		Clients clients = getContext().getClients();
+		client.beginFastWrite();
+		for (String username : args) {
+			if (!clients.watch(client, username)) {
+				continue;
+			}
+			Client user = clients.getClient(username);
+			if (user != null) {
+				clients.introduce(client, user);
+			}
+		}
+		client.endFastWrite();
+
+		return true;
+	}
+}
@@ -0,0 +1,61 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls.database;
+
+
+import com.springrts.springls.Context;
+import com.springrts.springls.ServerConfiguration;
+import org.apache.commons.configuration.Configuration;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+
+/**
+ * This class implements a simple bundle activator for the <tt>Database</tt>,
+ * which is shared by all services storing their data in the database.
+ */
+public class Activator implements BundleActivator {
+
+	/** The database registered by this bundle, if any. */
+	private Database database = null;
+
+	@Override
+	public void start(BundleContext context) {
+
+		Context springLsContext = Context.getService(context, Context.class);
+		Configuration conf = springLsContext.getService(Configuration.class);
+
+		if (!conf.getBoolean(ServerConfiguration.LAN_MODE)) {
+			database = new Database(conf);
+			context.registerService(Database.class.getName(), database, null);
+		}
+	}
+
+	/**
+	 * Closes the database, which also releases its pool of connections.
+	 */
+	@Override
+	public void stop(BundleContext context) {
+
+		if (database != null) {
+			database.close();
+			database = null;
+		}
+	}
+}
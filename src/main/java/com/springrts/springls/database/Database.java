@@ -0,0 +1,311 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls.database;
+
+
+import com.springrts.springls.ServerConfiguration;
+import java.io.InputStream;
+import java.net.URL;
+import java.sql.SQLException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.commons.configuration.Configuration;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gives access to the database, through one entity manager factory shared by
+ * all services using it.
+ * Unless disabled, or the libraries for it are missing, the connections are
+ * kept in a pool, which also caches prepared statements. The connection
+ * settings for the pool are taken from the persistence unit, and the pool
+ * then replaces the connection handling of the persistence provider.
+ * @see ServerConfiguration#DATABASE_POOL_SIZE
+ * @author hoijui
+ */
+public class Database {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Database.class);
+
+	/** The name of the persistence unit, as in META-INF/persistence.xml. */
+	public static final String PERSISTENCE_UNIT = "springls";
+	private static final String PERSISTENCE_XML = "META-INF/persistence.xml";
+
+	/** How long to wait for a free connection at most, in milli-seconds. */
+	private static final long MAX_WAIT = 10000L;
+	/** How often to check idle connections, in milli-seconds. */
+	private static final long IDLE_CHECK_INTERVAL = 1000L * 60L * 5L;
+	private static final String VALIDATION_QUERY = "SELECT 1";
+	/**
+	 * Required for pooling the connections, but optional at runtime,
+	 * like the other libraries for accessing the database.
+	 */
+	private static final String[] POOL_CLASSES = {
+		"org.apache.commons.dbcp.BasicDataSource",
+		"org.apache.commons.pool.impl.GenericObjectPool"
+	};
+
+	private static final String[] URL_PROPERTIES = {
+		"javax.persistence.jdbc.url",
+		"hibernate.connection.url",
+		"openjpa.ConnectionURL"
+	};
+	private static final String[] USERNAME_PROPERTIES = {
+		"javax.persistence.jdbc.user",
+		"hibernate.connection.username",
+		"openjpa.ConnectionUserName"
+	};
+	private static final String[] PASSWORD_PROPERTIES = {
+		"javax.persistence.jdbc.password",
+		"hibernate.connection.password",
+		"openjpa.ConnectionPassword"
+	};
+	private static final String[] DRIVER_PROPERTIES = {
+		"javax.persistence.jdbc.driver",
+		"hibernate.connection.driver_class",
+		"openjpa.ConnectionDriverName"
+	};
+
+	private final Configuration configuration;
+	/** Replace the properties of the persistence unit. */
+	private final Map<String, String> unitOverrides;
+	/** Created on first use. */
+	private EntityManagerFactory emf;
+	/** <code>null</code> if connections are not pooled by us. */
+	private PooledDataSource dataSource;
+
+
+	/**
+	 * @param unitOverrides replace properties of the persistence unit,
+	 *   for example the connection settings
+	 */
+	public Database(Configuration configuration,
+			Map<String, String> unitOverrides)
+	{
+		this.configuration = configuration;
+		this.unitOverrides = unitOverrides;
+		this.emf = null;
+		this.dataSource = null;
+	}
+
+	public Database(Configuration configuration) {
+		this(configuration, new HashMap<String, String>());
+	}
+
+
+	/**
+	 * Returns the entity manager factory shared by all users of the database,
+	 * creating it on the first call.
+	 * @throws PersistenceException if the database can not be accessed
+	 */
+	public synchronized EntityManagerFactory getEntityManagerFactory() {
+
+		if (emf == null) {
+			Map<String, Object> overrides
+					= new HashMap<String, Object>(unitOverrides);
+
+			int batchSize = configuration.getInt(
+					ServerConfiguration.DATABASE_BATCH_SIZE);
+			if (batchSize > 0) {
+				overrides.put("hibernate.jdbc.batch_size",
+						String.valueOf(batchSize));
+				overrides.put("hibernate.order_inserts", "true");
+				overrides.put("hibernate.order_updates", "true");
+			}
+
+			PooledDataSource pool = null;
+			if ((configuration.getInt(ServerConfiguration.DATABASE_POOL_SIZE)
+					> 0) && isPoolingAvailable())
+			{
+				Map<String, String> unitProperties = readUnitProperties();
+				unitProperties.putAll(unitOverrides);
+				pool = createPool(unitProperties);
+			}
+			if (pool != null) {
+				overrides.put("javax.persistence.nonJtaDataSource", pool);
+				overrides.put("hibernate.connection.datasource", pool);
+				overrides.put("openjpa.ConnectionFactory", pool);
+			}
+
+			emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT,
+					overrides);
+			dataSource = pool;
+		}
+
+		return emf;
+	}
+
+	/**
+	 * Returns the pool of database connections.
+	 * @return the pool, or <code>null</code> if the connections are not
+	 *   pooled by us, or the database was not used yet
+	 */
+	public synchronized PooledDataSource getDataSource() {
+		return dataSource;
+	}
+
+	/**
+	 * Closes the entity manager factory and the pool of connections,
+	 * if they were created.
+	 */
+	public synchronized void close() {
+
+		if (emf != null) {
+			emf.close();
+			emf = null;
+		}
+		if (dataSource != null) {
+			try {
+				dataSource.close();
+			} catch (SQLException ex) {
+				LOG.warn("Failed to close the database connection pool", ex);
+			}
+			dataSource = null;
+		}
+	}
+
+	/**
+	 * Checks whether the libraries required for pooling the connections are
+	 * on the class-path.
+	 */
+	private static boolean isPoolingAvailable() {
+
+		for (String poolClass : POOL_CLASSES) {
+			try {
+				Class.forName(poolClass, false, Database.class.getClassLoader());
+			} catch (ClassNotFoundException ex) {
+				LOG.warn("{} is not on the class-path, leaving the connection"
+						+ " handling to the persistence provider;"
+						+ " add commons-dbcp and commons-pool to pool the"
+						+ " database connections", poolClass);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private PooledDataSource createPool(Map<String, String> unitProperties) {
+
+		String url = findProperty(unitProperties, URL_PROPERTIES);
+		if (url == null) {
+			LOG.info("No JDBC URL found in the persistence unit, leaving the"
+					+ " connection handling to the persistence provider");
+			return null;
+		}
+
+		int poolSize
+				= configuration.getInt(ServerConfiguration.DATABASE_POOL_SIZE);
+		int statements = configuration.getInt(
+				ServerConfiguration.DATABASE_POOL_STATEMENTS);
+
+		PooledDataSource pool = new PooledDataSource();
+		String driver = findProperty(unitProperties, DRIVER_PROPERTIES);
+		if (driver != null) {
+			pool.setDriverClassName(driver);
+		}
+		pool.setUrl(url);
+		pool.setUsername(findProperty(unitProperties, USERNAME_PROPERTIES));
+		pool.setPassword(findProperty(unitProperties, PASSWORD_PROPERTIES));
+		pool.setMaxActive(poolSize);
+		pool.setMaxIdle(poolSize);
+		pool.setMinIdle(Math.min(3, poolSize));
+		pool.setMaxWait(MAX_WAIT);
+		// the statement cache is per connection; 0 would mean unlimited
+		pool.setPoolPreparedStatements(statements > 0);
+		pool.setMaxOpenPreparedStatements(statements);
+		// to prevent DB connection timeout (default MySQL timeout: 8h)
+		pool.setValidationQuery(VALIDATION_QUERY);
+		pool.setTestOnBorrow(false);
+		pool.setTestWhileIdle(true);
+		pool.setTimeBetweenEvictionRunsMillis(IDLE_CHECK_INTERVAL);
+
+		LOG.info("Pooling up to {} database connections", poolSize);
+
+		return pool;
+	}
+
+	private static String findProperty(Map<String, String> properties,
+			String[] names)
+	{
+		for (String name : names) {
+			String value = properties.get(name);
+			if (value != null) {
+				return value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the properties of our persistence unit from all the
+	 * persistence.xml files on the class-path.
+	 * Like the persistence providers, this uses the context class loader.
+	 */
+	private static Map<String, String> readUnitProperties() {
+
+		Map<String, String> properties = new HashMap<String, String>();
+
+		try {
+			Enumeration<URL> persistenceXmls = Thread.currentThread()
+					.getContextClassLoader().getResources(PERSISTENCE_XML);
+			while (persistenceXmls.hasMoreElements()) {
+				URL persistenceXml = persistenceXmls.nextElement();
+				InputStream in = persistenceXml.openStream();
+				try {
+					Document doc = DocumentBuilderFactory.newInstance()
+							.newDocumentBuilder().parse(in);
+					readUnitProperties(doc, properties);
+				} finally {
+					in.close();
+				}
+			}
+		} catch (Exception ex) {
+			LOG.warn("Failed to read the persistence unit properties", ex);
+		}
+
+		return properties;
+	}
+
+	private static void readUnitProperties(Document doc,
+			Map<String, String> properties)
+	{
+		NodeList units = doc.getElementsByTagName("persistence-unit");
+		for (int u = 0; u < units.getLength(); u++) {
+			Element unit = (Element) units.item(u);
+			if (!unit.getAttribute("name").equals(PERSISTENCE_UNIT)) {
+				continue;
+			}
+			NodeList unitProperties = unit.getElementsByTagName("property");
+			for (int p = 0; p < unitProperties.getLength(); p++) {
+				Element property = (Element) unitProperties.item(p);
+				properties.put(property.getAttribute("name"),
+						property.getAttribute("value"));
+			}
+		}
+	}
+}
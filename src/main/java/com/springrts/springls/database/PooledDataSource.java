@@ -0,0 +1,97 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls.database;
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.dbcp.BasicDataSource;
+
+/**
+ * A pool of database connections, which also records how long it took to
+ * get connections from it.
+ * @author hoijui
+ */
+public class PooledDataSource extends BasicDataSource {
+
+	private final AtomicLong connectionRequests;
+	/** In nano-seconds. */
+	private final AtomicLong totalWaitTime;
+	/** In nano-seconds. */
+	private final AtomicLong maxWaitTime;
+
+
+	public PooledDataSource() {
+
+		this.connectionRequests = new AtomicLong(0);
+		this.totalWaitTime = new AtomicLong(0);
+		this.maxWaitTime = new AtomicLong(0);
+	}
+
+
+	@Override
+	public Connection getConnection() throws SQLException {
+
+		long start = System.nanoTime();
+		try {
+			return super.getConnection();
+		} finally {
+			recordWait(System.nanoTime() - start);
+		}
+	}
+
+	private void recordWait(long waitTime) {
+
+		connectionRequests.incrementAndGet();
+		totalWaitTime.addAndGet(waitTime);
+		long max = maxWaitTime.get();
+		while ((waitTime > max) && !maxWaitTime.compareAndSet(max, waitTime)) {
+			max = maxWaitTime.get();
+		}
+	}
+
+	/**
+	 * Returns how many connections were requested from this pool so far.
+	 */
+	public long getConnectionRequests() {
+		return connectionRequests.get();
+	}
+
+	/**
+	 * Returns how long it took on average to get a connection from this pool,
+	 * in milli-seconds.
+	 */
+	public double getAverageWaitTime() {
+
+		long requests = connectionRequests.get();
+		if (requests == 0) {
+			return 0.0;
+		}
+		return totalWaitTime.get() / (requests * 1000000.0);
+	}
+
+	/**
+	 * Returns the longest time it took to get a connection from this pool,
+	 * in milli-seconds.
+	 */
+	public double getMaxWaitTime() {
+		return maxWaitTime.get() / 1000000.0;
+	}
+}
@@ -162,14 +162,7 @@ public class Statistics implements ContextReceiver, Updateable {
 		String fileName = STATISTICS_FOLDER + now("ddMMyy") + ".dat";
 		long startTime = System.currentTimeMillis();
 
-		int activeBattlesCount = 0;
-		for (int i = 0; i < context.getBattles().getBattlesSize(); i++) {
-			Battle battle = context.getBattles().getBattleByIndex(i);
-			// at least 1 client + founder == 2 players
-			if ((battle.getClientsSize() > 0) && battle.inGame()) {
-				activeBattlesCount++;
-			}
-		}
+		int activeBattlesCount = context.getBattles().getActiveBattlesCount();
 
 		String topMods = currentlyPopularModsList();
 
@@ -0,0 +1,213 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.springrts.springls.accounts;
+
+
+import com.springrts.springls.Account;
+import com.springrts.springls.util.Misc;
+import com.springrts.springls.util.ProtocolUtil;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * @author hoijui
+ */
+public class TestFSAccountsJournal extends TestCase {
+
+	private File dir;
+	private String prefix;
+
+	@Override
+	protected void setUp() throws IOException {
+
+		dir = File.createTempFile("springls-journal", "");
+		dir.delete();
+		dir.mkdir();
+		prefix = new File(dir,
+				FSAccountsService.ACCOUNTS_JOURNAL_FILEPATH_PREFIX).getPath();
+	}
+
+	@Override
+	protected void tearDown() {
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private static class RecordCollector
+			implements FSAccountsJournal.RecordHandler
+	{
+		private final List<String> records = new ArrayList<String>();
+
+		@Override
+		public void handle(String record) {
+			records.add(record);
+		}
+	}
+
+	private List<String> replay() throws IOException {
+
+		RecordCollector collector = new RecordCollector();
+		int replayed = new FSAccountsJournal(prefix).replay(collector);
+		TestCase.assertEquals(collector.records.size(), replayed);
+		return collector.records;
+	}
+
+	private void writeFile(int generation, String content) throws IOException {
+
+		OutputStream out = new FileOutputStream(prefix + generation, true);
+		try {
+			out.write(content.getBytes());
+		} finally {
+			out.close();
+		}
+	}
+
+	public void testReplay() throws IOException {
+
+		FSAccountsJournal journal = new FSAccountsJournal(prefix);
+		journal.open();
+		TestCase.assertEquals(1, journal.getGeneration());
+		journal.append("U a");
+		journal.append("N a b");
+		TestCase.assertTrue(journal.commit());
+		TestCase.assertEquals(1, journal.rotate());
+		journal.append("D b");
+		journal.close();
+
+		TestCase.assertTrue(new File(prefix + 1).exists());
+		TestCase.assertTrue(new File(prefix + 2).exists());
+		List<String> records = replay();
+		TestCase.assertEquals(3, records.size());
+		TestCase.assertEquals("U a", records.get(0));
+		TestCase.assertEquals("N a b", records.get(1));
+		TestCase.assertEquals("D b", records.get(2));
+
+		// continues after the existing generations
+		journal = new FSAccountsJournal(prefix);
+		journal.open();
+		TestCase.assertEquals(3, journal.getGeneration());
+		journal.close();
+	}
+
+	public void testReplaySkipsTornRecord() throws IOException {
+
+		writeFile(1, "U a\nD a\n");
+		writeFile(2, "U b\nU c");
+
+		List<String> records = replay();
+		TestCase.assertEquals(3, records.size());
+		TestCase.assertEquals("U a", records.get(0));
+		TestCase.assertEquals("D a", records.get(1));
+		TestCase.assertEquals("U b", records.get(2));
+	}
+
+	public void testDeleteUpTo() throws IOException {
+
+		FSAccountsJournal journal = new FSAccountsJournal(prefix);
+		journal.open();
+		journal.append("U a");
+		int saved = journal.rotate();
+		journal.append("U b");
+		journal.deleteUpTo(saved);
+		journal.close();
+
+		TestCase.assertFalse(new File(prefix + saved).exists());
+		List<String> records = replay();
+		TestCase.assertEquals(1, records.size());
+		TestCase.assertEquals("U b", records.get(0));
+	}
+
+	private static Account createAccount(String name, String password,
+			String ip)
+	{
+		return new Account(name, password, Misc.parseIp(ip),
+				ProtocolUtil.COUNTRY_UNKNOWN);
+	}
+
+	/**
+	 * The changes made after the accounts file was written are replayed
+	 * from the journal, as after a crash.
+	 */
+	public void testReplayAccountChanges() throws IOException {
+
+		PrintWriter accountsFile = new PrintWriter(new File(dir,
+				FSAccountsService.ACCOUNTS_INFO_FILEPATH));
+		try {
+			accountsFile.println(FSAccountsService.toPersistentString(
+					createAccount("alice", "pwAlice", "10.0.0.1")));
+			accountsFile.println(FSAccountsService.toPersistentString(
+					createAccount("bob", "pwBob", "10.0.0.2")));
+			accountsFile.println(FSAccountsService.toPersistentString(
+					createAccount("carol", "pwCarol", "10.0.0.3")));
+		} finally {
+			accountsFile.close();
+		}
+
+		FSAccountsService accounts = new FSAccountsService(dir);
+		TestCase.assertTrue(accounts.loadAccounts());
+		TestCase.assertEquals(3, accounts.getAccountsSize());
+		int bobId = accounts.getAccount("bob").getId();
+
+		accounts.addAccount(createAccount("dave", "pwDave", "10.0.0.4"));
+		Account alice = accounts.getAccount("alice").clone();
+		alice.setPassword("pwAlice2");
+		TestCase.assertTrue(accounts.mergeAccountChanges(alice, "alice"));
+		Account robert = accounts.getAccount("bob").clone();
+		robert.setName("robert");
+		TestCase.assertTrue(accounts.mergeAccountChanges(robert, "bob"));
+		TestCase.assertTrue(accounts.removeAccount(
+				accounts.getAccount("carol")));
+		// closes the journal, without writing the accounts file
+		accounts.stopped();
+
+		// a record which was being written when the server crashed
+		int lastGeneration = 1;
+		while (new File(prefix + (lastGeneration + 1)).exists()) {
+			lastGeneration++;
+		}
+		writeFile(lastGeneration, "U " + FSAccountsService.toPersistentString(
+				createAccount("eve", "pwEve", "10.0.0.5")).substring(0, 10));
+
+		accounts = new FSAccountsService(dir);
+		TestCase.assertTrue(accounts.loadAccounts());
+		TestCase.assertEquals(3, accounts.getAccountsSize());
+		TestCase.assertEquals("pwAlice2",
+				accounts.getAccount("alice").getPassword());
+		TestCase.assertNull(accounts.getAccount("bob"));
+		TestCase.assertNotNull(accounts.getAccount("robert"));
+		TestCase.assertEquals(bobId, accounts.getAccount("robert").getId());
+		TestCase.assertNull(accounts.getAccount("carol"));
+		TestCase.assertNotNull(accounts.getAccount("dave"));
+		TestCase.assertNull(accounts.findAccountNoCase("eve"));
+		TestCase.assertEquals("robert", accounts.findAccountByLastIP(
+				Misc.parseIp("10.0.0.2")).getName());
+		accounts.stopped();
+	}
+}
@@ -0,0 +1,228 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.springrts.springls.accounts;
+
+
+import com.springrts.springls.Account;
+import com.springrts.springls.util.Misc;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * @author hoijui
+ */
+public class TestFSAccountsSnapshot extends TestCase {
+
+	private File file;
+	private List<Account> accounts;
+
+	@Override
+	protected void setUp() throws IOException {
+
+		file = File.createTempFile("springls-snapshot", ".bin");
+		accounts = new ArrayList<Account>();
+		accounts.add(createAccount(1001, "Alice", Account.Access.ADMIN,
+				"10.0.0.1"));
+		accounts.add(createAccount(1002, "bob", Account.Access.NORMAL,
+				"10.0.0.2"));
+		// names from old accounts files may differ only in case
+		accounts.add(createAccount(1003, "BOB", Account.Access.NORMAL,
+				"10.0.0.1"));
+		accounts.add(createAccount(1004, "carol", Account.Access.PRIVILEGED,
+				"2001:db8::1"));
+		accounts.add(createAccount(1005, "dave", Account.Access.NORMAL,
+				null));
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	private static Account createAccount(int id, String name,
+			Account.Access access, String ip)
+	{
+		InetAddress lastIp = (ip == null) ? null : Misc.parseIp(ip, true,
+				false);
+		return new Account(name, "pw" + name, access, id * 10,
+				1300000000000L + id, lastIp, 1200000000000L + id, "DE", id,
+				(id % 2) == 0, 3600, true);
+	}
+
+	private static void assertAccountEquals(Account expected, Account actual)
+	{
+		TestCase.assertEquals(expected.getId(), actual.getId());
+		TestCase.assertEquals(expected.getName(), actual.getName());
+		TestCase.assertEquals(expected.getPassword(), actual.getPassword());
+		TestCase.assertEquals(expected.getAccess(), actual.getAccess());
+		TestCase.assertEquals(expected.getLastUserId(),
+				actual.getLastUserId());
+		TestCase.assertEquals(expected.getLastLogin(), actual.getLastLogin());
+		TestCase.assertEquals(expected.getLastIp(), actual.getLastIp());
+		TestCase.assertEquals(expected.getRegistrationDate(),
+				actual.getRegistrationDate());
+		TestCase.assertEquals(expected.getLastCountry(),
+				actual.getLastCountry());
+		TestCase.assertEquals(expected.isBot(), actual.isBot());
+		TestCase.assertEquals(expected.getInGameTime(),
+				actual.getInGameTime());
+		TestCase.assertEquals(expected.isAgreementAccepted(),
+				actual.isAgreementAccepted());
+	}
+
+	public void testReadWritten() throws IOException {
+
+		FSAccountsSnapshot.write(file, accounts);
+		List<Account> read = FSAccountsSnapshot.read(file, 2);
+
+		TestCase.assertEquals(accounts.size(), read.size());
+		for (int a = 0; a < accounts.size(); a++) {
+			assertAccountEquals(accounts.get(a), read.get(a));
+		}
+	}
+
+	public void testMapped() throws IOException {
+
+		FSAccountsSnapshot.write(file, accounts);
+		FSAccountsSnapshot snapshot = FSAccountsSnapshot.map(file);
+
+		TestCase.assertEquals(accounts.size(), snapshot.size());
+		for (int r = 0; r < snapshot.size(); r++) {
+			TestCase.assertEquals(accounts.get(r).getId(), snapshot.getId(r));
+			TestCase.assertEquals(accounts.get(r).getName(),
+					snapshot.getName(r));
+			TestCase.assertEquals(accounts.get(r).getAccessBitField(),
+					snapshot.getAccessBitField(r));
+			TestCase.assertEquals(accounts.get(r).getLastLogin(),
+					snapshot.getLastLogin(r));
+			assertAccountEquals(accounts.get(r), snapshot.getAccount(r));
+		}
+	}
+
+	public void testFindNoCase() throws IOException {
+
+		FSAccountsSnapshot.write(file, accounts);
+		FSAccountsSnapshot snapshot = FSAccountsSnapshot.map(file);
+
+		TestCase.assertEquals(0, snapshot.findNoCase("alice"));
+		TestCase.assertEquals(0, snapshot.findNoCase("ALICE"));
+		TestCase.assertEquals(3, snapshot.findNoCase("Carol"));
+		TestCase.assertEquals(4, snapshot.findNoCase("dave"));
+		TestCase.assertEquals(-1, snapshot.findNoCase("eve"));
+		TestCase.assertEquals(-1, snapshot.findNoCase("al"));
+		int bob = snapshot.findNoCase("Bob");
+		TestCase.assertTrue((bob == 1) || (bob == 2));
+
+		int[] bobs = snapshot.findAllNoCase("bOb");
+		Arrays.sort(bobs);
+		TestCase.assertEquals(2, bobs.length);
+		TestCase.assertEquals(1, bobs[0]);
+		TestCase.assertEquals(2, bobs[1]);
+		TestCase.assertEquals(1, snapshot.findAllNoCase("carol").length);
+		TestCase.assertEquals(0, snapshot.findAllNoCase("eve").length);
+	}
+
+	public void testFindByLastIp() throws IOException {
+
+		FSAccountsSnapshot.write(file, accounts);
+		FSAccountsSnapshot snapshot = FSAccountsSnapshot.map(file);
+
+		int[] records = snapshot.findByLastIp(
+				Misc.parseIp("10.0.0.1").getAddress());
+		Arrays.sort(records);
+		TestCase.assertEquals(2, records.length);
+		TestCase.assertEquals(0, records[0]);
+		TestCase.assertEquals(2, records[1]);
+
+		records = snapshot.findByLastIp(
+				Misc.parseIp("2001:db8::1", true, false).getAddress());
+		TestCase.assertEquals(1, records.length);
+		TestCase.assertEquals(3, records[0]);
+		TestCase.assertTrue(snapshot.isLastIp(3,
+				Misc.parseIp("2001:db8::1", true, false).getAddress()));
+		TestCase.assertFalse(snapshot.isLastIp(1,
+				Misc.parseIp("10.0.0.1").getAddress()));
+
+		TestCase.assertEquals(0, snapshot.findByLastIp(
+				Misc.parseIp("10.0.0.9").getAddress()).length);
+	}
+
+	public void testEmpty() throws IOException {
+
+		FSAccountsSnapshot.write(file, new ArrayList<Account>());
+		FSAccountsSnapshot snapshot = FSAccountsSnapshot.map(file);
+
+		TestCase.assertEquals(0, snapshot.size());
+		TestCase.assertEquals(-1, snapshot.findNoCase("alice"));
+		TestCase.assertEquals(0, FSAccountsSnapshot.read(file, 1).size());
+	}
+
+	private void assertMapFails() {
+
+		try {
+			FSAccountsSnapshot.map(file);
+			TestCase.fail("invalid snapshot was mapped");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+
+	public void testVersionCheck() throws IOException {
+
+		FSAccountsSnapshot.write(file, accounts);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(4);
+			int version = raf.readInt();
+			raf.seek(4);
+			raf.writeInt(version + 1);
+		} finally {
+			raf.close();
+		}
+
+		assertMapFails();
+	}
+
+	public void testInvalidFile() throws IOException {
+
+		// not a snapshot at all
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.writeBytes("bob pw 1 0 0 10.0.0.1 0 DE\n");
+		} finally {
+			raf.close();
+		}
+		assertMapFails();
+
+		// truncated
+		FSAccountsSnapshot.write(file, accounts);
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 4);
+		} finally {
+			raf.close();
+		}
+		assertMapFails();
+	}
+}
@@ -0,0 +1,494 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls.database;
+
+
+import com.springrts.springls.Account;
+import com.springrts.springls.ServerConfiguration;
+import com.springrts.springls.accounts.AccountsService;
+import com.springrts.springls.accounts.CachingAccountsService;
+import com.springrts.springls.accounts.JPAAccountsService;
+import com.springrts.springls.bans.BanEntry;
+import com.springrts.springls.bans.BanService;
+import com.springrts.springls.bans.JPABanService;
+import com.springrts.springls.util.ProtocolUtil;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * Measures what the operations of the JPA accounts and ban services cost,
+ * against an embedded in-memory H2 database, under concurrent load.
+ * The persistence unit is read from
+ * <code>conf/META-INF/persistence.xml.template</code>, with the connection
+ * settings replaced by the ones of the embedded database.
+ * The database settings of the server, like <code>database.pool.size</code>,
+ * <code>database.pool.statements</code>, <code>database.batchSize</code> and
+ * <code>database.cacheSize</code>, may be given as system properties,
+ * to compare them.
+ * <p>
+ * Usage, from the project root directory:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dproject.mainClass=com.springrts.springls.database.JPABenchmark \
+ *   -Dexec.args="[accounts] [bans] [threads] [seconds]"
+ * </pre>
+ * Each operation is measured on its own, by all threads at once, after a
+ * warm-up. The results are printed as one tab-separated line per operation,
+ * with the throughput in operations per second, and the mean, median, 95th
+ * and 99th percentile and maximum latencies in milli-seconds.
+ * The settings are printed before, as comment lines starting with '#'.
+ * @author hoijui
+ */
+public final class JPABenchmark {
+
+	private static final String PERSISTENCE_TEMPLATE
+			= "conf/META-INF/persistence.xml.template";
+
+	private static final int DEFAULT_ACCOUNTS = 1000000;
+	private static final int DEFAULT_BANS = 100000;
+	private static final int DEFAULT_THREADS = 8;
+	private static final int DEFAULT_SECONDS = 30;
+	/** For how long each operation is run before it is measured. */
+	private static final int WARM_UP_SECONDS = 5;
+	/** How many rows are inserted per transaction when populating. */
+	private static final int POPULATE_BATCH_SIZE = 1000;
+
+	private final int numAccounts;
+	private final int numBans;
+	private final int threads;
+	private final int seconds;
+	private final Configuration configuration;
+	private Database database;
+	private AccountsService accounts;
+	private BanService bans;
+	/** How many times an operation was run, including the warm-ups. */
+	private int runs;
+	/** Numbers the added accounts, so their names are unique. */
+	private final AtomicLong addedAccounts;
+
+
+	private JPABenchmark(int numAccounts, int numBans, int threads,
+			int seconds)
+	{
+		this.numAccounts = numAccounts;
+		this.numBans = numBans;
+		this.threads = threads;
+		this.seconds = seconds;
+		this.configuration = createConfiguration();
+		this.database = null;
+		this.accounts = null;
+		this.bans = null;
+		this.runs = 0;
+		this.addedAccounts = new AtomicLong(0);
+	}
+
+
+	/**
+	 * The defaults of the server, overridden by the system properties
+	 * starting with "database.".
+	 */
+	private static Configuration createConfiguration() {
+
+		Configuration configuration = new BaseConfiguration();
+
+		Configuration defaults = ServerConfiguration.getDefaults();
+		Iterator<?> keys = defaults.getKeys();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			configuration.setProperty(key, defaults.getProperty(key));
+		}
+		for (String key : System.getProperties().stringPropertyNames()) {
+			if (key.startsWith("database.")) {
+				configuration.setProperty(key, System.getProperty(key));
+			}
+		}
+
+		return configuration;
+	}
+
+	/** The connection settings of the embedded database. */
+	private static Map<String, String> createEmbeddedDatabaseSettings() {
+
+		Map<String, String> settings = new HashMap<String, String>();
+
+		settings.put("hibernate.connection.url",
+				"jdbc:h2:mem:springls;DB_CLOSE_DELAY=-1");
+		settings.put("hibernate.connection.username", "sa");
+		settings.put("hibernate.connection.password", "");
+		settings.put("hibernate.connection.driver_class", "org.h2.Driver");
+		settings.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		settings.put("hibernate.hbm2ddl.auto", "create");
+
+		return settings;
+	}
+
+	/**
+	 * Makes the persistence template available as META-INF/persistence.xml,
+	 * through the context class loader.
+	 */
+	private static void installPersistenceTemplate() throws IOException {
+
+		File unitDir = File.createTempFile("springls-benchmark", "");
+		if (!unitDir.delete() || !new File(unitDir, "META-INF").mkdirs()) {
+			throw new IOException("Failed to create " + unitDir);
+		}
+		unitDir.deleteOnExit();
+		File persistenceXml = new File(unitDir, "META-INF/persistence.xml");
+		persistenceXml.deleteOnExit();
+
+		InputStream in = new FileInputStream(PERSISTENCE_TEMPLATE);
+		try {
+			OutputStream out = new FileOutputStream(persistenceXml);
+			try {
+				byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+
+		ClassLoader parent = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(new URLClassLoader(
+				new URL[] {unitDir.toURI().toURL()}, parent));
+	}
+
+	private static String nameOf(int account) {
+		return "user_" + account;
+	}
+
+	private static String passwordOf(int account) {
+		return ProtocolUtil.encodePassword(nameOf(account));
+	}
+
+	private static InetAddress ipOf(int account) {
+
+		try {
+			return InetAddress.getByAddress(new byte[] {
+				10,
+				(byte) (account >> 16),
+				(byte) (account >> 8),
+				(byte) account
+			});
+		} catch (UnknownHostException ex) {
+			// can not happen, as the address has a valid length
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private void setUp() throws IOException {
+
+		installPersistenceTemplate();
+		database = new Database(configuration,
+				createEmbeddedDatabaseSettings());
+
+		JPAAccountsService store = new JPAAccountsService(database);
+		int cacheSize
+				= configuration.getInt(ServerConfiguration.DATABASE_CACHE_SIZE);
+		if (cacheSize > 0) {
+			accounts = new CachingAccountsService(store, cacheSize);
+		} else {
+			accounts = store;
+		}
+		bans = new JPABanService(database);
+
+		populate();
+		accounts.loadAccounts();
+	}
+
+	private void tearDown() {
+
+		accounts.stopped();
+		database.close();
+	}
+
+	/**
+	 * Inserts the accounts and ban entries directly, in large transactions.
+	 * Every tenth account is banned, by name, IP and user ID.
+	 */
+	private void populate() {
+
+		long start = System.currentTimeMillis();
+
+		EntityManagerFactory emf = database.getEntityManagerFactory();
+		EntityManager em = emf.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			for (int a = 0; a < numAccounts; a++) {
+				Account account = new Account(nameOf(a), passwordOf(a),
+						ipOf(a), ProtocolUtil.COUNTRY_UNKNOWN);
+				account.setAgreementAccepted(true);
+				em.persist(account);
+				if (((a + 1) % POPULATE_BATCH_SIZE) == 0) {
+					em.getTransaction().commit();
+					em.clear();
+					em.getTransaction().begin();
+				}
+			}
+			for (int b = 0; b < numBans; b++) {
+				int account = (b * 10) % Math.max(1, numAccounts);
+				BanEntry ban = new BanEntry(0, nameOf(account),
+						ProtocolUtil.ip2Long(ipOf(account)),
+						ProtocolUtil.ip2Long(ipOf(account)),
+						b + 1, "benchmark");
+				em.persist(ban);
+				if (((b + 1) % POPULATE_BATCH_SIZE) == 0) {
+					em.getTransaction().commit();
+					em.clear();
+					em.getTransaction().begin();
+				}
+			}
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+
+		System.out.println(String.format(
+				"# populated %d accounts and %d bans in %d ms",
+				numAccounts, numBans, System.currentTimeMillis() - start));
+	}
+
+	/**
+	 * One of the measured operations.
+	 */
+	private abstract static class Operation {
+
+		private final String name;
+
+		Operation(String name) {
+			this.name = name;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		/**
+		 * Prepares an execution, which is not measured.
+		 * @param random to be used by this thread only
+		 * @return passed to {@link #execute(Object)}
+		 */
+		Object prepare(Random random) {
+			return random.nextInt();
+		}
+
+		/** Executes the operation once; this is measured. */
+		abstract void execute(Object prepared);
+	}
+
+	private List<Operation> createOperations() {
+
+		List<Operation> operations = new ArrayList<Operation>();
+
+		// LOGIN
+		operations.add(new Operation("verifyLogin") {
+			@Override
+			void execute(Object prepared) {
+				int account = randomAccount((Integer) prepared);
+				accounts.verifyLogin(nameOf(account), passwordOf(account));
+			}
+		});
+		// LOGIN
+		operations.add(new Operation("getBanEntry") {
+			@Override
+			void execute(Object prepared) {
+				int account = randomAccount((Integer) prepared);
+				bans.getBanEntry(nameOf(account), ipOf(account),
+						numBans + 1 + account);
+			}
+		});
+		// REGISTER, RENAMEACCOUNT
+		operations.add(new Operation("findAccountNoCase") {
+			@Override
+			void execute(Object prepared) {
+				int account = randomAccount((Integer) prepared);
+				accounts.findAccountNoCase(nameOf(account).toUpperCase());
+			}
+		});
+		// REGISTER
+		operations.add(new Operation("addAccount") {
+			@Override
+			Object prepare(Random random) {
+				return new Account("bench_" + addedAccounts.incrementAndGet(),
+						"password", ipOf(random.nextInt()),
+						ProtocolUtil.COUNTRY_UNKNOWN);
+			}
+			@Override
+			void execute(Object prepared) {
+				accounts.addAccount((Account) prepared);
+			}
+		});
+		// in-game time updates, when a battle ends
+		operations.add(new Operation("mergeAccountChanges") {
+			@Override
+			Object prepare(Random random) {
+				Account account = accounts.getAccount(
+						nameOf(randomAccount(random.nextInt())));
+				account.addMinsToInGameTime(1);
+				return account;
+			}
+			@Override
+			void execute(Object prepared) {
+				Account account = (Account) prepared;
+				accounts.mergeAccountChanges(account, account.getName());
+			}
+		});
+		// FINDIP
+		operations.add(new Operation("findAccountByLastIP") {
+			@Override
+			void execute(Object prepared) {
+				int account = randomAccount((Integer) prepared);
+				accounts.findAccountByLastIP(ipOf(account));
+			}
+		});
+
+		return operations;
+	}
+
+	private int randomAccount(int random) {
+		return (random & Integer.MAX_VALUE) % Math.max(1, numAccounts);
+	}
+
+	/**
+	 * Runs an operation on all threads for the given time.
+	 * @param latencies where to record the latencies, or <code>null</code>
+	 * @return the number of executions
+	 */
+	private long run(final Operation operation, int runSeconds,
+			final LatencyHistogram latencies) throws InterruptedException
+	{
+		final long end = System.nanoTime() + (runSeconds * 1000000000L);
+		final long[] executions = new long[threads];
+		final CountDownLatch done = new CountDownLatch(threads);
+		// each run gets other random numbers than the warm-up before it
+		final long seed = (long) runs++ << 32;
+
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random(seed + thread);
+					LatencyHistogram own = new LatencyHistogram();
+					try {
+						while (System.nanoTime() < end) {
+							Object prepared = operation.prepare(random);
+							long start = System.nanoTime();
+							operation.execute(prepared);
+							own.record(System.nanoTime() - start);
+							executions[thread]++;
+						}
+					} finally {
+						if (latencies != null) {
+							latencies.add(own);
+						}
+						done.countDown();
+					}
+				}
+			}, "benchmark-" + operation.getName() + "-" + t).start();
+		}
+		done.await();
+
+		long total = 0;
+		for (long threadExecutions : executions) {
+			total += threadExecutions;
+		}
+		return total;
+	}
+
+	private void measure() throws InterruptedException {
+
+		System.out.println(String.format(
+				"# accounts=%d bans=%d threads=%d seconds=%d"
+				+ " database.pool.size=%s database.pool.statements=%s"
+				+ " database.batchSize=%s database.cacheSize=%s",
+				numAccounts, numBans, threads, seconds,
+				configuration.getString(ServerConfiguration.DATABASE_POOL_SIZE),
+				configuration.getString(
+						ServerConfiguration.DATABASE_POOL_STATEMENTS),
+				configuration.getString(
+						ServerConfiguration.DATABASE_BATCH_SIZE),
+				configuration.getString(
+						ServerConfiguration.DATABASE_CACHE_SIZE)));
+		System.out.println("operation\tops\tops/s\tmean\tp50\tp95\tp99\tmax");
+
+		for (Operation operation : createOperations()) {
+			run(operation, WARM_UP_SECONDS, null);
+
+			LatencyHistogram latencies = new LatencyHistogram();
+			long start = System.nanoTime();
+			long executions = run(operation, seconds, latencies);
+			double elapsed = (System.nanoTime() - start) / 1000000000.0;
+
+			System.out.println(String.format(
+					"%s\t%d\t%.1f\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f",
+					operation.getName(), executions, executions / elapsed,
+					latencies.getMean(),
+					latencies.getPercentile(50.0),
+					latencies.getPercentile(95.0),
+					latencies.getPercentile(99.0),
+					latencies.getMax()));
+		}
+	}
+
+	private static int argument(String[] args, int index, int defaultValue) {
+		return (args.length > index) ? Integer.parseInt(args[index])
+				: defaultValue;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		JPABenchmark benchmark = new JPABenchmark(
+				argument(args, 0, DEFAULT_ACCOUNTS),
+				argument(args, 1, DEFAULT_BANS),
+				argument(args, 2, DEFAULT_THREADS),
+				argument(args, 3, DEFAULT_SECONDS));
+
+		benchmark.setUp();
+		try {
+			benchmark.measure();
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+	Copyright (c) 2011 Robin Vobruba <hoijui.quaero@gmail.com>
+
+	This program is free software; you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation; either version 2 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.springrts.springls.database;
+
+
+/**
+ * Records latencies with a resolution of one micro-second, up to 100
+ * milli-seconds. Longer ones are counted as 100 milli-seconds, except for the
+ * maximum.
+ * @author hoijui
+ */
+class LatencyHistogram {
+
+	private static final int BUCKETS = 100000;
+	private static final long NANOS_PER_BUCKET = 1000L;
+
+	/** How many latencies fell into each micro-second. */
+	private final long[] counts;
+	private long total;
+	/** The sum of all latencies, in nano-seconds. */
+	private long sum;
+	/** The largest latency, in nano-seconds. */
+	private long max;
+
+
+	LatencyHistogram() {
+
+		this.counts = new long[BUCKETS];
+		this.total = 0;
+		this.sum = 0;
+		this.max = 0;
+	}
+
+
+	/**
+	 * @param latency in nano-seconds
+	 */
+	void record(long latency) {
+
+		int bucket = (int) Math.min(BUCKETS - 1, latency / NANOS_PER_BUCKET);
+		counts[bucket]++;
+		total++;
+		sum += latency;
+		max = Math.max(max, latency);
+	}
+
+	/**
+	 * Adds all the latencies recorded by an other histogram to this one.
+	 */
+	synchronized void add(LatencyHistogram other) {
+
+		for (int b = 0; b < BUCKETS; b++) {
+			counts[b] += other.counts[b];
+		}
+		total += other.total;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	/** Returns the mean latency, in milli-seconds. */
+	synchronized double getMean() {
+		return (total == 0) ? 0.0 : (sum / (double) total) / 1000000.0;
+	}
+
+	/** Returns the largest latency, in milli-seconds. */
+	synchronized double getMax() {
+		return max / 1000000.0;
+	}
+
+	/**
+	 * Returns the latency below which the given percentage of all latencies
+	 * lie, in milli-seconds.
+	 * @param percent in [0.0, 100.0]
+	 */
+	synchronized double getPercentile(double percent) {
+
+		if (total == 0) {
+			return 0.0;
+		}
+
+		long rank = (long) Math.ceil(total * percent / 100.0);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += counts[b];
+			if (seen >= Math.max(1, rank)) {
+				return ((b + 1) * NANOS_PER_BUCKET) / 1000000.0;
+			}
+		}
+		return getMax();
+	}
+}